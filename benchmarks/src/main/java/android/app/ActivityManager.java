@@ -0,0 +1,15 @@
+package android.app;
+
+/**
+ * ベンチマーク用の{@code android.app.ActivityManager}の代替実装。
+ */
+public class ActivityManager {
+
+    public int getMemoryClass() {
+        return (int) (Runtime.getRuntime().maxMemory() / (1024 * 1024));
+    }
+
+    public int getLargeMemoryClass() {
+        return getMemoryClass();
+    }
+}
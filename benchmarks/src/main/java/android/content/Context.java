@@ -0,0 +1,20 @@
+package android.content;
+
+import java.io.File;
+
+/**
+ * ベンチマーク用の{@code android.content.Context}の代替実装。
+ */
+public abstract class Context {
+
+    public static final String ACTIVITY_SERVICE = "activity";
+
+    public abstract Object getSystemService(String name);
+
+    public abstract Context getApplicationContext();
+
+    public abstract File getCacheDir();
+
+    public void registerComponentCallbacks(final ComponentCallbacks callback) {
+    }
+}
@@ -0,0 +1,7 @@
+package android.content.res;
+
+/**
+ * ベンチマーク用の{@code android.content.res.Configuration}の代替実装。
+ */
+public class Configuration {
+}
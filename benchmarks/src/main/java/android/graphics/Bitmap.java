@@ -0,0 +1,90 @@
+package android.graphics;
+
+/**
+ * ベンチマーク用の{@code android.graphics.Bitmap}の代替実装。<br>
+ * 幅、高さ、Configのみを保持し、ピクセルのメモリは確保しない。
+ * サイズの計算はAndroidと同じく1行のバイト数×高さとする。
+ */
+public final class Bitmap {
+
+    public enum Config {
+        ALPHA_8(1), RGB_565(2), ARGB_4444(2), ARGB_8888(4);
+
+        /** 1ピクセルのバイト数。 */
+        final int bytesPerPixel;
+
+        Config(final int bytesPerPixel) {
+            this.bytesPerPixel = bytesPerPixel;
+        }
+    }
+
+    public enum CompressFormat {
+        JPEG, PNG, WEBP
+    }
+
+    private int width;
+
+    private int height;
+
+    private Config config;
+
+    private final boolean mutable;
+
+    private boolean recycled;
+
+    Bitmap(final int width, final int height, final Config config, final boolean mutable) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.mutable = mutable;
+    }
+
+    public static Bitmap createBitmap(final int width, final int height, final Config config) {
+        return new Bitmap(width, height, config, true);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Config getConfig() {
+        return config;
+    }
+
+    public int getRowBytes() {
+        return width * config.bytesPerPixel;
+    }
+
+    public int getByteCount() {
+        return getRowBytes() * height;
+    }
+
+    public int getAllocationByteCount() {
+        return getByteCount();
+    }
+
+    public boolean isMutable() {
+        return mutable;
+    }
+
+    public boolean isRecycled() {
+        return recycled;
+    }
+
+    public void recycle() {
+        recycled = true;
+    }
+
+    public void eraseColor(final int color) {
+    }
+
+    public void reconfigure(final int width, final int height, final Config config) {
+        this.width = width;
+        this.height = height;
+        this.config = config;
+    }
+}
@@ -0,0 +1,137 @@
+package android.graphics;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * ベンチマーク用の{@code android.graphics.BitmapFactory}の代替実装。<br>
+ * 画像データの先頭8バイトを幅、高さ(ビッグエンディアンのint)として読み、その大きさのBitmapを返す。
+ * 画素の展開は行わないため、ベンチマークはデコード以外の処理を計測する。
+ */
+public final class BitmapFactory {
+
+    /** 画像データのヘッダのバイト数。 */
+    public static final int HEADER_SIZE = 8;
+
+    private BitmapFactory() {
+    }
+
+    public static class Options {
+
+        public boolean inJustDecodeBounds;
+
+        public boolean inMutable;
+
+        public boolean inDither;
+
+        public boolean inPurgeable;
+
+        public boolean inInputShareable;
+
+        public boolean inPreferQualityOverSpeed;
+
+        public boolean inScaled;
+
+        public int inSampleSize;
+
+        public int inDensity;
+
+        public int inTargetDensity;
+
+        public int outWidth;
+
+        public int outHeight;
+
+        public String outMimeType;
+
+        public Bitmap inBitmap;
+
+        public Bitmap.Config inPreferredConfig = Bitmap.Config.ARGB_8888;
+
+        public byte[] inTempStorage;
+
+        public void requestCancelDecode() {
+        }
+    }
+
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length) {
+        return decodeByteArray(data, offset, length, null);
+    }
+
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length,
+            final Options opts) {
+        if (length < HEADER_SIZE) {
+            return null;
+        }
+        return decode(readInt(data, offset), readInt(data, offset + 4), opts);
+    }
+
+    public static Bitmap decodeFile(final String pathName) {
+        return decodeFile(pathName, null);
+    }
+
+    public static Bitmap decodeFile(final String pathName, final Options opts) {
+        try {
+            final InputStream in = new FileInputStream(pathName);
+            try {
+                return decodeStream(in, null, opts);
+            } finally {
+                in.close();
+            }
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    public static Bitmap decodeStream(final InputStream is) {
+        return decodeStream(is, null, null);
+    }
+
+    public static Bitmap decodeStream(final InputStream is, final Rect outPadding,
+            final Options opts) {
+        try {
+            final DataInputStream in = new DataInputStream(is);
+            return decode(in.readInt(), in.readInt(), opts);
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * ヘッダの幅、高さとオプションからBitmapを作成する。
+     */
+    private static Bitmap decode(final int width, final int height, final Options opts) {
+        if (width <= 0 || height <= 0) {
+            return null;
+        }
+        final Options o = opts != null ? opts : new Options();
+        o.outWidth = width;
+        o.outHeight = height;
+        o.outMimeType = "image/png";
+        if (o.inJustDecodeBounds) {
+            return null;
+        }
+        final int sampleSize = Math.max(1, o.inSampleSize);
+        final int w = Math.max(1, width / sampleSize);
+        final int h = Math.max(1, height / sampleSize);
+        final Bitmap.Config config = o.inPreferredConfig != null ? o.inPreferredConfig
+                : Bitmap.Config.ARGB_8888;
+        final Bitmap reuse = o.inBitmap;
+        if (reuse != null) {
+            if (reuse.isMutable() == false || reuse.getAllocationByteCount() < w * h
+                    * config.bytesPerPixel) {
+                throw new IllegalArgumentException("Problem decoding into existing bitmap");
+            }
+            reuse.reconfigure(w, h, config);
+            return reuse;
+        }
+        return new Bitmap(w, h, config, o.inMutable);
+    }
+
+    private static int readInt(final byte[] data, final int offset) {
+        return (data[offset] & 0xff) << 24 | (data[offset + 1] & 0xff) << 16
+                | (data[offset + 2] & 0xff) << 8 | (data[offset + 3] & 0xff);
+    }
+}
@@ -0,0 +1,47 @@
+package android.graphics;
+
+import java.io.IOException;
+
+/**
+ * ベンチマーク用の{@code android.graphics.BitmapRegionDecoder}の代替実装。<br>
+ * {@link BitmapFactory}と同じく画像データの先頭8バイトを幅、高さとして読み、領域の大きさのBitmapを返す。
+ */
+public final class BitmapRegionDecoder {
+
+    private final int width;
+
+    private final int height;
+
+    private BitmapRegionDecoder(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    public static BitmapRegionDecoder newInstance(final String pathName,
+            final boolean isShareable) throws IOException {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(pathName, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            throw new IOException("unsupported image: " + pathName);
+        }
+        return new BitmapRegionDecoder(options.outWidth, options.outHeight);
+    }
+
+    public Bitmap decodeRegion(final Rect rect, final BitmapFactory.Options options) {
+        final int sampleSize = options != null ? Math.max(1, options.inSampleSize) : 1;
+        return Bitmap.createBitmap(Math.max(1, rect.width() / sampleSize),
+                Math.max(1, rect.height() / sampleSize), Bitmap.Config.ARGB_8888);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public void recycle() {
+    }
+}
@@ -0,0 +1,37 @@
+package android.graphics;
+
+/**
+ * ベンチマーク用の{@code android.graphics.Rect}の代替実装。
+ */
+public final class Rect {
+
+    public int left;
+
+    public int top;
+
+    public int right;
+
+    public int bottom;
+
+    public Rect() {
+    }
+
+    public Rect(final int left, final int top, final int right, final int bottom) {
+        set(left, top, right, bottom);
+    }
+
+    public void set(final int left, final int top, final int right, final int bottom) {
+        this.left = left;
+        this.top = top;
+        this.right = right;
+        this.bottom = bottom;
+    }
+
+    public int width() {
+        return right - left;
+    }
+
+    public int height() {
+        return bottom - top;
+    }
+}
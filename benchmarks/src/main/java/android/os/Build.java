@@ -0,0 +1,41 @@
+package android.os;
+
+/**
+ * ベンチマーク用の{@code android.os.Build}の代替実装。<br>
+ * Bitmapの再利用など、API Levelで分岐する処理はKitKat相当として動作させる。
+ */
+public final class Build {
+
+    private Build() {
+    }
+
+    public static final class VERSION {
+
+        public static final int SDK_INT = VERSION_CODES.KITKAT;
+
+        private VERSION() {
+        }
+    }
+
+    public static final class VERSION_CODES {
+
+        public static final int FROYO = 8;
+
+        public static final int GINGERBREAD = 9;
+
+        public static final int GINGERBREAD_MR1 = 10;
+
+        public static final int HONEYCOMB = 11;
+
+        public static final int HONEYCOMB_MR1 = 12;
+
+        public static final int ICE_CREAM_SANDWICH = 14;
+
+        public static final int JELLY_BEAN = 16;
+
+        public static final int KITKAT = 19;
+
+        private VERSION_CODES() {
+        }
+    }
+}
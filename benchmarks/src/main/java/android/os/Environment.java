@@ -0,0 +1,16 @@
+package android.os;
+
+import java.io.File;
+
+/**
+ * ベンチマーク用の{@code android.os.Environment}の代替実装。
+ */
+public final class Environment {
+
+    private Environment() {
+    }
+
+    public static File getExternalStorageDirectory() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
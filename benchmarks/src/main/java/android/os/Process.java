@@ -0,0 +1,15 @@
+package android.os;
+
+/**
+ * ベンチマーク用の{@code android.os.Process}の代替実装。スレッドの優先度は変更しない。
+ */
+public final class Process {
+
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {
+    }
+
+    public static void setThreadPriority(final int priority) {
+    }
+}
@@ -0,0 +1,53 @@
+package jp.ddo.trismegistos.androidutil.benchmark;
+
+import java.io.IOException;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * ベンチマークの起動クラス。<br>
+ * JMHのコマンドライン引数をそのまま受け付ける。スループット、処理時間と合わせてアロケーションを出力するため、
+ * プロファイラを指定しない場合は{@link GCProfiler}を追加する。<br>
+ * JDK 14以降では{@link GCProfiler}はJVM全体のアロケーション量から求めるため、
+ * ImagePipeline、FileWalkerなどのワーカースレッドで行う処理も「gc.alloc.rate.norm」に含まれる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public final class BenchmarkMain {
+
+    /**
+     * プライベートコンストラクタ。
+     */
+    private BenchmarkMain() {
+    }
+
+    /**
+     * ベンチマークを実行する。
+     * 
+     * @param args JMHのコマンドライン引数
+     * @throws CommandLineOptionException 引数が不正な場合
+     * @throws RunnerException 実行に失敗した場合
+     * @throws IOException 一覧、ヘルプの出力に失敗した場合
+     */
+    public static void main(final String[] args) throws CommandLineOptionException,
+            RunnerException, IOException {
+        final CommandLineOptions cmd = new CommandLineOptions(args);
+        if (cmd.shouldHelp() || cmd.shouldList() || cmd.shouldListProfilers()
+                || cmd.shouldListResultFormats()) {
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+        final ChainedOptionsBuilder builder = new OptionsBuilder().parent(cmd);
+        if (cmd.getProfilers().isEmpty()) {
+            builder.addProfiler(GCProfiler.class);
+        }
+        new Runner(builder.build()).run();
+    }
+}
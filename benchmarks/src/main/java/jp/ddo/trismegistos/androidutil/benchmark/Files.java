@@ -0,0 +1,116 @@
+package jp.ddo.trismegistos.androidutil.benchmark;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * ベンチマークのファイル準備用のUtilクラス。<br>
+ * 計測対象の{@link jp.ddo.trismegistos.androidutil.file.FileUtil}を準備、後始末に使用しないよう、
+ * java.ioのみで実装する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public final class Files {
+
+    /**
+     * プライベートコンストラクタ。
+     */
+    private Files() {
+    }
+
+    /**
+     * 一時ディレクトリを作成する。
+     * 
+     * @param prefix ディレクトリ名の接頭辞
+     * @return 作成したディレクトリ
+     * @throws IOException 作成に失敗した場合
+     */
+    public static File createTempDir(final String prefix) throws IOException {
+        final File dir = File.createTempFile(prefix, "");
+        if (dir.delete() == false || dir.mkdir() == false) {
+            throw new IOException("cannot create " + dir);
+        }
+        return dir;
+    }
+
+    /**
+     * JVMの終了時にファイルorディレクトリを削除する。<br>
+     * JMHは最後の反復のアロケーション量をTearDownの後に集計するため、大量のファイルの削除はTearDownで行わない。
+     * 
+     * @param file ファイルorディレクトリ
+     */
+    public static void deleteOnExit(final File file) {
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                deleteRecursive(file);
+            }
+        });
+    }
+
+    /**
+     * ファイルを作成する。
+     * 
+     * @param file ファイル
+     * @param data 書き込むデータ
+     * @throws IOException 書き込みに失敗した場合
+     */
+    public static void write(final File file, final byte[] data) throws IOException {
+        final FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * 深さ優先でディレクトリ配下を1スレッドで削除する。
+     * 
+     * @param file ファイルorディレクトリ
+     * @return 全て削除できた場合はtrue
+     */
+    public static boolean deleteRecursive(final File file) {
+        boolean result = true;
+        final File[] children = file.listFiles();
+        if (children != null) {
+            for (final File child : children) {
+                result &= deleteRecursive(child);
+            }
+        }
+        return file.delete() && result;
+    }
+
+    /**
+     * 画像データを作成する。<br>
+     * 先頭8バイトはJVM用のBitmapFactoryが読む幅、高さとし、残りは乱数で埋める。
+     * 
+     * @param width 幅
+     * @param height 高さ
+     * @param length 全体のバイト数。8以上
+     * @return 画像データ
+     */
+    public static byte[] image(final int width, final int height, final int length) {
+        final byte[] data = new byte[length];
+        new java.util.Random(length).nextBytes(data);
+        putInt(data, 0, width);
+        putInt(data, 4, height);
+        return data;
+    }
+
+    /**
+     * ビッグエンディアンでintを書き込む。
+     * 
+     * @param data 書き込み先
+     * @param offset 位置
+     * @param value 値
+     */
+    private static void putInt(final byte[] data, final int offset, final int value) {
+        data[offset] = (byte) (value >>> 24);
+        data[offset + 1] = (byte) (value >>> 16);
+        data[offset + 2] = (byte) (value >>> 8);
+        data[offset + 3] = (byte) value;
+    }
+}
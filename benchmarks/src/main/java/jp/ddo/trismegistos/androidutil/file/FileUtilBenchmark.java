@@ -0,0 +1,195 @@
+package jp.ddo.trismegistos.androidutil.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+/**
+ * 深いディレクトリ階層に対する{@link FileUtil#deleteAll(File)}、{@link FileUtil#size(File)}のベンチマーク。<br>
+ * 各階層は子ディレクトリを指定数持ち、それぞれにファイルを置く。比較のため、1スレッドの再帰削除も計測する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class FileUtilBenchmark {
+
+    /**
+     * 作成するディレクトリ階層の形。
+     */
+    @State(Scope.Benchmark)
+    public static class Shape {
+
+        /** 階層の深さ。 */
+        @Param({
+                "64", "512"
+        })
+        public int depth;
+
+        /** 各階層の子ディレクトリの数。1の場合は一直線の階層となる。 */
+        @Param({
+                "1", "2"
+        })
+        public int fanout;
+
+        /** 各ディレクトリのファイル数。 */
+        @Param({
+                "8"
+        })
+        public int filesPerDir;
+
+        /**
+         * ディレクトリ階層を作成する。<br>
+         * 分岐する場合は、深さの代わりに合計ディレクトリ数で規模を揃えるため、最初の階層のみ分岐させる。
+         * 
+         * @param root 作成先
+         * @throws IOException 作成に失敗した場合
+         */
+        void create(final File root) throws IOException {
+            final byte[] data = new byte[64];
+            for (int branch = 0; branch < fanout; branch++) {
+                File dir = new File(root, Integer.toString(branch));
+                for (int level = 0; level < depth / fanout; level++) {
+                    if (dir.mkdirs() == false) {
+                        throw new IOException("cannot create " + dir);
+                    }
+                    for (int i = 0; i < filesPerDir; i++) {
+                        Files.write(new File(dir, "f" + i), data);
+                    }
+                    dir = new File(dir, "d");
+                }
+            }
+        }
+    }
+
+    /**
+     * 反復ごとに削除するディレクトリ階層。削除の計測に使用する。<br>
+     * 反復ごとのSetupは計測範囲に含まれるため、全ての反復の分を事前に作成しておき、反復ごとに次の階層を選ぶ。
+     */
+    @State(Scope.Benchmark)
+    public static class Tree {
+
+        /** 反復ごとのディレクトリ階層。 */
+        private File[] roots;
+
+        /** 次に使用するディレクトリ階層の添字。 */
+        private int next;
+
+        /** 計測対象のディレクトリ階層。 */
+        File root;
+
+        /**
+         * 全ての反復の分のディレクトリ階層を作成する。
+         * 
+         * @param shape 階層の形
+         * @param params ベンチマークの設定
+         * @throws IOException 作成に失敗した場合
+         */
+        @Setup(Level.Trial)
+        public void setupTrial(final Shape shape, final BenchmarkParams params)
+                throws IOException {
+            final File parent = Files.createTempDir("tree");
+            Files.deleteOnExit(parent);
+            roots = new File[params.getWarmup().getCount() + params.getMeasurement().getCount()];
+            for (int i = 0; i < roots.length; i++) {
+                roots[i] = new File(parent, Integer.toString(i));
+                shape.create(roots[i]);
+            }
+        }
+
+        /**
+         * 次のディレクトリ階層を選ぶ。
+         */
+        @Setup(Level.Iteration)
+        public void setupIteration() {
+            root = roots[next++];
+        }
+
+        /**
+         * 削除しきれなかった場合は失敗とする。
+         */
+        @TearDown(Level.Iteration)
+        public void tearDownIteration() {
+            if (root.exists()) {
+                throw new IllegalStateException("not deleted: " + root);
+            }
+        }
+    }
+
+    /**
+     * 作り直さないディレクトリ階層。走査の計測に使用する。
+     */
+    @State(Scope.Benchmark)
+    public static class StaticTree {
+
+        /** 計測対象のディレクトリ階層。 */
+        File root;
+
+        /**
+         * ディレクトリ階層を作成する。
+         * 
+         * @param shape 階層の形
+         * @throws IOException 作成に失敗した場合
+         */
+        @Setup
+        public void setup(final Shape shape) throws IOException {
+            root = Files.createTempDir("tree");
+            Files.deleteOnExit(root);
+            shape.create(root);
+        }
+    }
+
+    /**
+     * {@link FileWalker}で並列に削除する。
+     * 
+     * @param tree ディレクトリ階層
+     * @return 全て削除できた場合はtrue
+     */
+    @Benchmark
+    public boolean deleteAll(final Tree tree) {
+        return FileUtil.deleteAll(tree.root);
+    }
+
+    /**
+     * 比較用に、1スレッドの再帰で削除する。
+     * 
+     * @param tree ディレクトリ階層
+     * @return 全て削除できた場合はtrue
+     */
+    @Benchmark
+    public boolean deleteRecursive(final Tree tree) {
+        return Files.deleteRecursive(tree.root);
+    }
+
+    /**
+     * {@link FileWalker}で並列に走査してサイズを取得する。
+     * 
+     * @param tree ディレクトリ階層
+     * @return サイズ(Byte)
+     */
+    @Benchmark
+    public long size(final StaticTree tree) {
+        return FileUtil.size(tree.root);
+    }
+}
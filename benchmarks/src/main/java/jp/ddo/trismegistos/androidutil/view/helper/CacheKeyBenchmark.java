@@ -0,0 +1,93 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * URLからキャッシュキーを生成する処理のベンチマーク。<br>
+ * {@link ImageCache#getFileName(String)}はファイル名、メモリキャッシュのキーとして全ての取得で呼ばれる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheKeyBenchmark {
+
+    /** 用意するURLの数。 */
+    private static final int COUNT = 1024;
+
+    /** URLのパスの長さ。 */
+    @Param({
+            "16", "256"
+    })
+    public int pathLength;
+
+    /** URL。 */
+    private String[] urls;
+
+    /** 次に使用するURLの添字。 */
+    private int index;
+
+    /**
+     * URLを作成する。マルチバイト文字を含むURLも混ぜる。
+     */
+    @Setup
+    public void setup() {
+        urls = new String[COUNT];
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < COUNT; i++) {
+            sb.setLength(0);
+            sb.append("http://example.com/").append(i).append('/');
+            while (sb.length() < pathLength + 19) {
+                sb.append(i % 8 == 0 ? '\u753b' : 'a');
+            }
+            urls[i] = sb.append(".jpg?w=").append(i).toString();
+        }
+    }
+
+    /**
+     * キャッシュキーを生成する。
+     * 
+     * @return キャッシュキー
+     */
+    @Benchmark
+    public String fileName() {
+        return ImageCache.getFileName(nextUrl());
+    }
+
+    /**
+     * 要求サイズを含むメモリキャッシュのキーを生成する。
+     * 
+     * @return メモリキャッシュのキー
+     */
+    @Benchmark
+    public String memoryKey() {
+        return ImageCache.getMemoryKey(nextUrl(), 200, 200);
+    }
+
+    /**
+     * 次のURLを取得する。
+     * 
+     * @return URL
+     */
+    private String nextUrl() {
+        index = (index + 1) & (COUNT - 1);
+        return urls[index];
+    }
+}
@@ -0,0 +1,156 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+import jp.ddo.trismegistos.androidutil.file.FileUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * 大量のファイルがあるファイルキャッシュのサイズ取得、ジャーナルの読み込みのベンチマーク。<br>
+ * 比較のため、同じディレクトリを{@link FileUtil#size(File)}で走査した場合も計測する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DiskCacheBenchmark {
+
+    /** ファイルキャッシュサイズ(Byte)。全てのファイルが収まる大きさとする。 */
+    private static final long DISK_CACHE_SIZE = 1024L * 1024 * 1024;
+
+    /** 画像の幅、高さ(px)。 */
+    private static final int SIZE = 64;
+
+    /**
+     * キャッシュファイルを作成したディレクトリ。
+     */
+    @State(Scope.Benchmark)
+    public static class CacheDir {
+
+        /** キャッシュファイルの数。 */
+        @Param({
+                "10000", "50000"
+        })
+        public int files;
+
+        /** キャッシュファイルのサイズ(Byte)。 */
+        @Param({
+                "1024"
+        })
+        public int fileSize;
+
+        /** ディレクトリ。 */
+        File dir;
+
+        /**
+         * キャッシュファイルを登録し、ジャーナルを書き込んだ状態で閉じる。
+         * 
+         * @throws IOException ファイルの作成に失敗した場合
+         */
+        @Setup
+        public void setup() throws IOException {
+            dir = Files.createTempDir("diskcache");
+            Files.deleteOnExit(dir);
+            final DiskCache diskCache = new DiskCache(dir, DISK_CACHE_SIZE);
+            final byte[] data = Files.image(SIZE, SIZE, fileSize);
+            final CRC32 crc = new CRC32();
+            crc.update(data, 0, data.length);
+            for (int i = 0; i < files; i++) {
+                final String url = "http://example.com/images/" + i + ".png";
+                final String key = CacheKey.of(url);
+                final File temp = diskCache.newTempFile(key);
+                Files.write(temp, data);
+                diskCache.commit(key, url, temp, crc.getValue(), null);
+            }
+            diskCache.close();
+        }
+    }
+
+    /**
+     * 読み込み済みのファイルキャッシュ。
+     */
+    @State(Scope.Benchmark)
+    public static class OpenedCache {
+
+        /** 計測対象のキャッシュ。 */
+        ImageCache imageCache;
+
+        /**
+         * キャッシュを作成し、ジャーナルの読み込みを完了させる。
+         * 
+         * @param cacheDir キャッシュファイルを作成したディレクトリ
+         */
+        @Setup
+        public void setup(final CacheDir cacheDir) {
+            imageCache = new ImageCache(cacheDir.dir, 1024 * 1024, DISK_CACHE_SIZE);
+            if (imageCache.dirSize() != (long) cacheDir.files * cacheDir.fileSize) {
+                throw new IllegalStateException("unexpected size " + imageCache.dirSize());
+            }
+        }
+    }
+
+    /**
+     * インデックスからファイルキャッシュのサイズを取得する。
+     * 
+     * @param cache 読み込み済みのファイルキャッシュ
+     * @return サイズ(Byte)
+     */
+    @Benchmark
+    public long dirSize(final OpenedCache cache) {
+        return cache.imageCache.dirSize();
+    }
+
+    /**
+     * ディレクトリを走査してサイズを取得する。
+     * 
+     * @param cacheDir キャッシュファイルを作成したディレクトリ
+     * @return サイズ(Byte)
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public long walkSize(final CacheDir cacheDir) {
+        return FileUtil.size(cacheDir.dir);
+    }
+
+    /**
+     * ジャーナルからインデックスを復元する。アプリ起動後、最初のキャッシュ参照で発生する処理。
+     * 
+     * @param cacheDir キャッシュファイルを作成したディレクトリ
+     * @return キャッシュファイルの数
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 10)
+    public int open(final CacheDir cacheDir) {
+        final DiskCache diskCache = new DiskCache(cacheDir.dir, DISK_CACHE_SIZE);
+        try {
+            return diskCache.count();
+        } finally {
+            diskCache.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Bitmap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * ローカルのHTTPサーバから画像を取得する{@link ImagePipeline#load(String, ImageCache, File)}のベンチマーク。<br>
+ * 受信データをメモリに読み込みながらファイルキャッシュに書き込む処理を計測する。
+ * デコードはJVM用のBitmapFactoryがヘッダを読むのみのため、計測値はほぼ受信と書き込みの時間、アロケーションとなる。<br>
+ * 毎回異なるURLを要求し、キャッシュにヒットさせない。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DownloadBenchmark {
+
+    /** 画像の幅、高さ(px)。 */
+    private static final int SIZE = 64;
+
+    /** HTTPサーバのスレッド数。 */
+    private static final int SERVER_THREADS = 4;
+
+    /** 画像データのサイズ(Byte)。 */
+    @Param({
+            "16384", "262144", "2097152"
+    })
+    public int length;
+
+    /** 保存先。memoryはキャッシュ無し、diskはファイルキャッシュに書き込む。 */
+    @Param({
+            "memory", "disk"
+    })
+    public String target;
+
+    /** HTTPサーバ。 */
+    private HttpServer server;
+
+    /** 計測対象。 */
+    private ImagePipeline pipeline;
+
+    /** キャッシュ。memoryの場合はnull。 */
+    private ImageCache imageCache;
+
+    /** 画像のURL。 */
+    private String baseUrl;
+
+    /** 次に要求する画像の番号。 */
+    private long sequence;
+
+    /**
+     * HTTPサーバを起動し、キャッシュを作成する。<br>
+     * JMHは最後の反復のアロケーション量をTearDownの後に集計し、スレッドが終了するとJVM全体のアロケーション量が
+     * 減る場合がある。そのため、HTTPサーバ、{@link ImageExecutor}のデーモンスレッドは停止せず、フォークの終了に任せる。
+     * 
+     * @throws IOException 起動に失敗した場合
+     */
+    @Setup
+    public void setup() throws IOException {
+        final byte[] data = Files.image(SIZE, SIZE, length);
+        // 小さい応答がNagleアルゴリズムと遅延ACKで40ms待たされないようにする
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Type", "image/png");
+                exchange.sendResponseHeaders(200, data.length);
+                final OutputStream out = exchange.getResponseBody();
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+        });
+        server.setExecutor(Executors.newFixedThreadPool(SERVER_THREADS, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                final Thread thread = new Thread(r, "HttpStub");
+                thread.setDaemon(true);
+                return thread;
+            }
+        }));
+        server.start();
+        baseUrl = "http://127.0.0.1:" + server.getAddress().getPort() + "/image.png?n=";
+
+        pipeline = new ImagePipeline(new ImageExecutor());
+        if ("disk".equals(target)) {
+            final File cacheDir = Files.createTempDir("download");
+            Files.deleteOnExit(cacheDir);
+            imageCache = new ImageCache(cacheDir, 1024 * 1024, 64L * 1024 * 1024);
+        }
+    }
+
+    /**
+     * 画像を取得する。
+     * 
+     * @return 取得したBitmap
+     */
+    @Benchmark
+    public Bitmap load() {
+        final Bitmap bitmap = pipeline.load(baseUrl + sequence++, imageCache, null);
+        if (bitmap == null) {
+            throw new IllegalStateException("download failed");
+        }
+        return bitmap;
+    }
+}
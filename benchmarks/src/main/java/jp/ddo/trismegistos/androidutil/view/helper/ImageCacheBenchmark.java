@@ -0,0 +1,169 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link ImageCache#getImage(String, int, int)}、
+ * {@link ImageCache#saveBitmap(String, int, int, Bitmap)}を複数スレッドから同時に呼び出した場合のベンチマーク。<br>
+ * ファイルキャッシュは使用せず、メモリキャッシュとBitmapのプールの排他のみを計測する。
+ * キー数がキャッシュに収まらない場合は、追い出しと再登録が繰り返される。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImageCacheBenchmark {
+
+    /** メモリキャッシュサイズ(Byte)。 */
+    private static final int CACHE_SIZE = 8 * 1024 * 1024;
+
+    /** Bitmapの幅、高さ(px)。1枚16KB。 */
+    private static final int SIZE = 64;
+
+    /** 要求サイズ(px)。 */
+    private static final int REQ_SIZE = 64;
+
+    /** URLの数。256はキャッシュに収まり、2048は収まらない。 */
+    @Param({
+            "256", "2048"
+    })
+    public int keys;
+
+    /** Bitmapのプールを使用する場合はtrue。 */
+    @Param({
+            "false", "true"
+    })
+    public boolean pooled;
+
+    /** 計測対象のキャッシュ。 */
+    ImageCache imageCache;
+
+    /** Bitmapのプール。使用しない場合はnull。 */
+    BitmapPool pool;
+
+    /** URL。 */
+    String[] urls;
+
+    /**
+     * キャッシュを作成し、全てのURLのBitmapを登録する。
+     */
+    @Setup
+    public void setup() {
+        imageCache = new ImageCache(null, CACHE_SIZE, 0L);
+        if (pooled) {
+            pool = new BitmapPool(CACHE_SIZE / 4);
+            imageCache.setBitmapPool(pool);
+        }
+        urls = new String[keys];
+        for (int i = 0; i < keys; i++) {
+            urls[i] = "http://example.com/images/" + i + ".png";
+            imageCache.saveBitmap(urls[i], REQ_SIZE, REQ_SIZE, newBitmap());
+        }
+    }
+
+    /**
+     * スレッドごとに異なる順序でURLを選ぶ。
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+
+        /** 乱数の状態。 */
+        private int seed = System.identityHashCode(this) | 1;
+
+        /**
+         * 次のURLの添字を取得する。
+         * 
+         * @param bound 上限
+         * @return 添字
+         */
+        int next(final int bound) {
+            seed ^= seed << 13;
+            seed ^= seed >>> 17;
+            seed ^= seed << 5;
+            return (seed & Integer.MAX_VALUE) % bound;
+        }
+    }
+
+    /**
+     * 4スレッドで取得のみを行う。
+     * 
+     * @param cursor URLの選択
+     * @return 取得したBitmap
+     */
+    @Benchmark
+    @Threads(4)
+    public Bitmap getOnly(final Cursor cursor) {
+        return get(cursor);
+    }
+
+    /**
+     * 3スレッドの取得と1スレッドの保存を同時に行う。取得側。
+     * 
+     * @param cursor URLの選択
+     * @return 取得したBitmap
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(3)
+    public Bitmap mixedGet(final Cursor cursor) {
+        return get(cursor);
+    }
+
+    /**
+     * 3スレッドの取得と1スレッドの保存を同時に行う。保存側。<br>
+     * デコード直後のBitmapを保存する場合と同じく、毎回新しいBitmapを保存する。
+     * 
+     * @param cursor URLの選択
+     */
+    @Benchmark
+    @Group("mixed")
+    @GroupThreads(1)
+    public void mixedSave(final Cursor cursor) {
+        imageCache.saveBitmap(urls[cursor.next(keys)], REQ_SIZE, REQ_SIZE, newBitmap());
+    }
+
+    /**
+     * Bitmapを取得し、プールを使用している場合は使用中を解除する。
+     * 
+     * @param cursor URLの選択
+     * @return 取得したBitmap
+     */
+    private Bitmap get(final Cursor cursor) {
+        final Bitmap bitmap = imageCache.getImage(urls[cursor.next(keys)], REQ_SIZE, REQ_SIZE);
+        if (bitmap != null && pool != null) {
+            pool.release(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * 保存するBitmapを作成する。
+     * 
+     * @return Bitmap
+     */
+    private static Bitmap newBitmap() {
+        return Bitmap.createBitmap(SIZE, SIZE, Bitmap.Config.ARGB_8888);
+    }
+}
@@ -0,0 +1,132 @@
+package jp.ddo.trismegistos.androidutil.file;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link FileWalker}のテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class FileWalkerTest {
+
+    /** 深い階層の深さ。 */
+    private static final int DEPTH = 512;
+
+    /** 各階層のファイル数。 */
+    private static final int FILES_PER_DIR = 8;
+
+    /** 計測の繰り返し回数。最も速い結果で比較する。 */
+    private static final int RUNS = 3;
+
+    /** テスト用のディレクトリ。 */
+    private File tmp;
+
+    /**
+     * テスト用のディレクトリを作成する。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Before
+    public void setUp() throws IOException {
+        tmp = Files.createTempDir("walker");
+    }
+
+    /**
+     * テスト用のディレクトリを削除する。
+     */
+    @After
+    public void tearDown() {
+        Files.deleteRecursive(tmp);
+    }
+
+    /**
+     * 深い階層のサイズを合計し、全て削除できること。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Test
+    public void deepTree() throws IOException {
+        final File root = createChain("root");
+        assertEquals((long) DEPTH * FILES_PER_DIR * 64, FileUtil.size(root));
+        assertTrue(FileUtil.deleteAll(root));
+        assertFalse(root.exists());
+    }
+
+    /**
+     * 512階層のディレクトリの走査が、1スレッドの再帰削除と同程度の時間で完了すること。<br>
+     * ディレクトリごとにパス全体を正規化すると階層の深さの2乗に比例して遅くなる。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Test
+    public void deepTreeIsNotQuadratic() throws IOException {
+        long walker = Long.MAX_VALUE;
+        long recursive = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            final File a = createChain("a" + i);
+            final File b = createChain("b" + i);
+            long start = System.nanoTime();
+            assertTrue(FileUtil.deleteAll(a));
+            walker = Math.min(walker, System.nanoTime() - start);
+            start = System.nanoTime();
+            assertTrue(Files.deleteRecursive(b));
+            recursive = Math.min(recursive, System.nanoTime() - start);
+        }
+        assertTrue("deleteAll " + walker / 1000000 + "ms, recursive " + recursive / 1000000
+                + "ms", walker <= recursive * 4 + 100 * 1000000L);
+    }
+
+    /**
+     * シンボリックリンクのディレクトリは辿らず、リンクのみ削除すること。
+     * 
+     * @throws Exception 作成に失敗した場合
+     */
+    @Test
+    public void symlinkIsNotFollowed() throws Exception {
+        final File outside = new File(tmp, "outside");
+        assertTrue(outside.mkdir());
+        final File kept = new File(outside, "kept");
+        Files.write(kept, new byte[16]);
+        final File root = createChain("root");
+        final File link = new File(root, "link");
+        java.nio.file.Files.createSymbolicLink(link.toPath(), outside.toPath());
+
+        assertEquals((long) DEPTH * FILES_PER_DIR * 64 + link.length(), FileUtil.size(root));
+        assertTrue(FileUtil.deleteAll(root));
+        assertFalse(root.exists());
+        assertTrue(kept.exists());
+    }
+
+    /**
+     * 一直線の深いディレクトリ階層を作成する。
+     * 
+     * @param name 起点のディレクトリ名
+     * @return 起点のディレクトリ
+     * @throws IOException 作成に失敗した場合
+     */
+    private File createChain(final String name) throws IOException {
+        final File root = new File(tmp, name);
+        final byte[] data = new byte[64];
+        File dir = root;
+        for (int level = 0; level < DEPTH; level++) {
+            assertTrue(dir.mkdirs());
+            for (int i = 0; i < FILES_PER_DIR; i++) {
+                Files.write(new File(dir, "f" + i), data);
+            }
+            dir = new File(dir, "d");
+        }
+        return root;
+    }
+}
@@ -0,0 +1,112 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * テスト用のローカルのHTTPサーバ。<br>
+ * 応答は{@link #setHandler(HttpHandler)}で設定し、受け付けたリクエストヘッダを記録する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+class HttpStub {
+
+    /** HTTPサーバ。 */
+    private final HttpServer server;
+
+    /** 応答を返す処理。 */
+    private volatile HttpHandler handler;
+
+    /** 受け付けたリクエストヘッダ。 */
+    private final List<Headers> requests = Collections.synchronizedList(new ArrayList<Headers>());
+
+    /**
+     * コンストラクタ。ループバックアドレスの空いているポートで起動する。
+     * 
+     * @throws IOException 起動に失敗した場合
+     */
+    HttpStub() throws IOException {
+        // 小さい応答がNagleアルゴリズムと遅延ACKで40ms待たされないようにする
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                requests.add(exchange.getRequestHeaders());
+                try {
+                    handler.handle(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.start();
+    }
+
+    /**
+     * 応答を返す処理を設定する。
+     * 
+     * @param handler 応答を返す処理
+     */
+    void setHandler(final HttpHandler handler) {
+        this.handler = handler;
+    }
+
+    /**
+     * パスのURLを取得する。
+     * 
+     * @param path パス
+     * @return URL
+     */
+    String url(final String path) {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + path;
+    }
+
+    /**
+     * 受け付けたリクエストヘッダを取得する。
+     * 
+     * @return 受け付けた順のリクエストヘッダ
+     */
+    List<Headers> getRequests() {
+        return requests;
+    }
+
+    /**
+     * サーバを停止する。
+     */
+    void stop() {
+        server.stop(0);
+    }
+
+    /**
+     * 本文を送信する。
+     * 
+     * @param exchange 通信
+     * @param code ステータスコード
+     * @param data 本文
+     * @param offset 本文の開始位置
+     * @param length 本文の長さ
+     * @throws IOException 送信に失敗した場合
+     */
+    static void send(final HttpExchange exchange, final int code, final byte[] data,
+            final int offset, final int length) throws IOException {
+        exchange.sendResponseHeaders(code, length);
+        final OutputStream out = exchange.getResponseBody();
+        try {
+            out.write(data, offset, length);
+        } finally {
+            out.close();
+        }
+    }
+}
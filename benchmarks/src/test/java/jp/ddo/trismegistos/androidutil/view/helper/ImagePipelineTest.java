@@ -0,0 +1,104 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link ImagePipeline}のテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class ImagePipelineTest {
+
+    /** 画像処理用のExecutor。 */
+    private ImageExecutor executor;
+
+    /** テスト対象。 */
+    private ImagePipeline pipeline;
+
+    /** 取得を要求されたURL。 */
+    private final List<String> fetched = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * ネットワークI/O用スレッドが1つのパイプラインを作成する。
+     */
+    @Before
+    public void setUp() {
+        executor = new ImageExecutor(1, 1, 16);
+        pipeline = new ImagePipeline(executor);
+        pipeline.setFetcher(new HttpFetcher() {
+            @Override
+            public Response get(final String url, final Map<String, String> headers)
+                    throws IOException {
+                fetched.add(url);
+                throw new IOException("stub");
+            }
+        });
+    }
+
+    /**
+     * Executorを停止する。
+     */
+    @After
+    public void tearDown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 低い優先度の処理に高い優先度の要求が合流した場合、待ち行列の順番が引き上げられること。
+     * 
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    @Test
+    public void joinRaisesPriority() throws InterruptedException {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.executeNetwork(new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }, ImageExecutor.PRIORITY_HIGH);
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+
+        final CountDownLatch done = new CountDownLatch(3);
+        final ImagePipeline.Callback callback = new ImagePipeline.Callback() {
+            @Override
+            public void onComplete(final ImagePipeline.ImageRequest request,
+                    final Bitmap bitmap) {
+                done.countDown();
+            }
+        };
+        pipeline.submit("http://example.com/a", null, null, 0, 0, ImageExecutor.PRIORITY_LOW,
+                callback);
+        pipeline.submit("http://example.com/b", null, null, 0, 0,
+                ImageExecutor.PRIORITY_NORMAL, callback);
+        pipeline.submit("http://example.com/a", null, null, 0, 0, ImageExecutor.PRIORITY_HIGH,
+                callback);
+        release.countDown();
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("http://example.com/a", "http://example.com/b"), fetched);
+    }
+}
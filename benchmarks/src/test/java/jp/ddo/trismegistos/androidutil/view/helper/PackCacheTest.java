@@ -0,0 +1,141 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * {@link PackCache}のテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class PackCacheTest {
+
+    /** 最大キャッシュサイズ。 */
+    private static final long MAX_SIZE = 1024 * 1024;
+
+    /** キャッシュディレクトリ。 */
+    private File dir;
+
+    /**
+     * キャッシュディレクトリを作成する。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDir("pack");
+    }
+
+    /**
+     * キャッシュディレクトリを削除する。
+     */
+    @After
+    public void tearDown() {
+        Files.deleteRecursive(dir);
+    }
+
+    /**
+     * 改行で終わっていない最後の行は読み込まず、それ以前のエントリを残すこと。
+     * 
+     * @throws IOException 書き込みに失敗した場合
+     */
+    @Test
+    public void tornLastLine() throws IOException {
+        populate(3);
+        append("META k0 0 0 etag ");
+
+        final PackCache cache = new PackCache(dir, MAX_SIZE);
+        assertEquals(3, cache.count());
+        assertNotNull(cache.get("k2", "http://example.com/2"));
+        assertNull(cache.readMetadata("k0").getEtag());
+        cache.close();
+        assertJournalRebuilt(3);
+    }
+
+    /**
+     * 不正な行で読み込みを止め、それ以前のエントリを残すこと。
+     * 
+     * @throws IOException 書き込みに失敗した場合
+     */
+    @Test
+    public void malformedLine() throws IOException {
+        populate(2);
+        append("PUT k2 0 x 64 0 0 0 - - http://example.com/2\nREMOVE k0\n");
+
+        final PackCache cache = new PackCache(dir, MAX_SIZE);
+        assertEquals(2, cache.count());
+        assertNotNull(cache.get("k0", "http://example.com/0"));
+        cache.close();
+        assertJournalRebuilt(2);
+    }
+
+    /**
+     * ヘッダが不正な場合はキャッシュを破棄すること。
+     * 
+     * @throws IOException 書き込みに失敗した場合
+     */
+    @Test
+    public void corruptHeader() throws IOException {
+        populate(2);
+        Files.write(new File(dir, PackCache.JOURNAL_FILE), "broken\n".getBytes("UTF-8"));
+
+        final PackCache cache = new PackCache(dir, MAX_SIZE);
+        assertEquals(0, cache.count());
+        assertEquals(0, cache.size());
+        cache.close();
+    }
+
+    /**
+     * キャッシュを作成し、エントリを登録して閉じる。
+     * 
+     * @param count エントリ数
+     */
+    private void populate(final int count) {
+        final PackCache cache = new PackCache(dir, MAX_SIZE);
+        final byte[] data = Files.image(8, 8, 64);
+        for (int i = 0; i < count; i++) {
+            cache.put("k" + i, "http://example.com/" + i, data, data.length, null);
+        }
+        cache.close();
+    }
+
+    /**
+     * ジャーナルに追記する。
+     * 
+     * @param text 追記する文字列
+     * @throws IOException 書き込みに失敗した場合
+     */
+    private void append(final String text) throws IOException {
+        final OutputStream out = new FileOutputStream(new File(dir, PackCache.JOURNAL_FILE),
+                true);
+        try {
+            out.write(text.getBytes("UTF-8"));
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * ジャーナルが読み込めたエントリのみで作り直されていることを確認する。
+     * 
+     * @param count エントリ数
+     */
+    private void assertJournalRebuilt(final int count) {
+        final PackCache cache = new PackCache(dir, MAX_SIZE);
+        assertEquals(count, cache.count());
+        cache.close();
+    }
+}
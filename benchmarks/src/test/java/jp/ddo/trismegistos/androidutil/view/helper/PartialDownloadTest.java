@@ -0,0 +1,246 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * {@link PartialDownload}を使用した、ローカルディレクトリへの続きからのダウンロードのテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class PartialDownloadTest {
+
+    /** 画像のバイト数。 */
+    private static final int LENGTH = 64 * 1024;
+
+    /** 受信済みのバイト数。 */
+    private static final int RECEIVED = 20000;
+
+    /** 受信途中のファイルの取得時のETag。 */
+    private static final String ETAG = "\"v1\"";
+
+    /** 画像データ。 */
+    private final byte[] image = Files.image(16, 16, LENGTH);
+
+    /** HTTPサーバ。 */
+    private HttpStub server;
+
+    /** 画像処理用のExecutor。 */
+    private ImageExecutor executor;
+
+    /** テスト対象。 */
+    private ImagePipeline pipeline;
+
+    /** 保存先のディレクトリ。 */
+    private File dir;
+
+    /** 保存先のファイル。 */
+    private File file;
+
+    /** 受信途中のファイル。 */
+    private File partFile;
+
+    /** 受信途中のファイルのメタデータ。 */
+    private File metaFile;
+
+    /**
+     * HTTPサーバ、保存先のディレクトリを作成する。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Before
+    public void setUp() throws IOException {
+        server = new HttpStub();
+        executor = new ImageExecutor();
+        pipeline = new ImagePipeline(executor);
+        dir = Files.createTempDir("partial");
+        file = new File(dir, "image.png");
+        partFile = new File(dir, "image.png.part");
+        metaFile = new File(dir, "image.png.part.meta");
+    }
+
+    /**
+     * HTTPサーバを停止し、保存先のディレクトリを削除する。
+     */
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        server.stop();
+        Files.deleteRecursive(dir);
+    }
+
+    /**
+     * 206の場合、If-Rangeを付けて続きのみを受信し、受信済みのデータと合わせて保存すること。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Test
+    public void resumeWithPartialContent() throws IOException {
+        writePart(Arrays.copyOf(image, RECEIVED), ETAG);
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (("bytes=" + RECEIVED + "-").equals(exchange.getRequestHeaders().getFirst(
+                        "Range")) == false) {
+                    HttpStub.send(exchange, 200, image, 0, LENGTH);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Range",
+                        "bytes " + RECEIVED + "-" + (LENGTH - 1) + "/" + LENGTH);
+                HttpStub.send(exchange, 206, image, RECEIVED, LENGTH - RECEIVED);
+            }
+        });
+
+        assertNotNull(load());
+        final Headers request = server.getRequests().get(0);
+        assertEquals("bytes=" + RECEIVED + "-", request.getFirst("Range"));
+        assertEquals(ETAG, request.getFirst("If-Range"));
+        assertArrayEquals(image, read(file));
+        assertFalse(partFile.exists());
+        assertFalse(metaFile.exists());
+    }
+
+    /**
+     * If-Rangeが一致せず200が返された場合、受信途中のファイルを破棄して先頭から受信し直すこと。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Test
+    public void restartWithOk() throws IOException {
+        final byte[] stale = new byte[RECEIVED];
+        Arrays.fill(stale, (byte) 0x55);
+        writePart(stale, "\"old\"");
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                HttpStub.send(exchange, 200, image, 0, LENGTH);
+            }
+        });
+
+        assertNotNull(load());
+        assertEquals("\"old\"", server.getRequests().get(0).getFirst("If-Range"));
+        assertArrayEquals(image, read(file));
+        assertFalse(partFile.exists());
+        assertFalse(metaFile.exists());
+    }
+
+    /**
+     * 416の場合、続きを要求できないため受信途中のファイルを破棄すること。
+     * 
+     * @throws IOException 作成に失敗した場合
+     */
+    @Test
+    public void discardOnRangeNotSatisfiable() throws IOException {
+        writePart(new byte[LENGTH + 1], ETAG);
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + LENGTH);
+                exchange.sendResponseHeaders(416, -1);
+            }
+        });
+
+        assertNull(load());
+        assertEquals("bytes=" + (LENGTH + 1) + "-",
+                server.getRequests().get(0).getFirst("Range"));
+        assertFalse(file.exists());
+        assertFalse(partFile.exists());
+        assertFalse(metaFile.exists());
+    }
+
+    /**
+     * Content-MD5が一致しない場合、保存せず受信途中のファイルも破棄すること。
+     * 
+     * @throws Exception 作成に失敗した場合
+     */
+    @Test
+    public void discardOnContentMd5Mismatch() throws Exception {
+        final byte[] other = Arrays.copyOf(image, LENGTH);
+        other[LENGTH - 1] ^= 1;
+        final String md5 = java.util.Base64.getEncoder().encodeToString(
+                MessageDigest.getInstance("MD5").digest(other));
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Content-MD5", md5);
+                HttpStub.send(exchange, 200, image, 0, LENGTH);
+            }
+        });
+
+        assertNull(load());
+        assertFalse(file.exists());
+        assertFalse(partFile.exists());
+        assertFalse(metaFile.exists());
+    }
+
+    /**
+     * 画像をローカルディレクトリに取得する。
+     * 
+     * @return 画像のBitmap。取得に失敗した場合はnull
+     */
+    private Bitmap load() {
+        return pipeline.load(server.url("/image.png"), null, dir);
+    }
+
+    /**
+     * 受信途中のファイルとメタデータを作成する。
+     * 
+     * @param data 受信済みのデータ
+     * @param etag 取得時のETag
+     * @throws IOException 作成に失敗した場合
+     */
+    private void writePart(final byte[] data, final String etag) throws IOException {
+        Files.write(partFile, data);
+        new CacheMetadata(etag, null, 0, LENGTH).write(metaFile);
+    }
+
+    /**
+     * ファイルを全て読み込む。
+     * 
+     * @param target ファイル
+     * @return ファイルの内容
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static byte[] read(final File target) throws IOException {
+        final byte[] data = new byte[(int) target.length()];
+        final InputStream in = new FileInputStream(target);
+        try {
+            int length = 0;
+            while (length < data.length) {
+                final int len = in.read(data, length, data.length - length);
+                if (len == -1) {
+                    throw new IOException("unexpected end of file.");
+                }
+                length += len;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+}
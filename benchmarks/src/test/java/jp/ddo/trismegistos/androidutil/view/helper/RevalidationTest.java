@@ -0,0 +1,198 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import jp.ddo.trismegistos.androidutil.benchmark.Files;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+
+/**
+ * 有効期限の切れたファイルキャッシュを、{@link ImagePipeline}が条件付きリクエストで再検証するテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class RevalidationTest {
+
+    /** 最初に取得する画像のETag。 */
+    private static final String ETAG = "\"v1\"";
+
+    /** 最初に取得する画像。 */
+    private final byte[] image = Files.image(16, 16, 4096);
+
+    /** 更新後の画像。 */
+    private final byte[] updated = Files.image(32, 32, 8192);
+
+    /** HTTPサーバ。 */
+    private HttpStub server;
+
+    /** 画像処理用のExecutor。 */
+    private ImageExecutor executor;
+
+    /** テスト対象。 */
+    private ImagePipeline pipeline;
+
+    /** キャッシュディレクトリ。 */
+    private File dir;
+
+    /** キャッシュ管理オブジェクト。 */
+    private ImageCache imageCache;
+
+    /** 画像のURL。 */
+    private String url;
+
+    /**
+     * HTTPサーバ、キャッシュを作成し、有効期限切れの状態でファイルキャッシュに保存する。
+     * 
+     * @throws Exception 作成に失敗した場合
+     */
+    @Before
+    public void setUp() throws Exception {
+        server = new HttpStub();
+        executor = new ImageExecutor();
+        pipeline = new ImagePipeline(executor);
+        dir = Files.createTempDir("revalidation");
+        imageCache = new ImageCache(dir, 1024 * 1024, 16L * 1024 * 1024);
+        url = server.url("/image.png");
+
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+                HttpStub.send(exchange, 200, image, 0, image.length);
+            }
+        });
+        assertNotNull(load());
+        assertTrue(imageCache.getMetadata(url).isExpired(System.currentTimeMillis()));
+    }
+
+    /**
+     * HTTPサーバを停止し、キャッシュディレクトリを削除する。
+     */
+    @After
+    public void tearDown() {
+        executor.shutdown();
+        server.stop();
+        Files.deleteRecursive(dir);
+    }
+
+    /**
+     * 304の場合、キャッシュファイルを使用し、メタデータの有効期限を更新すること。
+     * 
+     * @throws Exception 取得に失敗した場合
+     */
+    @Test
+    public void notModifiedRefreshesMetadata() throws Exception {
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (ETAG.equals(exchange.getRequestHeaders().getFirst("If-None-Match"))) {
+                    exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                HttpStub.send(exchange, 200, updated, 0, updated.length);
+            }
+        });
+
+        final Bitmap bitmap = load();
+        assertNotNull(bitmap);
+        assertEquals(16, bitmap.getWidth());
+        assertEquals(2, server.getRequests().size());
+        final CacheMetadata metadata = imageCache.getMetadata(url);
+        assertEquals(ETAG, metadata.getEtag());
+        assertFalse(metadata.isExpired(System.currentTimeMillis()));
+
+        // 有効期限内になったため、通信せずにファイルキャッシュから読み込む
+        assertNotNull(load());
+        assertEquals(2, server.getRequests().size());
+    }
+
+    /**
+     * 200の場合、受信した画像でキャッシュを置き換えること。
+     * 
+     * @throws Exception 取得に失敗した場合
+     */
+    @Test
+    public void okReplacesEntry() throws Exception {
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().set("ETag", "\"v2\"");
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+                HttpStub.send(exchange, 200, updated, 0, updated.length);
+            }
+        });
+
+        final Bitmap bitmap = load();
+        assertNotNull(bitmap);
+        assertEquals(32, bitmap.getWidth());
+        assertEquals(ETAG, server.getRequests().get(1).getFirst("If-None-Match"));
+        assertEquals("\"v2\"", imageCache.getMetadata(url).getEtag());
+        assertEquals(updated.length, imageCache.getCachedFile(url).length());
+    }
+
+    /**
+     * 304でもキャッシュファイルがチェックサムと一致しない場合は、条件を付けずに取得し直すこと。
+     * 
+     * @throws Exception 取得に失敗した場合
+     */
+    @Test
+    public void notModifiedWithCorruptFileRefetches() throws Exception {
+        final byte[] corrupt = image.clone();
+        corrupt[corrupt.length - 1] ^= 1;
+        Files.write(imageCache.getCachedFile(url), corrupt);
+        server.setHandler(new HttpHandler() {
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException {
+                if (exchange.getRequestHeaders().getFirst("If-None-Match") != null) {
+                    exchange.sendResponseHeaders(304, -1);
+                    return;
+                }
+                exchange.getResponseHeaders().set("ETag", ETAG);
+                exchange.getResponseHeaders().set("Cache-Control", "max-age=3600");
+                HttpStub.send(exchange, 200, image, 0, image.length);
+            }
+        });
+
+        assertNotNull(load());
+        assertEquals(3, server.getRequests().size());
+        assertNull(server.getRequests().get(2).getFirst("If-None-Match"));
+        assertTrue(imageCache.verifyCachedData(url, image, image.length));
+        assertFalse(imageCache.getMetadata(url).isExpired(System.currentTimeMillis()));
+    }
+
+    /**
+     * メモリキャッシュを破棄してから画像を取得する。<br>
+     * 結果の通知後も処理中の要求が一覧に残っている間は、次の要求が合流して通信しないため、取り除かれるまで待つ。
+     * 
+     * @return 画像のBitmap。取得に失敗した場合はnull
+     * @throws InterruptedException 待機中に割り込まれた場合
+     */
+    private Bitmap load() throws InterruptedException {
+        final ImageStats stats = ImageStats.getInstance();
+        final int idle = stats.snapshot().getInFlight();
+        imageCache.memoryCacheClear();
+        final Bitmap bitmap = pipeline.load(url, imageCache, null);
+        final long deadline = System.currentTimeMillis() + 10000;
+        while (stats.snapshot().getInFlight() > idle && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        return bitmap;
+    }
+}
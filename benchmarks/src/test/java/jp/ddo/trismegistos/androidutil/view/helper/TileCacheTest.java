@@ -0,0 +1,136 @@
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.junit.Test;
+
+import android.graphics.Bitmap;
+
+/**
+ * {@link TileLoader.TileCache}のテスト。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class TileCacheTest {
+
+    /** タイルの1辺(px)。 */
+    private static final int TILE_SIZE = 256;
+
+    /** キャッシュに収まるタイル数。 */
+    private static final int CAPACITY = 32;
+
+    /** 使用するタイルの種類。キャッシュに収まらない分は追い出される。 */
+    private static final int TILES = CAPACITY * 2;
+
+    /** 計測前に繰り返す回数。配列の拡張とJITコンパイルを済ませる。 */
+    private static final int WARMUP = 200000;
+
+    /** 計測する回数。 */
+    private static final int ITERATIONS = 200000;
+
+    /**
+     * 最も長く参照されていないタイルから追い出すこと。
+     */
+    @Test
+    public void evictsLeastRecentlyUsed() {
+        final Bitmap[] tiles = createTiles(3);
+        final TileLoader.TileCache cache = new TileLoader.TileCache(tiles[0].getRowBytes()
+                * TILE_SIZE * 2);
+        cache.put(key(0), tiles[0]);
+        cache.put(key(1), tiles[1]);
+        assertSame(tiles[0], cache.get(key(0)));
+        cache.put(key(2), tiles[2]);
+        assertNull(cache.get(key(1)));
+        assertSame(tiles[0], cache.get(key(0)));
+        assertSame(tiles[2], cache.get(key(2)));
+    }
+
+    /**
+     * 定常状態の取得、追加、追い出しでオブジェクトを生成しないこと。<br>
+     * 描画のたびに呼ばれるため、スクロール中のGCの原因にならないようにする。
+     */
+    @Test
+    public void steadyStateDoesNotAllocate() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        final long id = Thread.currentThread().getId();
+
+        final Bitmap[] tiles = createTiles(TILES);
+        final long[] keys = new long[TILES];
+        for (int i = 0; i < TILES; i++) {
+            keys[i] = key(i);
+        }
+        final TileLoader.TileCache cache = new TileLoader.TileCache(tiles[0].getRowBytes()
+                * TILE_SIZE * CAPACITY);
+        run(cache, tiles, keys, WARMUP);
+
+        // 計測自体のアロケーションを除くため、空の区間を先に計測しておく
+        final long start = threads.getThreadAllocatedBytes(id);
+        final long empty = threads.getThreadAllocatedBytes(id) - start;
+        final long before = threads.getThreadAllocatedBytes(id);
+        final int hits = run(cache, tiles, keys, ITERATIONS);
+        final long allocated = threads.getThreadAllocatedBytes(id) - before - empty;
+
+        assertNotNull(cache.get(keys[(ITERATIONS - 1) % TILES]));
+        assertEquals("allocated " + allocated + " bytes in " + ITERATIONS + " iterations, hits "
+                + hits, 0, allocated);
+    }
+
+    /**
+     * 描画時と同じく、タイルを取得し、無い場合は追加することを繰り返す。
+     * 
+     * @param cache キャッシュ
+     * @param tiles タイル
+     * @param keys タイルのキー
+     * @param iterations 繰り返す回数
+     * @return キャッシュにあった回数
+     */
+    private static int run(final TileLoader.TileCache cache, final Bitmap[] tiles,
+            final long[] keys, final int iterations) {
+        int hits = 0;
+        for (int i = 0; i < iterations; i++) {
+            // 近くのタイルを何度か参照しながら少しずつ移動し、追い出しも発生させる
+            final int tile = (i / 4 + (i & 3)) % TILES;
+            if (cache.get(keys[tile]) != null) {
+                hits++;
+            } else {
+                cache.put(keys[tile], tiles[tile]);
+            }
+        }
+        return hits;
+    }
+
+    /**
+     * タイルを作成する。
+     * 
+     * @param count タイル数
+     * @return タイル
+     */
+    private static Bitmap[] createTiles(final int count) {
+        final Bitmap[] tiles = new Bitmap[count];
+        for (int i = 0; i < count; i++) {
+            tiles[i] = Bitmap.createBitmap(TILE_SIZE, TILE_SIZE, Bitmap.Config.ARGB_8888);
+        }
+        return tiles;
+    }
+
+    /**
+     * タイルのキーを作成する。{@link TileLoader}と同じく縮小率、列、行を1つのlongにまとめる。
+     * 
+     * @param index タイルの番号
+     * @return キー
+     */
+    private static long key(final int index) {
+        return (1L << 56) | ((long) (index % 8) << 28) | (index / 8);
+    }
+}
@@ -0,0 +1,224 @@
+
+package jp.ddo.trismegistos.androidutil.file;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * ファイル操作を専用のI/O用スレッドで行うUtilクラス。<br>
+ * 各メソッドは{@link FileUtil}の同名のメソッドをバックグラウンドで実行し、すぐに戻る。
+ * 結果は戻り値のFutureで取得するか、{@link Callback}でUIスレッドに通知を受ける。
+ * 処理が例外で終了した場合も{@link Callback#onError(Throwable)}で通知する。<br>
+ * UIスレッドや起動処理でファイルI/Oを行わないために使用する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class AsyncFileUtil {
+
+    /** タグ。 */
+    private static final String TAG = AsyncFileUtil.class.getSimpleName();
+
+    /** I/O用スレッド数。 */
+    private static final int THREADS = 2;
+
+    /** I/O用のスレッドプール。 */
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        final AtomicInteger count = new AtomicInteger();
+        EXECUTOR = new ThreadPoolExecutor(THREADS, THREADS, 0L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, TAG + "#" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /** UIスレッドのHandler。 */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /**
+     * プライベートコンストラクタ。
+     */
+    private AsyncFileUtil() {
+    }
+
+    /**
+     * 指定したディレクトリを作成する。
+     * 
+     * @param dir ディレクトリのパス
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果。{@link FileUtil#mkdir(File)}と同じ
+     */
+    public static Future<Boolean> mkdir(final File dir, final Callback<Boolean> callback) {
+        return execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return FileUtil.mkdir(dir);
+            }
+        }, callback);
+    }
+
+    /**
+     * 指定したファイルorディレクトリを削除する。
+     * 
+     * @param file 削除するファイルorディレクトリ
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果。{@link FileUtil#deleteAll(File)}と同じ
+     */
+    public static Future<Boolean> deleteAll(final File file, final Callback<Boolean> callback) {
+        return execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return FileUtil.deleteAll(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * 指定したファイルorディレクトリ配下のファイルサイズの合計を取得する。
+     * 
+     * @param file ファイルorディレクトリ
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果。{@link FileUtil#size(File)}と同じ
+     */
+    public static Future<Long> size(final File file, final Callback<Long> callback) {
+        return execute(new Callable<Long>() {
+            @Override
+            public Long call() {
+                return FileUtil.size(file);
+            }
+        }, callback);
+    }
+
+    /**
+     * データを一時ファイルに書き込んでから置き換える。
+     * 
+     * @param file 書き込み先のファイル
+     * @param data データ。書き込み完了まで変更しないこと
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果。{@link FileUtil#writeAtomic(File, byte[])}と同じ
+     */
+    public static Future<Boolean> writeAtomic(final File file, final byte[] data,
+            final Callback<Boolean> callback) {
+        return execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return FileUtil.writeAtomic(file, data);
+            }
+        }, callback);
+    }
+
+    /**
+     * ファイルをコピーする。
+     * 
+     * @param src コピー元のファイル
+     * @param dest コピー先のファイル
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果。{@link FileUtil#copy(File, File)}と同じ
+     */
+    public static Future<Boolean> copy(final File src, final File dest,
+            final Callback<Boolean> callback) {
+        return execute(new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return FileUtil.copy(src, dest);
+            }
+        }, callback);
+    }
+
+    /**
+     * 処理をI/O用のスレッドプールに登録する。<br>
+     * 完了後、キャンセルされていなければ成功、失敗にかかわらずUIスレッドで通知する。
+     * 
+     * @param <T> 結果の型
+     * @param callable 処理
+     * @param callback 完了の通知先。不要な場合はnull
+     * @return 結果
+     */
+    private static <T> Future<T> execute(final Callable<T> callable, final Callback<T> callback) {
+        final FutureTask<T> task = new FutureTask<T>(callable) {
+            @Override
+            protected void done() {
+                if (callback == null || isCancelled()) {
+                    return;
+                }
+                HANDLER.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(callback);
+                    }
+                });
+            }
+
+            /**
+             * 完了済みの結果を通知する。
+             * 
+             * @param c 通知先
+             */
+            private void deliver(final Callback<T> c) {
+                final T result;
+                try {
+                    result = get();
+                } catch (final ExecutionException e) {
+                    c.onError(e.getCause());
+                    return;
+                } catch (final InterruptedException e) {
+                    // 完了済みのため待機しない
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                c.onComplete(result);
+            }
+        };
+        EXECUTOR.execute(task);
+        return task;
+    }
+
+    /**
+     * ファイル操作の完了の通知を受けるインタフェース。
+     * 
+     * @param <T> 結果の型
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    public interface Callback<T> {
+
+        /**
+         * ファイル操作が完了した際に、UIスレッドで呼ばれる。
+         * 
+         * @param result 結果
+         */
+        void onComplete(T result);
+
+        /**
+         * ファイル操作が例外で終了した際に、UIスレッドで呼ばれる。
+         * 
+         * @param e 例外
+         */
+        void onError(Throwable e);
+    }
+}
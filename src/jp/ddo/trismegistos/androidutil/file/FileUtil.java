@@ -2,12 +2,18 @@
 package jp.ddo.trismegistos.androidutil.file;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 import android.os.Environment;
 import android.util.Log;
 
 /**
- * ファイル操作のUtilクラス。
+ * ファイル操作のUtilクラス。<br>
+ * 各メソッドは呼び出したスレッドでファイルI/Oを行う。UIスレッドからは{@link AsyncFileUtil}を使用すること。
  * 
  * @author y_sugasawa
  * @since 2013/01/29
@@ -20,6 +26,15 @@ public class FileUtil {
     /** ファイル区切り文字。 */
     public static final String FILE_SEPARATOR = System.getProperty("file.separator");
 
+    /** 書き込み中の一時ファイル名に付ける接尾辞。一時ファイル名は同時に書き込んでも重複しないよう都度生成する。 */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** コピー用バッファサイズ。 */
+    private static final int BUFFER_SIZE = 8192;
+
+    /** 削除待ちのファイル、ディレクトリ名に付ける接尾辞。 */
+    public static final String TRASH_SUFFIX = ".trash";
+
     /**
      * プライベートコンストラクタ。
      */
@@ -53,29 +68,228 @@ public class FileUtil {
     }
 
     /**
-     * 指定したファイルorディレクトリを削除する。
+     * 指定したファイルorディレクトリを削除する。<br>
+     * ディレクトリの場合は{@link FileWalker}で並列に削除し、完了するまで待つ。
      * 
-     * @param file
+     * @param file 削除するファイルorディレクトリ
      * @return 全て削除成功ならばtrue、それ以外はfalse
      */
     public static boolean deleteAll(final File file) {
-        boolean isSuccess = true;
-        if (file.isFile()) {
-            if (file.delete() == false) {
-                Log.e(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
-                isSuccess = false;
+        if (file == null) {
+            return false;
+        }
+        if (file.isDirectory() == false) {
+            return FileWalker.DELETE.visitFile(file) >= 0;
+        }
+        try {
+            return FileWalker.getInstance().delete(file, null).await();
+        } catch (final InterruptedException e) {
+            Log.w(TAG, "DELETE file is Interrupted. path is " + file.getAbsolutePath());
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * 指定したファイルorディレクトリを、別名に変更してからバックグラウンドで削除する。<br>
+     * 別名への変更は即座に完了するため、呼び出し元は削除の完了を待たずに同じパスを再作成できる。<br>
+     * 別名に変更できなかった場合は、そのままバックグラウンドで削除する。
+     * 
+     * @param file 削除するファイルorディレクトリ
+     * @param listener 削除完了の通知先。不要な場合はnull
+     * @return 削除の状態。ファイルが存在しない場合はnull
+     */
+    public static FileWalker.Walk deleteAllInBackground(final File file,
+            final FileWalker.Listener listener) {
+        if (file == null || file.exists() == false) {
+            return null;
+        }
+        final File trash = moveToTrash(file);
+        return FileWalker.getInstance().delete(trash != null ? trash : file, listener);
+    }
+
+    /**
+     * 指定したファイルorディレクトリを、削除待ちの別名に変更する。<br>
+     * 別名は同じディレクトリ内に作成するため、ファイル数に関わらずすぐに完了する。
+     * 
+     * @param file ファイルorディレクトリ
+     * @return 変更後のファイルorディレクトリ。変更できなかった場合はnull
+     */
+    public static File moveToTrash(final File file) {
+        final File trash = new File(file.getParentFile(), file.getName() + TRASH_SUFFIX
+                + System.nanoTime());
+        if (file.renameTo(trash) == false) {
+            Log.w(TAG, "RENAME file is Failed. path is " + file.getAbsolutePath());
+            return null;
+        }
+        return trash;
+    }
+
+    /**
+     * {@link #deleteAllInBackground(File, FileWalker.Listener)}で削除しきれずに残った
+     * ファイルorディレクトリを、バックグラウンドで削除する。<br>
+     * 削除中にプロセスが終了した場合の後始末に使用する。
+     * 
+     * @param file 削除したファイルorディレクトリの元のパス
+     */
+    public static void deleteTrash(final File file) {
+        final File parent = file.getParentFile();
+        final String[] names = parent != null ? parent.list() : null;
+        if (names == null) {
+            return;
+        }
+        final String prefix = file.getName() + TRASH_SUFFIX;
+        for (final String name : names) {
+            if (name.startsWith(prefix)) {
+                FileWalker.getInstance().delete(new File(parent, name), null);
             }
-        } else if (file.isDirectory()) {
-            for (File f : file.listFiles()) {
-                if (deleteAll(f) == false) {
-                    isSuccess = false;
+        }
+    }
+
+    /**
+     * 指定したファイルorディレクトリ配下のファイルサイズの合計を取得する。<br>
+     * ディレクトリの場合は{@link FileWalker}で並列に走査し、完了するまで待つ。
+     * 
+     * @param file ファイルorディレクトリ
+     * @return ファイルサイズの合計(Byte)。存在しない場合は0
+     */
+    public static long size(final File file) {
+        if (file == null || file.exists() == false) {
+            return 0L;
+        }
+        if (file.isDirectory() == false) {
+            return file.length();
+        }
+        final FileWalker.Walk walk = FileWalker.getInstance().size(file, null);
+        try {
+            walk.await();
+        } catch (final InterruptedException e) {
+            walk.cancel();
+            Thread.currentThread().interrupt();
+        }
+        return walk.getBytes();
+    }
+
+    /**
+     * データをファイルに書き込む。<br>
+     * 同じディレクトリの一時ファイルに書き込んでから置き換えるため、書き込み途中で終了しても
+     * 元のファイルが壊れることはない。一時ファイル名は呼び出しごとに異なるため、同じファイルに同時に書き込んでも
+     * 互いの一時ファイルを上書きせず、最後に置き換えた内容が残る。
+     * 
+     * @param file 書き込み先のファイル
+     * @param data データ
+     * @return 書き込みに成功した場合はtrue
+     */
+    public static boolean writeAtomic(final File file, final byte[] data) {
+        final File parent = file.getAbsoluteFile().getParentFile();
+        if (parent != null && mkdir(parent) == false) {
+            Log.e(TAG, "CREATE directory is Failed. path is " + parent.getAbsolutePath());
+            return false;
+        }
+        File temp = null;
+        try {
+            temp = createTempFile(file);
+            final FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(data);
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "WRITE file is Failed. path is " + file.getAbsolutePath() + ", "
+                    + e.getMessage());
+            if (temp != null) {
+                temp.delete();
+            }
+            return false;
+        }
+        return replace(temp, file);
+    }
+
+    /**
+     * ファイルをコピーする。<br>
+     * {@link #writeAtomic(File, byte[])}と同じく、一時ファイルにコピーしてから置き換える。
+     * 
+     * @param src コピー元のファイル
+     * @param dest コピー先のファイル
+     * @return コピーに成功した場合はtrue
+     */
+    public static boolean copy(final File src, final File dest) {
+        final File parent = dest.getAbsoluteFile().getParentFile();
+        if (parent != null && mkdir(parent) == false) {
+            Log.e(TAG, "CREATE directory is Failed. path is " + parent.getAbsolutePath());
+            return false;
+        }
+        File temp = null;
+        try {
+            temp = createTempFile(dest);
+            final InputStream in = new FileInputStream(src);
+            try {
+                final FileOutputStream out = new FileOutputStream(temp);
+                try {
+                    copy(in, out);
+                    out.getFD().sync();
+                } finally {
+                    out.close();
                 }
+            } finally {
+                in.close();
             }
-            if (file.delete() == false) {
-                Log.e(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
-                isSuccess = false;
+        } catch (final IOException e) {
+            Log.e(TAG, "COPY file is Failed. path is " + src.getAbsolutePath() + ", "
+                    + e.getMessage());
+            if (temp != null) {
+                temp.delete();
             }
+            return false;
+        }
+        return replace(temp, dest);
+    }
+
+    /**
+     * ストリームの内容を全てコピーする。
+     * 
+     * @param in コピー元
+     * @param out コピー先
+     * @throws IOException 読み書きに失敗した場合
+     */
+    private static void copy(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        int len;
+        while ((len = in.read(buffer)) != -1) {
+            out.write(buffer, 0, len);
+        }
+    }
+
+    /**
+     * 置き換え用の一時ファイルを、置き換えるファイルと同じディレクトリに作成する。<br>
+     * 同じディレクトリでないとリネームで置き換えられないため、システムの一時ディレクトリは使用しない。
+     * 
+     * @param file 置き換えるファイル
+     * @return 作成した空の一時ファイル
+     * @throws IOException 作成に失敗した場合
+     */
+    private static File createTempFile(final File file) throws IOException {
+        // File#createTempFileの接頭辞は3文字以上必要
+        final String prefix = file.getName() + "...";
+        return File.createTempFile(prefix, TEMP_FILE_SUFFIX, file.getAbsoluteFile()
+                .getParentFile());
+    }
+
+    /**
+     * 一時ファイルで置き換える。
+     * 
+     * @param temp 一時ファイル
+     * @param file 置き換えるファイル
+     * @return 置き換えに成功した場合はtrue
+     */
+    private static boolean replace(final File temp, final File file) {
+        if (temp.renameTo(file)) {
+            return true;
         }
-        return isSuccess;
+        Log.e(TAG, "RENAME file is Failed. path is " + temp.getAbsolutePath());
+        temp.delete();
+        return false;
     }
 }
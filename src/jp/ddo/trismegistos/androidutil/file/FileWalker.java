@@ -0,0 +1,540 @@
+
+package jp.ddo.trismegistos.androidutil.file;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.util.Log;
+
+/**
+ * ディレクトリ配下のファイルを、スレッド数を制限したスレッドプールで並列に走査するクラス。<br>
+ * ディレクトリ単位でタスクに分割し、各タスクはそのディレクトリのファイル名の一覧のみを保持する。
+ * 再帰呼び出しで全階層のFile配列を保持することはない。<br>
+ * ディレクトリ配下を全て処理した後に{@link Visitor#postVisitDirectory(File)}を呼び出すため、削除にも使用できる。<br>
+ * 走査は{@link Walk#cancel()}で中断でき、{@link Listener}で進捗と完了の通知を受けられる。<br>
+ * シンボリックリンクのディレクトリは辿らず、ファイルとして処理する。
+ * java.nio.fileを使用できる場合はリンク自体の属性で判定し、パスは解決しない。
+ * 使用できない場合は起点のみ正規化し、以降は親の正規パスにファイル名を付けたパスが正規パスと一致するかで判定する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class FileWalker {
+
+    /** タグ。 */
+    private static final String TAG = FileWalker.class.getSimpleName();
+
+    /** デフォルトのスレッド数。 */
+    public static final int DEFAULT_THREADS = 2;
+
+    /** 進捗を通知する間隔(ファイル数)。 */
+    private static final int PROGRESS_INTERVAL = 256;
+
+    /** ファイル、ディレクトリを削除するVisitor。処理したバイト数は削除したファイルのサイズ。 */
+    public static final Visitor DELETE = new Visitor() {
+        @Override
+        public long visitFile(final File file) {
+            final long length = file.length();
+            if (file.delete() == false && file.exists()) {
+                Log.e(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
+                return -1;
+            }
+            return length;
+        }
+
+        @Override
+        public boolean postVisitDirectory(final File dir) {
+            if (dir.delete() == false && dir.exists()) {
+                Log.e(TAG, "DELETE file is Failed. path is " + dir.getAbsolutePath());
+                return false;
+            }
+            return true;
+        }
+    };
+
+    /** ファイルサイズを合計するVisitor。 */
+    public static final Visitor SIZE = new Visitor() {
+        @Override
+        public long visitFile(final File file) {
+            return file.length();
+        }
+
+        @Override
+        public boolean postVisitDirectory(final File dir) {
+            return true;
+        }
+    };
+
+    /** File#toPath()。java.nio.fileを使用できない場合はnull。 */
+    private static final Method TO_PATH;
+
+    /** Files#isSymbolicLink(Path)。java.nio.fileを使用できない場合はnull。 */
+    private static final Method IS_SYMBOLIC_LINK;
+
+    static {
+        Method toPath = null;
+        Method isSymbolicLink = null;
+        try {
+            toPath = File.class.getMethod("toPath");
+            isSymbolicLink = Class.forName("java.nio.file.Files").getMethod("isSymbolicLink",
+                    Class.forName("java.nio.file.Path"));
+        } catch (final Exception e) {
+            // Android 8.0未満。パスの正規化で判定する
+            toPath = null;
+        }
+        TO_PATH = toPath;
+        IS_SYMBOLIC_LINK = toPath != null ? isSymbolicLink : null;
+    }
+
+    /** デフォルトのインスタンス。 */
+    private static FileWalker instance;
+
+    /** 走査用のスレッドプール。 */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * デフォルトのインスタンスを取得する。
+     * 
+     * @return デフォルトのスレッド数のFileWalker
+     */
+    public static synchronized FileWalker getInstance() {
+        if (instance == null) {
+            instance = new FileWalker(DEFAULT_THREADS);
+        }
+        return instance;
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param threads スレッド数
+     */
+    public FileWalker(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("threads <= 0");
+        }
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(r, TAG + "#" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * ファイル、またはディレクトリ配下を全て削除する。
+     * 
+     * @param file 削除するファイル、またはディレクトリ
+     * @param listener 通知先。不要な場合はnull
+     * @return 走査の状態
+     */
+    public Walk delete(final File file, final Listener listener) {
+        return walk(file, DELETE, listener);
+    }
+
+    /**
+     * ファイル、またはディレクトリ配下のファイルサイズを合計する。<br>
+     * 合計は{@link Walk#getBytes()}で取得する。
+     * 
+     * @param file ファイル、またはディレクトリ
+     * @param listener 通知先。不要な場合はnull
+     * @return 走査の状態
+     */
+    public Walk size(final File file, final Listener listener) {
+        return walk(file, SIZE, listener);
+    }
+
+    /**
+     * ファイル、またはディレクトリ配下を走査する。<br>
+     * 処理はスレッドプールで行い、すぐに戻る。<br>
+     * Visitor、Listenerから同じFileWalkerの走査の完了を待つと、スレッドが不足して終了しない場合がある。
+     * 
+     * @param file ファイル、またはディレクトリ
+     * @param visitor 各ファイル、ディレクトリの処理
+     * @param listener 通知先。不要な場合はnull
+     * @return 走査の状態
+     */
+    public Walk walk(final File file, final Visitor visitor, final Listener listener) {
+        if (file == null || visitor == null) {
+            throw new IllegalArgumentException("file and visitor must not be null.");
+        }
+        final Walk walk = new Walk(visitor, listener);
+        if (file.exists() == false) {
+            walk.finish();
+            return walk;
+        }
+        final String canonical = file.isDirectory() ? getCanonicalPath(file) : null;
+        if (canonical == null) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (walk.isCancelled() == false) {
+                        walk.visitFile(file);
+                    }
+                    walk.finish();
+                }
+            });
+            return walk;
+        }
+        submit(walk, new Directory(file, null, canonical));
+        return walk;
+    }
+
+    /**
+     * ディレクトリの走査をスレッドプールに登録する。
+     * 
+     * @param walk 走査の状態
+     * @param dir ディレクトリ
+     */
+    private void submit(final Walk walk, final Directory dir) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                visitDirectory(walk, dir);
+            }
+        });
+    }
+
+    /**
+     * ディレクトリ直下のファイルを処理し、サブディレクトリの走査を登録する。
+     * 
+     * @param walk 走査の状態
+     * @param dir ディレクトリ
+     */
+    private void visitDirectory(final Walk walk, final Directory dir) {
+        final String[] names = walk.isCancelled() ? null : dir.file.list();
+        if (names == null && walk.isCancelled() == false) {
+            // 読み込み権限が無い場合など
+            Log.w(TAG, "LIST directory is Failed. path is " + dir.file.getAbsolutePath());
+            walk.failed = true;
+        }
+        if (names != null) {
+            for (final String name : names) {
+                if (walk.isCancelled()) {
+                    break;
+                }
+                final File file = new File(dir.file, name);
+                final String canonical = dir.canonical + File.separator + name;
+                if (file.isDirectory() && isSymlink(file, canonical) == false) {
+                    dir.remaining.incrementAndGet();
+                    submit(walk, new Directory(file, dir, canonical));
+                } else {
+                    walk.visitFile(file);
+                }
+            }
+        }
+        complete(walk, dir);
+    }
+
+    /**
+     * ディレクトリ内の処理が1つ完了したことを記録する。<br>
+     * 全て完了した場合は{@link Visitor#postVisitDirectory(File)}を呼び出し、親ディレクトリに伝える。
+     * 
+     * @param walk 走査の状態
+     * @param dir ディレクトリ
+     */
+    private void complete(final Walk walk, final Directory dir) {
+        Directory current = dir;
+        while (current != null && current.remaining.decrementAndGet() == 0) {
+            if (walk.isCancelled() == false
+                    && walk.visitor.postVisitDirectory(current.file) == false) {
+                walk.failed = true;
+            }
+            current = current.parent;
+        }
+        if (current == null) {
+            walk.finish();
+        }
+    }
+
+    /**
+     * 走査の起点のディレクトリの正規パスを取得する。<br>
+     * 起点自体がシンボリックリンクの場合は辿らない。
+     * 
+     * @param dir ディレクトリ
+     * @return 正規パス。シンボリックリンク、または正規化できない場合はnull
+     */
+    private static String getCanonicalPath(final File dir) {
+        try {
+            final File parent = dir.getAbsoluteFile().getParentFile();
+            if (parent == null) {
+                return dir.getCanonicalPath();
+            }
+            final String path = parent.getCanonicalPath() + File.separator + dir.getName();
+            return isCanonical(path) ? path : null;
+        } catch (final IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * シンボリックリンクかどうかを判定する。<br>
+     * java.nio.fileを使用できない場合は正規パスと比較する。
+     * 
+     * @param file ファイル
+     * @param canonical 正規化済みの親ディレクトリのパスにファイル名を付けたパス
+     * @return シンボリックリンクの場合はtrue
+     */
+    private static boolean isSymlink(final File file, final String canonical) {
+        if (IS_SYMBOLIC_LINK != null) {
+            try {
+                return ((Boolean) IS_SYMBOLIC_LINK.invoke(null, TO_PATH.invoke(file)))
+                        .booleanValue();
+            } catch (final Exception e) {
+                Log.w(TAG, "CHECK symbolic link is Failed. " + e.getMessage());
+            }
+        }
+        return isCanonical(canonical) == false;
+    }
+
+    /**
+     * 正規化済みの親ディレクトリのパスにファイル名を付けたパスが、正規パスと一致するかを判定する。<br>
+     * 一致しない場合、最後の要素はシンボリックリンク。
+     * 
+     * @param path 正規化済みの親ディレクトリのパスにファイル名を付けたパス
+     * @return 正規パスと一致する場合はtrue
+     */
+    private static boolean isCanonical(final String path) {
+        try {
+            return new File(path).getCanonicalPath().equals(path);
+        } catch (final IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * スレッドプールを停止する。走査中のタスクは中断しない。
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    /**
+     * 走査中の各ファイル、ディレクトリの処理。<br>
+     * 複数のスレッドから同時に呼ばれる。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    public interface Visitor {
+
+        /**
+         * ファイルを処理する。
+         * 
+         * @param file ファイル
+         * @return 処理したバイト数。失敗した場合は負の値
+         */
+        long visitFile(File file);
+
+        /**
+         * ディレクトリ配下を全て処理した後に呼ばれる。<br>
+         * 中断した場合は呼ばれない。
+         * 
+         * @param dir ディレクトリ
+         * @return 成功した場合はtrue
+         */
+        boolean postVisitDirectory(File dir);
+    }
+
+    /**
+     * 走査の進捗、完了の通知を受けるインタフェース。<br>
+     * 走査用のスレッドから呼ばれる。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    public interface Listener {
+
+        /**
+         * 一定数のファイルを処理するごとに呼ばれる。
+         * 
+         * @param walk 走査の状態
+         */
+        void onProgress(Walk walk);
+
+        /**
+         * 走査が完了、または中断した際に呼ばれる。
+         * 
+         * @param walk 走査の状態
+         */
+        void onComplete(Walk walk);
+    }
+
+    /**
+     * 走査の状態。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    public static class Walk {
+
+        /** 各ファイル、ディレクトリの処理。 */
+        private final Visitor visitor;
+
+        /** 通知先。 */
+        private final Listener listener;
+
+        /** 処理したファイル数。 */
+        private final AtomicInteger fileCount = new AtomicInteger();
+
+        /** 処理したバイト数。 */
+        private final AtomicLong bytes = new AtomicLong();
+
+        /** 完了待ち用。 */
+        private final CountDownLatch done = new CountDownLatch(1);
+
+        /** 中断した場合はtrue。 */
+        private volatile boolean cancelled;
+
+        /** 処理に失敗したファイルがある場合はtrue。 */
+        private volatile boolean failed;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param visitor 各ファイル、ディレクトリの処理
+         * @param listener 通知先
+         */
+        Walk(final Visitor visitor, final Listener listener) {
+            this.visitor = visitor;
+            this.listener = listener;
+        }
+
+        /**
+         * ファイルを処理し、件数を記録する。
+         * 
+         * @param file ファイル
+         */
+        void visitFile(final File file) {
+            final long length = visitor.visitFile(file);
+            if (length < 0) {
+                failed = true;
+            } else {
+                bytes.addAndGet(length);
+            }
+            if (fileCount.incrementAndGet() % PROGRESS_INTERVAL == 0 && listener != null) {
+                listener.onProgress(this);
+            }
+        }
+
+        /**
+         * 走査の完了を記録し、通知する。
+         */
+        void finish() {
+            done.countDown();
+            if (listener != null) {
+                listener.onComplete(this);
+            }
+        }
+
+        /**
+         * 走査を中断する。<br>
+         * 処理中のファイルの処理は完了させ、以降のファイルは処理しない。
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * 中断したかどうかを返す。
+         * 
+         * @return 中断した場合はtrue
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * 走査が完了したかどうかを返す。
+         * 
+         * @return 完了、または中断により終了した場合はtrue
+         */
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * 走査の完了を待つ。
+         * 
+         * @return 中断せず、全てのファイル、ディレクトリの処理に成功した場合はtrue
+         * @throws InterruptedException 待機中に割り込まれた場合
+         */
+        public boolean await() throws InterruptedException {
+            done.await();
+            return isSucceeded();
+        }
+
+        /**
+         * 全ての処理に成功したかどうかを返す。
+         * 
+         * @return 完了しており、中断せず、全ての処理に成功した場合はtrue
+         */
+        public boolean isSucceeded() {
+            return isDone() && cancelled == false && failed == false;
+        }
+
+        /**
+         * 処理したファイル数を取得する。
+         * 
+         * @return ファイル数
+         */
+        public int getFileCount() {
+            return fileCount.get();
+        }
+
+        /**
+         * 処理したバイト数を取得する。
+         * 
+         * @return バイト数
+         */
+        public long getBytes() {
+            return bytes.get();
+        }
+    }
+
+    /**
+     * 走査中のディレクトリ。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private static class Directory {
+
+        /** ディレクトリ。 */
+        private final File file;
+
+        /** 親ディレクトリ。走査の起点の場合はnull。 */
+        private final Directory parent;
+
+        /** 正規パス。 */
+        private final String canonical;
+
+        /** 未完了の処理数。自身のファイルの処理と、走査中のサブディレクトリの数。 */
+        private final AtomicInteger remaining = new AtomicInteger(1);
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param file ディレクトリ
+         * @param parent 親ディレクトリ
+         * @param canonical 正規パス
+         */
+        Directory(final File file, final Directory parent, final String canonical) {
+            this.file = file;
+            this.parent = parent;
+            this.canonical = canonical;
+        }
+    }
+}
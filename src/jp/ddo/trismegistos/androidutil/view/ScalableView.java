@@ -1,199 +1,773 @@
-
-package jp.ddo.trismegistos.androidutil.view;
-
-import android.content.Context;
-import android.graphics.Matrix;
-import android.graphics.PointF;
-import android.util.AttributeSet;
-import android.util.FloatMath;
-import android.util.Log;
-import android.view.MotionEvent;
-import android.view.View;
-import android.view.View.OnTouchListener;
-import android.widget.ImageView;
-
-/**
- * 拡大・縮小・移動を可能としたImageViewクラス。<br>
- * http://blog.livedoor.jp/sylc/archives/1470690.htmlをベースに作成。
- */
-public class ScalableView extends ImageView implements OnTouchListener {
-
-    /** タグ。 */
-    private static final String TAG = ScalableView.class.getSimpleName();
-
-    private static final float MAX_SCALE = 5;
-    private static final float MIN_SCALE = 0.3f;
-    private static final float MIN_LENGTH = 30f;
-    private static final int NONE = 0;
-    private static final int DRAG = 1;
-    private static final int ZOOM = 2;
-
-    /** MatrixのgetValues用。 */
-    private float[] values = new float[9];
-
-    /** ドラッグ用マトリックス。 */
-    private Matrix moveMatrix = new Matrix();
-
-    /** マトリックス。 */
-    private Matrix matrix = new Matrix();
-
-    /** 画像移動用の位置。 */
-    private PointF point = new PointF();
-
-    /** ズーム時の座標。 */
-    private PointF middle = new PointF();
-
-    /** タッチモード。何も無し、ドラッグ、ズーム。 */
-    private int mode = NONE;
-
-    /** Zoom開始時の二点間距離。 */
-    private float initLength = 1;
-
-    /**
-     * コンストラクタ。
-     * 
-     * @param context コンテキスト
-     */
-    public ScalableView(final Context context) {
-        this(context, null, 0);
-        matrix = new Matrix();
-        matrix.setScale(1, 1);
-        setOnTouchListener(this);
-    }
-
-    /**
-     * コンストラクタ。
-     * 
-     * @param context コンテキスト
-     * @param attrs パラメータ
-     */
-    public ScalableView(final Context context, final AttributeSet attrs) {
-        this(context, attrs, 0);
-        matrix = new Matrix();
-        matrix.setScale(1, 1);
-        setOnTouchListener(this);
-    }
-
-    /**
-     * コンストラクタ。
-     * 
-     * @param context コンテキスト
-     * @param attrs パラメータ
-     * @param defStyle スタイル
-     */
-    public ScalableView(final Context context, final AttributeSet attrs, final int defStyle) {
-        super(context, attrs, defStyle);
-        matrix = new Matrix();
-        matrix.setScale(1, 1);
-        setOnTouchListener(this);
-    }
-
-    /**
-     * {@inheritDoc}
-     */
-    @Override
-    public boolean onTouch(final View v, final MotionEvent event) {
-        ImageView view = (ImageView) v;
-        switch (event.getAction()) {
-            case MotionEvent.ACTION_DOWN:
-                Log.d(TAG, "mode=DRAG");
-                mode = DRAG;
-                point.set(event.getX(), event.getY());
-                moveMatrix.set(matrix);
-                break;
-            case MotionEvent.ACTION_POINTER_2_UP:
-            case MotionEvent.ACTION_UP:
-                Log.d(TAG, "mode=NONE");
-                mode = NONE;
-                break;
-            case MotionEvent.ACTION_POINTER_2_DOWN:
-                if (ScaleType.MATRIX.equals(getScaleType()) == false) {
-                    setScaleType(ScaleType.MATRIX);
-                    matrix.setScale(1, 1);
-                    matrix.setTranslate((getWidth() - getDrawable().getIntrinsicWidth()) / 2,
-                            (getHeight() - getDrawable().getIntrinsicHeight()) / 2);
-                    view.setImageMatrix(matrix);
-                }
-                initLength = getLength(event);
-                if (initLength > MIN_LENGTH) {
-                    Log.d(TAG, "mode=ZOOM");
-                    moveMatrix.set(matrix);
-                    mode = ZOOM;
-                }
-                break;
-            case MotionEvent.ACTION_MOVE:
-                switch (mode) {
-                    case DRAG:
-                        matrix.set(moveMatrix);
-                        matrix.postTranslate(event.getX() - point.x, event.getY() - point.y);
-                        view.setImageMatrix(matrix);
-                        break;
-                    case ZOOM:
-                        if (mode == ZOOM) {
-                            float currentLength = getLength(event);
-                            middle = getMiddle(event, middle);
-                            if (currentLength > MIN_LENGTH) {
-                                matrix.set(moveMatrix);
-                                float scale = filter(matrix, currentLength / initLength);
-                                matrix.postScale(scale, scale, middle.x, middle.y);
-                                view.setImageMatrix(matrix);
-                            }
-                            break;
-                        }
-                        break;
-                }
-        }
-        return false;
-    }
-
-    /**
-     * 拡大縮小可能かどうかを判定する
-     * 
-     * @param m
-     * @param s
-     * @return
-     */
-    private float filter(Matrix m, float s) {
-        m.getValues(values);
-        float nextScale = values[0] * s;
-        if (nextScale > MAX_SCALE) {
-            s = MAX_SCALE / values[0];
-        } else if (nextScale < MIN_SCALE) {
-            s = MIN_SCALE / values[0];
-        }
-        return s;
-    }
-
-    /**
-     * 比率を計算
-     * 
-     * @param x
-     * @param y
-     * @return
-     */
-    private float getLength(MotionEvent e) {
-        if (e.getPointerCount() > 1) {
-            float xx = e.getX(1) - e.getX(0);
-            float yy = e.getY(1) - e.getY(0);
-            return FloatMath.sqrt(xx * xx + yy * yy);
-        } else {
-            return 1;
-        }
-    }
-
-    /**
-     * 中間点を求める
-     * 
-     * @param e
-     * @param p
-     * @return
-     */
-    private PointF getMiddle(MotionEvent e, PointF p) {
-        if (e.getPointerCount() > 1) {
-            float x = e.getX(0) + e.getX(1);
-            float y = e.getY(0) + e.getY(1);
-            p.set(x / 2, y / 2);
-        }
-        return p;
-    }
-}
+
+package jp.ddo.trismegistos.androidutil.view;
+
+import java.io.IOException;
+
+import jp.ddo.trismegistos.androidutil.view.helper.BitmapDecoder;
+import jp.ddo.trismegistos.androidutil.view.helper.FrameScheduler;
+import jp.ddo.trismegistos.androidutil.view.helper.ImageExecutor;
+import jp.ddo.trismegistos.androidutil.view.helper.ImagePipeline;
+import jp.ddo.trismegistos.androidutil.view.helper.TileLoader;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Matrix;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.util.AttributeSet;
+import android.util.DisplayMetrics;
+import android.util.Log;
+import android.view.MotionEvent;
+import android.view.VelocityTracker;
+import android.view.View;
+import android.view.View.OnTouchListener;
+import android.view.ViewConfiguration;
+import android.widget.ImageView;
+import android.widget.Scroller;
+
+/**
+ * 拡大・縮小・移動を可能としたImageViewクラス。<br>
+ * http://blog.livedoor.jp/sylc/archives/1470690.htmlをベースに作成。<br>
+ * {@link #setTiledImage(String)}で設定した画像は、画面サイズに縮小した画像を表示した上で、拡大時は
+ * {@link TileLoader}で表示範囲のタイルのみを表示倍率に合わせた解像度で読み込んで重ねて描画する。
+ * 元画像の解像度に関わらず、使用するメモリは一定となる。<br>
+ * タッチイベントではマトリックスの計算のみを行い、画像への反映は{@link FrameScheduler}で1フレームにつき1回にまとめる。
+ * イベントごとのオブジェクトの生成、ログ出力は行わない。<br>
+ * ドラッグを離した際の慣性スクロール、ダブルタップでの拡大・縮小のアニメーションも同じフレーム処理で行う。
+ */
+public class ScalableView extends ImageView implements OnTouchListener {
+
+    /** タグ。 */
+    private static final String TAG = ScalableView.class.getSimpleName();
+
+    /** UIスレッドのHandler。 */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    private static final float MAX_SCALE = 5;
+    private static final float MIN_SCALE = 0.3f;
+    private static final float MIN_LENGTH = 30f;
+    private static final int NONE = 0;
+    private static final int DRAG = 1;
+    private static final int ZOOM = 2;
+
+    /** ダブルタップで拡大する倍率。 */
+    private static final float DOUBLE_TAP_SCALE = 2.5f;
+
+    /** ダブルタップでの拡大・縮小のアニメーション時間(ミリ秒)。 */
+    private static final long ZOOM_DURATION = 200;
+
+    /** MatrixのgetValues用。 */
+    private float[] values = new float[9];
+
+    /** ドラッグ用マトリックス。 */
+    private Matrix moveMatrix = new Matrix();
+
+    /** マトリックス。 */
+    private Matrix matrix = new Matrix();
+
+    /** 画像移動用の位置。 */
+    private PointF point = new PointF();
+
+    /** ズーム時の座標。 */
+    private PointF middle = new PointF();
+
+    /** タッチモード。何も無し、ドラッグ、ズーム。 */
+    private int mode = NONE;
+
+    /** Zoom開始時の二点間距離。 */
+    private float initLength = 1;
+
+    /** 画像への反映が必要な場合はtrue。 */
+    private boolean matrixDirty;
+
+    /** フレームごとの処理。 */
+    private final Runnable frameRunnable = new Runnable() {
+        @Override
+        public void run() {
+            doFrame();
+        }
+    };
+
+    /** フレームごとの処理の実行要求。 */
+    private FrameScheduler frameScheduler;
+
+    /** ドラッグの速度の計測用。 */
+    private VelocityTracker velocityTracker;
+
+    /** 慣性スクロール用。 */
+    private Scroller scroller;
+
+    /** 慣性スクロール中の場合はtrue。 */
+    private boolean flinging;
+
+    /** 慣性スクロールの前回のフレームのX位置。 */
+    private int lastFlingX;
+
+    /** 慣性スクロールの前回のフレームのY位置。 */
+    private int lastFlingY;
+
+    /** 慣性スクロールを開始する最低速度(px/秒)。 */
+    private int minFlingVelocity;
+
+    /** 慣性スクロールの最大速度(px/秒)。 */
+    private int maxFlingVelocity;
+
+    /** タップとみなす移動距離の2乗。 */
+    private int touchSlopSquare;
+
+    /** ダブルタップとみなす2回のタップの距離の2乗。 */
+    private int doubleTapSlopSquare;
+
+    /** 前回のタップの時刻。タップでない場合は0。 */
+    private long lastTapTime;
+
+    /** 前回のタップのX座標。 */
+    private float lastTapX;
+
+    /** 前回のタップのY座標。 */
+    private float lastTapY;
+
+    /** ダブルタップでの拡大・縮小中の場合はtrue。 */
+    private boolean zooming;
+
+    /** ダブルタップでの拡大・縮小の開始時刻。 */
+    private long zoomStartTime;
+
+    /** ダブルタップでの拡大・縮小の開始時のマトリックスの値。 */
+    private final float[] zoomFrom = new float[9];
+
+    /** ダブルタップでの拡大・縮小の終了時のマトリックスの値。 */
+    private final float[] zoomTo = new float[9];
+
+    /** ダブルタップでの拡大・縮小の終了時のマトリックス。 */
+    private final Matrix zoomMatrix = new Matrix();
+
+    /** 画像の表示範囲。慣性スクロールの範囲の計算用。 */
+    private final RectF imageRect = new RectF();
+
+    /** タイル表示用のローダ。タイル表示しない場合はnull。 */
+    private TileLoader tileLoader;
+
+    /** 読み込み中のタイル表示用の画像。読み込み中でない場合はnull。 */
+    private TiledImageOpener pendingTiledImage;
+
+    /** 縮小画像の、元画像に対する横方向の倍率。 */
+    private float previewScaleX = 1;
+
+    /** 縮小画像の、元画像に対する縦方向の倍率。 */
+    private float previewScaleY = 1;
+
+    /** 元画像の座標から表示座標へのマトリックス。 */
+    private final Matrix tileMatrix = new Matrix();
+
+    /** 表示座標から元画像の座標へのマトリックス。 */
+    private final Matrix inverseMatrix = new Matrix();
+
+    /** 表示範囲。元画像の座標。 */
+    private final RectF visibleRect = new RectF();
+
+    /** タイルの描画先。元画像の座標。 */
+    private final RectF tileRect = new RectF();
+
+    /** タイル描画用のPaint。 */
+    private final Paint tilePaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    /** タイルの読み込み完了時に再描画する。 */
+    private final TileLoader.Listener tileListener = new TileLoader.Listener() {
+        @Override
+        public void onTileLoaded() {
+            postInvalidate();
+        }
+    };
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param context コンテキスト
+     */
+    public ScalableView(final Context context) {
+        this(context, null, 0);
+        matrix = new Matrix();
+        matrix.setScale(1, 1);
+        setOnTouchListener(this);
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param context コンテキスト
+     * @param attrs パラメータ
+     */
+    public ScalableView(final Context context, final AttributeSet attrs) {
+        this(context, attrs, 0);
+        matrix = new Matrix();
+        matrix.setScale(1, 1);
+        setOnTouchListener(this);
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param context コンテキスト
+     * @param attrs パラメータ
+     * @param defStyle スタイル
+     */
+    public ScalableView(final Context context, final AttributeSet attrs, final int defStyle) {
+        super(context, attrs, defStyle);
+        matrix = new Matrix();
+        matrix.setScale(1, 1);
+        setOnTouchListener(this);
+        frameScheduler = FrameScheduler.create(this, frameRunnable);
+        scroller = new Scroller(context);
+        final ViewConfiguration configuration = ViewConfiguration.get(context);
+        minFlingVelocity = configuration.getScaledMinimumFlingVelocity();
+        maxFlingVelocity = configuration.getScaledMaximumFlingVelocity();
+        final int touchSlop = configuration.getScaledTouchSlop();
+        touchSlopSquare = touchSlop * touchSlop;
+        final int doubleTapSlop = configuration.getScaledDoubleTapSlop();
+        doubleTapSlopSquare = doubleTapSlop * doubleTapSlop;
+    }
+
+    /**
+     * 大きな画像ファイルをタイル表示する。<br>
+     * 画面サイズに縮小した画像を表示し、拡大した際は表示範囲のタイルを必要な解像度で読み込む。<br>
+     * BitmapRegionDecoderを使用できないAPI 10未満の端末では、画面サイズに縮小した画像のみを表示する。<br>
+     * 画像ファイルを開く処理と縮小画像のデコードは{@link ImageExecutor}のデコード用スレッドで行い、
+     * 完了後にUIスレッドで表示する。それまでは現在の画像を表示し、読み込めなかった場合は画像を表示しない。
+     * 
+     * @param path 画像ファイルのパス
+     */
+    public void setTiledImage(final String path) {
+        final DisplayMetrics metrics = getResources().getDisplayMetrics();
+        if (pendingTiledImage != null) {
+            pendingTiledImage.cancel();
+        }
+        pendingTiledImage = new TiledImageOpener(path, metrics.widthPixels,
+                metrics.heightPixels);
+        pendingTiledImage.task = ImagePipeline.getInstance().getExecutor()
+                .executeDecode(pendingTiledImage, ImageExecutor.PRIORITY_HIGH);
+    }
+
+    /**
+     * タイル表示用の画像を読み込んだ際に、UIスレッドで呼ばれる。
+     * 
+     * @param opener 読み込み処理
+     * @param loader タイル表示用のローダ。API 10未満の端末、または読み込めなかった場合はnull
+     * @param preview 縮小画像。読み込めなかった場合はnull
+     */
+    private void onTiledImageOpened(final TiledImageOpener opener, final TileLoader loader,
+            final Bitmap preview) {
+        if (pendingTiledImage != opener) {
+            // 読み込み中に別の画像が設定された
+            if (loader != null) {
+                loader.recycle();
+            }
+            return;
+        }
+        pendingTiledImage = null;
+        // setImageBitmapで以前のローダを破棄するため、設定後にローダを保持する
+        setImageBitmap(preview);
+        if (loader == null) {
+            return;
+        }
+        if (preview == null) {
+            loader.recycle();
+            return;
+        }
+        previewScaleX = (float) preview.getWidth() / loader.getWidth();
+        previewScaleY = (float) preview.getHeight() / loader.getHeight();
+        loader.setListener(tileListener);
+        tileLoader = loader;
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * タイル表示中の場合は、タイル表示を終了する。
+     */
+    @Override
+    public void setImageDrawable(final Drawable drawable) {
+        releaseTileLoader();
+        super.setImageDrawable(drawable);
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * タイル表示中の場合は、タイル表示を終了する。
+     */
+    @Override
+    public void setImageResource(final int resId) {
+        releaseTileLoader();
+        super.setImageResource(resId);
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * タイル表示中の場合は、タイル表示を終了する。
+     */
+    @Override
+    public void setImageURI(final Uri uri) {
+        releaseTileLoader();
+        super.setImageURI(uri);
+    }
+
+    /**
+     * タイル表示用のローダを破棄する。読み込み中の場合は読み込みを中止する。
+     */
+    private void releaseTileLoader() {
+        if (pendingTiledImage != null) {
+            pendingTiledImage.cancel();
+            pendingTiledImage = null;
+        }
+        if (tileLoader != null) {
+            tileLoader.recycle();
+            tileLoader = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onDraw(final Canvas canvas) {
+        super.onDraw(canvas);
+        if (tileLoader != null && ScaleType.MATRIX.equals(getScaleType())) {
+            drawTiles(canvas);
+        }
+    }
+
+    /**
+     * 表示範囲のタイルを、縮小画像の上に描画する。<br>
+     * 読み込み前のタイルは読み込みを要求し、縮小画像のまま表示する。
+     * 
+     * @param canvas キャンバス
+     */
+    private void drawTiles(final Canvas canvas) {
+        tileMatrix.set(matrix);
+        tileMatrix.preScale(previewScaleX, previewScaleY);
+        tileMatrix.getValues(values);
+        final int sampleSize = TileLoader.calculateSampleSize(values[Matrix.MSCALE_X]);
+        // 縮小画像の解像度で足りる場合はタイルを使用しない
+        if (sampleSize * previewScaleX >= 1 || tileMatrix.invert(inverseMatrix) == false) {
+            return;
+        }
+        visibleRect.set(0, 0, getWidth() - getPaddingLeft() - getPaddingRight(), getHeight()
+                - getPaddingTop() - getPaddingBottom());
+        inverseMatrix.mapRect(visibleRect);
+        final int width = tileLoader.getWidth();
+        final int height = tileLoader.getHeight();
+        if (visibleRect.intersect(0, 0, width, height) == false) {
+            return;
+        }
+        final int span = tileLoader.getTileSize() * sampleSize;
+        final int left = (int) visibleRect.left / span;
+        final int top = (int) visibleRect.top / span;
+        final int right = Math.max(left, (int) Math.ceil(visibleRect.right / span) - 1);
+        final int bottom = Math.max(top, (int) Math.ceil(visibleRect.bottom / span) - 1);
+        tileLoader.setVisibleTiles(sampleSize, left, top, right, bottom);
+
+        final int saveCount = canvas.save();
+        canvas.translate(getPaddingLeft(), getPaddingTop());
+        canvas.concat(tileMatrix);
+        for (int row = top; row <= bottom; row++) {
+            for (int column = left; column <= right; column++) {
+                final Bitmap tile = tileLoader.getTile(sampleSize, column, row);
+                if (tile == null) {
+                    continue;
+                }
+                tileRect.set(column * span, row * span, Math.min((column + 1) * span, width),
+                        Math.min((row + 1) * span, height));
+                canvas.drawBitmap(tile, null, tileRect, tilePaint);
+            }
+        }
+        canvas.restoreToCount(saveCount);
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * アニメーションを停止する。タイル表示中の場合は、キャッシュしたタイルを解放する。再表示時に読み込み直す。
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        stopAnimation();
+        frameScheduler.cancel();
+        if (matrixDirty) {
+            matrixDirty = false;
+            setImageMatrix(matrix);
+        }
+        if (velocityTracker != null) {
+            velocityTracker.recycle();
+            velocityTracker = null;
+        }
+        if (tileLoader != null) {
+            tileLoader.evictAll();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean onTouch(final View v, final MotionEvent event) {
+        if (velocityTracker == null) {
+            velocityTracker = VelocityTracker.obtain();
+        }
+        velocityTracker.addMovement(event);
+        switch (event.getActionMasked()) {
+            case MotionEvent.ACTION_DOWN:
+                stopAnimation();
+                if (isDoubleTap(event)) {
+                    lastTapTime = 0;
+                    mode = NONE;
+                    startDoubleTapZoom(event.getX(), event.getY());
+                    break;
+                }
+                lastTapTime = event.getEventTime();
+                lastTapX = event.getX();
+                lastTapY = event.getY();
+                mode = DRAG;
+                point.set(event.getX(), event.getY());
+                moveMatrix.set(matrix);
+                break;
+            case MotionEvent.ACTION_POINTER_UP:
+                mode = NONE;
+                break;
+            case MotionEvent.ACTION_UP:
+                if (mode == DRAG) {
+                    startFling();
+                }
+                mode = NONE;
+                velocityTracker.clear();
+                break;
+            case MotionEvent.ACTION_CANCEL:
+                mode = NONE;
+                velocityTracker.clear();
+                break;
+            case MotionEvent.ACTION_POINTER_DOWN:
+                if (event.getActionIndex() != 1) {
+                    break;
+                }
+                lastTapTime = 0;
+                ensureMatrixMode();
+                initLength = getLength(event);
+                if (initLength > MIN_LENGTH) {
+                    moveMatrix.set(matrix);
+                    mode = ZOOM;
+                }
+                break;
+            case MotionEvent.ACTION_MOVE:
+                switch (mode) {
+                    case DRAG:
+                        final float dx = event.getX() - point.x;
+                        final float dy = event.getY() - point.y;
+                        if (dx * dx + dy * dy > touchSlopSquare) {
+                            lastTapTime = 0;
+                        }
+                        matrix.set(moveMatrix);
+                        matrix.postTranslate(dx, dy);
+                        invalidateMatrix();
+                        break;
+                    case ZOOM:
+                        final float currentLength = getLength(event);
+                        getMiddle(event, middle);
+                        if (currentLength > MIN_LENGTH) {
+                            matrix.set(moveMatrix);
+                            final float scale = filter(matrix, currentLength / initLength);
+                            matrix.postScale(scale, scale, middle.x, middle.y);
+                            invalidateMatrix();
+                        }
+                        break;
+                }
+                break;
+        }
+        return false;
+    }
+
+    /**
+     * マトリックスの変更を、次のフレームで画像に反映する。
+     */
+    private void invalidateMatrix() {
+        matrixDirty = true;
+        frameScheduler.schedule();
+    }
+
+    /**
+     * フレームごとの処理。<br>
+     * アニメーションを1フレーム進め、変更したマトリックスを画像に反映する。
+     */
+    private void doFrame() {
+        boolean running = false;
+        if (flinging) {
+            if (scroller.computeScrollOffset()) {
+                final int x = scroller.getCurrX();
+                final int y = scroller.getCurrY();
+                matrix.postTranslate(x - lastFlingX, y - lastFlingY);
+                lastFlingX = x;
+                lastFlingY = y;
+                matrixDirty = true;
+                running = true;
+            } else {
+                flinging = false;
+            }
+        }
+        if (zooming) {
+            float t = (float) (SystemClock.uptimeMillis() - zoomStartTime) / ZOOM_DURATION;
+            if (t >= 1) {
+                t = 1;
+                zooming = false;
+            } else {
+                running = true;
+            }
+            // 減速しながら終了時のマトリックスに近づける
+            final float fraction = 1 - (1 - t) * (1 - t);
+            for (int i = 0; i < values.length; i++) {
+                values[i] = zoomFrom[i] + (zoomTo[i] - zoomFrom[i]) * fraction;
+            }
+            matrix.setValues(values);
+            matrixDirty = true;
+        }
+        if (matrixDirty) {
+            matrixDirty = false;
+            setImageMatrix(matrix);
+        }
+        if (running) {
+            frameScheduler.schedule();
+        }
+    }
+
+    /**
+     * 慣性スクロール、ダブルタップでの拡大・縮小を停止する。
+     */
+    private void stopAnimation() {
+        if (flinging) {
+            scroller.forceFinished(true);
+            flinging = false;
+        }
+        zooming = false;
+    }
+
+    /**
+     * 拡大・縮小のため、ScaleTypeをMATRIXに切り替える。<br>
+     * 切り替える際は、等倍で中央に表示する。
+     */
+    private void ensureMatrixMode() {
+        if (ScaleType.MATRIX.equals(getScaleType()) == false) {
+            setScaleType(ScaleType.MATRIX);
+            setInitialMatrix(matrix);
+            setImageMatrix(matrix);
+        }
+    }
+
+    /**
+     * 画像を等倍で中央に表示するマトリックスを設定する。
+     * 
+     * @param m 設定するマトリックス
+     */
+    private void setInitialMatrix(final Matrix m) {
+        m.setTranslate((getWidth() - getDrawable().getIntrinsicWidth()) / 2,
+                (getHeight() - getDrawable().getIntrinsicHeight()) / 2);
+    }
+
+    /**
+     * ダブルタップかどうかを判定する。
+     * 
+     * @param event ACTION_DOWNのイベント
+     * @return 前回のタップから時間、距離が閾値以内の場合はtrue
+     */
+    private boolean isDoubleTap(final MotionEvent event) {
+        if (lastTapTime == 0
+                || event.getEventTime() - lastTapTime > ViewConfiguration.getDoubleTapTimeout()) {
+            return false;
+        }
+        final float dx = event.getX() - lastTapX;
+        final float dy = event.getY() - lastTapY;
+        return dx * dx + dy * dy < doubleTapSlopSquare;
+    }
+
+    /**
+     * ダブルタップでの拡大・縮小を開始する。<br>
+     * 拡大していない場合はタップした位置を中心に拡大し、拡大している場合は等倍で中央に表示する。
+     * 
+     * @param x タップしたX座標
+     * @param y タップしたY座標
+     */
+    private void startDoubleTapZoom(final float x, final float y) {
+        if (getDrawable() == null) {
+            return;
+        }
+        ensureMatrixMode();
+        matrix.getValues(zoomFrom);
+        final float scale = zoomFrom[Matrix.MSCALE_X];
+        if (scale < DOUBLE_TAP_SCALE) {
+            final float s = DOUBLE_TAP_SCALE / scale;
+            zoomMatrix.set(matrix);
+            zoomMatrix.postScale(s, s, x, y);
+        } else {
+            setInitialMatrix(zoomMatrix);
+        }
+        zoomMatrix.getValues(zoomTo);
+        zoomStartTime = SystemClock.uptimeMillis();
+        zooming = true;
+        frameScheduler.schedule();
+    }
+
+    /**
+     * ドラッグを離した速度で慣性スクロールを開始する。<br>
+     * 画像が表示範囲からはみ出している分だけスクロールする。
+     */
+    private void startFling() {
+        if (ScaleType.MATRIX.equals(getScaleType()) == false || getDrawable() == null) {
+            return;
+        }
+        velocityTracker.computeCurrentVelocity(1000, maxFlingVelocity);
+        final float velocityX = velocityTracker.getXVelocity();
+        final float velocityY = velocityTracker.getYVelocity();
+        if (Math.abs(velocityX) < minFlingVelocity && Math.abs(velocityY) < minFlingVelocity) {
+            return;
+        }
+        imageRect.set(0, 0, getDrawable().getIntrinsicWidth(), getDrawable()
+                .getIntrinsicHeight());
+        matrix.mapRect(imageRect);
+        final int width = getWidth() - getPaddingLeft() - getPaddingRight();
+        final int height = getHeight() - getPaddingTop() - getPaddingBottom();
+        final int minX = (int) Math.min(0, width - imageRect.right);
+        final int maxX = (int) Math.max(0, -imageRect.left);
+        final int minY = (int) Math.min(0, height - imageRect.bottom);
+        final int maxY = (int) Math.max(0, -imageRect.top);
+        lastFlingX = 0;
+        lastFlingY = 0;
+        scroller.fling(0, 0, (int) velocityX, (int) velocityY, minX, maxX, minY, maxY);
+        flinging = true;
+        frameScheduler.schedule();
+    }
+
+    /**
+     * 拡大縮小可能かどうかを判定する
+     * 
+     * @param m
+     * @param s
+     * @return
+     */
+    private float filter(Matrix m, float s) {
+        m.getValues(values);
+        float nextScale = values[0] * s;
+        if (nextScale > MAX_SCALE) {
+            s = MAX_SCALE / values[0];
+        } else if (nextScale < MIN_SCALE) {
+            s = MIN_SCALE / values[0];
+        }
+        return s;
+    }
+
+    /**
+     * 比率を計算
+     * 
+     * @param x
+     * @param y
+     * @return
+     */
+    private float getLength(MotionEvent e) {
+        if (e.getPointerCount() > 1) {
+            float xx = e.getX(1) - e.getX(0);
+            float yy = e.getY(1) - e.getY(0);
+            return (float) Math.sqrt(xx * xx + yy * yy);
+        } else {
+            return 1;
+        }
+    }
+
+    /**
+     * 中間点を求める
+     * 
+     * @param e
+     * @param p
+     * @return
+     */
+    private PointF getMiddle(MotionEvent e, PointF p) {
+        if (e.getPointerCount() > 1) {
+            float x = e.getX(0) + e.getX(1);
+            float y = e.getY(0) + e.getY(1);
+            p.set(x / 2, y / 2);
+        }
+        return p;
+    }
+
+    /**
+     * タイル表示用の画像ファイルを開き、縮小画像をデコードする処理。<br>
+     * デコード用スレッドで実行し、結果はUIスレッドで{@link ScalableView#onTiledImageOpened}に渡す。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private class TiledImageOpener implements Runnable {
+
+        /** 画像ファイルのパス。 */
+        private final String path;
+
+        /** 縮小画像の要求する幅(px)。 */
+        private final int reqWidth;
+
+        /** 縮小画像の要求する高さ(px)。 */
+        private final int reqHeight;
+
+        /** 登録したタスク。 */
+        private ImageExecutor.Task task;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param path 画像ファイルのパス
+         * @param reqWidth 縮小画像の要求する幅(px)
+         * @param reqHeight 縮小画像の要求する高さ(px)
+         */
+        TiledImageOpener(final String path, final int reqWidth, final int reqHeight) {
+            this.path = path;
+            this.reqWidth = reqWidth;
+            this.reqHeight = reqHeight;
+        }
+
+        /**
+         * 待ち行列にある場合は取り除く。UIスレッドから呼び出すこと。
+         */
+        void cancel() {
+            if (task != null) {
+                task.cancel();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            TileLoader loader = null;
+            Bitmap preview = null;
+            try {
+                if (Build.VERSION.SDK_INT < Build.VERSION_CODES.GINGERBREAD_MR1) {
+                    preview = BitmapDecoder.decodeFile(path, reqWidth, reqHeight);
+                } else {
+                    loader = TileLoader.open(path);
+                    preview = loader.decodePreview(reqWidth, reqHeight);
+                }
+            } catch (final IOException e) {
+                Log.w(TAG, "OPEN image is Failed. " + e.getMessage());
+            }
+            final TileLoader openedLoader = loader;
+            final Bitmap openedPreview = preview;
+            // Viewがウィンドウに無い間も失われないよう、View#postではなくHandlerで渡す
+            HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    onTiledImageOpened(TiledImageOpener.this, openedLoader, openedPreview);
+                }
+            });
+        }
+    }
+}
@@ -1,22 +1,31 @@
 
 package jp.ddo.trismegistos.androidutil.view;
 
+import java.util.concurrent.atomic.AtomicInteger;
+
 import jp.ddo.trismegistos.androidutil.R;
+import jp.ddo.trismegistos.androidutil.view.helper.BitmapPool;
 import jp.ddo.trismegistos.androidutil.view.helper.ImageCache;
+import jp.ddo.trismegistos.androidutil.view.helper.ImageExecutor;
+import jp.ddo.trismegistos.androidutil.view.helper.ImagePipeline;
+import jp.ddo.trismegistos.androidutil.view.helper.ImagePipeline.ImageRequest;
 import jp.ddo.trismegistos.androidutil.view.helper.WebImageLoader;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.os.Bundle;
 import android.support.v4.app.FragmentActivity;
+import android.support.v4.app.LoaderManager;
 import android.support.v4.app.LoaderManager.LoaderCallbacks;
 import android.support.v4.content.Loader;
 import android.util.AttributeSet;
 import android.view.LayoutInflater;
+import android.view.ViewGroup;
 import android.widget.ViewFlipper;
 
 /**
  * Web上の画像を非同期で取得し、表示するViewクラス。<br>
- * 取得した画像のキャッシュも行う。
+ * 取得した画像のキャッシュも行う。<br>
+ * ListViewなどで再利用する場合は、{@link #show()}ではなく{@link #bind(String, int, int)}を使用すること。
  * 
  * @author y_sugasawa
  * @since 2013/01/28
@@ -26,17 +35,63 @@ public class WebImageView extends ViewFlipper implements LoaderCallbacks<Bitmap>
     /** タグ。 */
     private static final String TAG = WebImageView.class.getSimpleName();
 
+    /** Loader IDの払い出し元。アプリ側のLoader IDと重複しないよう大きな値から始める。 */
+    private static final AtomicInteger LOADER_ID_SEQUENCE = new AtomicInteger(0x57490000);
+
+    /** このViewが使用するLoader ID。 */
+    private final int loaderId = LOADER_ID_SEQUENCE.incrementAndGet();
+
     private ScalableView image;
 
     /** 画像URL。 */
     private String url;
 
+    /** プレビュー用の画像URL。 */
+    private String previewUrl;
+
+    /** ダウンロードの進捗の通知先。 */
+    private WebImageLoader.OnProgressListener onProgressListener;
+
+    /** Loaderに設定されている画像のキャッシュキー。 */
+    private String loaderKey;
+
+    /** 読み込みの優先度。 */
+    private int priority = ImageExecutor.PRIORITY_NORMAL;
+
+    /** 画像の要求する幅(px)。 */
+    private int targetWidth;
+
+    /** 画像の要求する高さ(px)。 */
+    private int targetHeight;
+
     /** NoImae画像のリソースID。 */
     private int defaultImage;
 
     /** キャッシュ管理オブジェクト。 */
     private ImageCache imageCache;
 
+    /** 表示中のBitmap。 */
+    private Bitmap bitmap;
+
+    /** {@link #bind(String, int, int)}で要求中の画像取得。UIスレッドからのみ参照する。 */
+    private ImageRequest boundRequest;
+
+    /** 画面外に出たためにキャンセルした画像取得を、再び表示された時に再開する場合はtrue。 */
+    private boolean pendingRebind;
+
+    /** 要求サイズが決まるまで{@link #show()}を延期している場合はtrue。 */
+    private boolean pendingShow;
+
+    /** 延期した{@link #show()}を実行する処理。 */
+    private final Runnable showRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (pendingShow) {
+                show();
+            }
+        }
+    };
+
     private boolean scalable = false;
 
     private OnClickListener cl;
@@ -92,7 +147,10 @@ public class WebImageView extends ViewFlipper implements LoaderCallbacks<Bitmap>
 //    }
 
     /**
-     * 画像の取得、キャッシュ保存、表示を行う。
+     * 画像の取得、キャッシュ保存、表示を行う。<br>
+     * UIスレッドではメモリキャッシュのみを参照し、ファイルキャッシュの読み込みとデコードはワーカースレッドで行う。<br>
+     * 要求サイズを指定せず、レイアウト前でViewのサイズも決まっていない場合は、元のサイズでデコードしないよう
+     * サイズが決まるまで取得を延期する。
      */
     public void show() {
         setClickable(scalable);
@@ -108,39 +166,230 @@ public class WebImageView extends ViewFlipper implements LoaderCallbacks<Bitmap>
 //            super.setOnClickListener(cl);
 //            super.setOnLongClickListener(lcl);
 //        }
+        cancelBoundRequest();
+        pendingShow = false;
         if (url == null) {
-            image.setImageResource(defaultImage);
+            setImageBitmap(null);
             if (getDisplayedChild() == 0) {
                 showNext();
             }
+            return;
+        }
+        if (isTargetSizeResolved() == false) {
+            // onSizeChangedでサイズが決まった後に取得する
+            pendingShow = true;
+            if (getDisplayedChild() == 1) {
+                showPrevious();
+            }
+            return;
         }
         if (imageCache != null) {
-            final Bitmap bm = imageCache.getImage(url);
+            final Bitmap bm = imageCache.getMemoryImage(url, getTargetWidth(),
+                    getTargetHeight());
             if (bm != null) {
-                image.setImageBitmap(bm);
+                setImageBitmap(bm);
                 if (getDisplayedChild() == 0) {
                     showNext();
                 }
                 return;
             }
         }
-        if (getDisplayedChild() == 1) {
+        final Bitmap preview = previewUrl != null && imageCache != null ? imageCache
+                .getMemoryImage(previewUrl, getTargetWidth(), getTargetHeight()) : null;
+        if (preview != null) {
+            setImageBitmap(preview);
+            if (getDisplayedChild() == 0) {
+                showNext();
+            }
+        } else if (getDisplayedChild() == 1) {
             showPrevious();
         }
         if (getContext() instanceof FragmentActivity) {
-            ((FragmentActivity) getContext()).getSupportLoaderManager().initLoader(
-                    url.hashCode(), null, this);
+            final LoaderManager lm = ((FragmentActivity) getContext()).getSupportLoaderManager();
+            final String key = ImageCache.getMemoryKey(url, getTargetWidth(), getTargetHeight());
+            if (loaderKey != null && loaderKey.equals(key) == false) {
+                // 別の画像のLoaderが残っている場合は破棄し、待ち行列にある読み込みをキャンセルする。
+                lm.destroyLoader(loaderId);
+            }
+            loaderKey = key;
+            lm.initLoader(loaderId, null, this);
         } else {
             throw new ClassCastException("getContext() is not FragmentActivity.");
         }
     }
 
+    /**
+     * 画像を表示するURLを割り当て、取得を開始する。<br>
+     * 前に割り当てていた画像の取得はキャンセルし、結果が届いても表示しない。
+     * ListViewなどで再利用されたViewに別の行の画像が表示されることはない。<br>
+     * メモリキャッシュにある場合は即座に表示する。Loaderを使用しないため、FragmentActivity以外でも使用できる。
+     * 
+     * @param url 画像URL。nullの場合はNoImage画像を表示する
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     */
+    public void bind(final String url, final int width, final int height) {
+        if (boundRequest != null && url != null && url.equals(this.url)
+                && width == targetWidth && height == targetHeight) {
+            // 同じ画像を取得中の場合はそのまま待つ
+            return;
+        }
+        cancelLoad();
+        this.url = url;
+        setTargetSize(width, height);
+        if (url == null) {
+            setImageBitmap(null);
+            if (getDisplayedChild() == 0) {
+                showNext();
+            }
+            return;
+        }
+        if (imageCache != null) {
+            final Bitmap bm = imageCache.getMemoryImage(url, width, height);
+            if (bm != null) {
+                setImageBitmap(bm);
+                if (getDisplayedChild() == 0) {
+                    showNext();
+                }
+                return;
+            }
+        }
+        final Bitmap preview = previewUrl != null && imageCache != null ? imageCache
+                .getMemoryImage(previewUrl, width, height) : null;
+        if (preview != null) {
+            setImageBitmap(preview);
+            if (getDisplayedChild() == 0) {
+                showNext();
+            }
+        } else {
+            // 前の行の画像を残さないよう、読み込み中の表示に切り替えて解放する
+            setImageBitmap(null);
+            if (getDisplayedChild() == 1) {
+                showPrevious();
+            }
+        }
+        submitBoundRequest();
+    }
+
+    /**
+     * 画像のURLの割り当てを解除する。<br>
+     * 取得中の画像はキャンセルし、表示中の画像を解放する。
+     */
+    public void unbind() {
+        cancelLoad();
+        url = null;
+        setImageBitmap(null);
+        if (getDisplayedChild() == 1) {
+            showPrevious();
+        }
+    }
+
+    /**
+     * 割り当てたURLの画像の取得を要求する。<br>
+     * 結果はUIスレッドに切り替え、その時点でも同じ要求が割り当てられている場合のみ表示する。
+     */
+    private void submitBoundRequest() {
+        boundRequest = ImagePipeline.getInstance().submit(url, imageCache, null, targetWidth,
+                targetHeight, priority, new ImagePipeline.Callback() {
+                    @Override
+                    public void onComplete(final ImageRequest request, final Bitmap bm) {
+                        post(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (request != boundRequest) {
+                                    releaseBitmap(bm);
+                                    return;
+                                }
+                                boundRequest = null;
+                                setImageBitmap(bm);
+                                if (getDisplayedChild() == 0) {
+                                    showNext();
+                                }
+                            }
+                        });
+                    }
+                });
+    }
+
+    /**
+     * {@link #bind(String, int, int)}で要求中の画像取得をキャンセルする。<br>
+     * 待ち行列にある場合は、ダウンロード、デコードの前に破棄される。
+     * 
+     * @return キャンセルした場合はtrue
+     */
+    private boolean cancelBoundRequest() {
+        if (boundRequest == null) {
+            return false;
+        }
+        boundRequest.cancel();
+        boundRequest = null;
+        return true;
+    }
+
+    /**
+     * 要求中の画像取得をキャンセルし、{@link #show()}で使用したLoaderも破棄する。
+     */
+    private void cancelLoad() {
+        cancelBoundRequest();
+        pendingShow = false;
+        if (loaderKey != null && getContext() instanceof FragmentActivity) {
+            ((FragmentActivity) getContext()).getSupportLoaderManager().destroyLoader(loaderId);
+            loaderKey = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * 画面外に出たViewの画像取得はキャンセルし、ダウンロード、デコードの帯域を表示中のViewに譲る。
+     */
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        if (cancelBoundRequest()) {
+            // 再び表示された場合に取得し直すため、URLは残しておく
+            pendingRebind = true;
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * 画面外に出た時にキャンセルした画像取得を再開する。
+     */
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        if (pendingRebind) {
+            pendingRebind = false;
+            if (url != null && boundRequest == null) {
+                submitBoundRequest();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * サイズが決まるまで延期していた画像取得を開始する。レイアウト中のため、次のメッセージで実行する。
+     */
+    @Override
+    protected void onSizeChanged(final int w, final int h, final int oldw, final int oldh) {
+        super.onSizeChanged(w, h, oldw, oldh);
+        if (pendingShow && (w > 0 || h > 0)) {
+            removeCallbacks(showRunnable);
+            post(showRunnable);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Loader<Bitmap> onCreateLoader(final int id, final Bundle args) {
-        return new WebImageLoader(getContext(), url, imageCache);
+        final WebImageLoader loader = new WebImageLoader(getContext(), url, imageCache);
+        loader.setPriority(priority);
+        loader.setTargetSize(getTargetWidth(), getTargetHeight());
+        loader.setPreviewUrl(previewUrl);
+        loader.setOnProgressListener(onProgressListener);
+        return loader;
     }
 
     /**
@@ -148,16 +397,49 @@ public class WebImageView extends ViewFlipper implements LoaderCallbacks<Bitmap>
      */
     @Override
     public void onLoadFinished(final Loader<Bitmap> loader, final Bitmap bitmap) {
-        if (loader.getId() == url.hashCode()) {
-            if (bitmap != null) {
-                image.setImageBitmap(bitmap);
-            } else {
-                image.setImageResource(defaultImage);
+        if (loader.getId() == loaderId && url != null
+                && url.equals(((WebImageLoader) loader).getUrl())) {
+            // Loaderが保持している結果のため、表示用に使用中にする
+            final BitmapPool pool = imageCache != null ? imageCache.getBitmapPool() : null;
+            if (pool != null) {
+                pool.acquire(bitmap);
             }
+            setImageBitmap(bitmap);
             if (getDisplayedChild() == 0) {
                 showNext();
             }
-            loader.stopLoading();
+            if (((WebImageLoader) loader).isFinished()) {
+                loader.stopLoading();
+            }
+        }
+    }
+
+    /**
+     * 画像を表示する。<br>
+     * nullの場合はNoImage画像を表示する。<br>
+     * Bitmapのプールが設定されている場合、bmは使用中の状態で受け取り、表示を終えるBitmapの使用を終了する。
+     * 
+     * @param bm 表示するBitmap
+     */
+    private void setImageBitmap(final Bitmap bm) {
+        releaseBitmap(bitmap);
+        bitmap = bm;
+        if (bm != null) {
+            image.setImageBitmap(bm);
+        } else {
+            image.setImageResource(defaultImage);
+        }
+    }
+
+    /**
+     * Bitmapのプールが設定されている場合は、Bitmapの使用を終了する。
+     * 
+     * @param bm Bitmap
+     */
+    private void releaseBitmap(final Bitmap bm) {
+        final BitmapPool pool = imageCache != null ? imageCache.getBitmapPool() : null;
+        if (pool != null) {
+            pool.release(bm);
         }
     }
 
@@ -177,6 +459,120 @@ public class WebImageView extends ViewFlipper implements LoaderCallbacks<Bitmap>
         this.url = url;
     }
 
+    /**
+     * プレビュー用の画像URLを設定する。<br>
+     * 設定した場合は、元の画像の取得中にサムネイルなどの小さい画像を先に表示する。
+     * 
+     * @param previewUrl プレビュー用の画像URL。nullの場合はプレビューを表示しない
+     */
+    public void setPreviewUrl(final String previewUrl) {
+        this.previewUrl = previewUrl;
+    }
+
+    /**
+     * ダウンロードの進捗の通知先を設定する。<br>
+     * {@link #show()}の前に設定すること。
+     * 
+     * @param listener 進捗の通知先
+     */
+    public void setOnProgressListener(final WebImageLoader.OnProgressListener listener) {
+        this.onProgressListener = listener;
+    }
+
+    /**
+     * 読み込みの優先度を設定する。<br>
+     * デフォルトは{@link ImageExecutor#PRIORITY_NORMAL}。
+     * 
+     * @param priority 読み込みの優先度
+     */
+    public void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 画像の要求サイズを設定する。<br>
+     * 指定した場合は、要求サイズを下回らない範囲で縮小してデコードする。<br>
+     * 指定しない場合、スケーラブル可能でなければViewのサイズ、スケーラブル可能ならば元のサイズでデコードする。
+     * 
+     * @param width 要求する幅(px)
+     * @param height 要求する高さ(px)
+     */
+    public void setTargetSize(final int width, final int height) {
+        this.targetWidth = width;
+        this.targetHeight = height;
+    }
+
+    /**
+     * 要求サイズが指定されているかどうかを返す。
+     * 
+     * @return 要求サイズを指定している、またはスケーラブル可能で元のサイズでデコードする場合はtrue
+     */
+    private boolean hasFixedTargetSize() {
+        return targetWidth > 0 || targetHeight > 0 || scalable;
+    }
+
+    /**
+     * 要求サイズが決まっているかどうかを返す。
+     * 
+     * @return 指定されているか、Viewのサイズ、LayoutParamsの固定サイズのいずれかが分かる場合、
+     *         または幅、高さともにWRAP_CONTENTの場合はtrue
+     */
+    private boolean isTargetSizeResolved() {
+        if (hasFixedTargetSize() || getTargetWidth() > 0 || getTargetHeight() > 0) {
+            return true;
+        }
+        final ViewGroup.LayoutParams lp = getLayoutParams();
+        return lp != null && lp.width == ViewGroup.LayoutParams.WRAP_CONTENT
+                && lp.height == ViewGroup.LayoutParams.WRAP_CONTENT;
+    }
+
+    /**
+     * 画像の要求する幅を取得する。<br>
+     * 指定されていない場合はViewの幅、レイアウト前はLayoutParamsの固定の幅とする。
+     * 
+     * @return 要求する幅(px)。決まっていない場合、WRAP_CONTENTの場合は0
+     */
+    private int getTargetWidth() {
+        if (hasFixedTargetSize()) {
+            return targetWidth;
+        }
+        final ViewGroup.LayoutParams lp = getLayoutParams();
+        return resolveTargetSize(getWidth(), lp != null ? lp.width : 0);
+    }
+
+    /**
+     * 画像の要求する高さを取得する。<br>
+     * 指定されていない場合はViewの高さ、レイアウト前はLayoutParamsの固定の高さとする。
+     * 
+     * @return 要求する高さ(px)。決まっていない場合、WRAP_CONTENTの場合は0
+     */
+    private int getTargetHeight() {
+        if (hasFixedTargetSize()) {
+            return targetHeight;
+        }
+        final ViewGroup.LayoutParams lp = getLayoutParams();
+        return resolveTargetSize(getHeight(), lp != null ? lp.height : 0);
+    }
+
+    /**
+     * Viewのサイズ、LayoutParamsのサイズから要求サイズを決める。<br>
+     * WRAP_CONTENTの場合、Viewのサイズは表示中のNoImage画像などに合わせたもので画像のサイズではないため、
+     * 要求サイズは指定せず元のサイズでデコードする。
+     * 
+     * @param size Viewのサイズ(px)。レイアウト前は0
+     * @param layoutSize LayoutParamsのサイズ。固定サイズ(px)、MATCH_PARENT、WRAP_CONTENTのいずれか
+     * @return 要求サイズ(px)。決まっていない場合、WRAP_CONTENTの場合は0
+     */
+    private static int resolveTargetSize(final int size, final int layoutSize) {
+        if (layoutSize == ViewGroup.LayoutParams.WRAP_CONTENT) {
+            return 0;
+        }
+        if (size > 0) {
+            return size;
+        }
+        return layoutSize > 0 ? layoutSize : 0;
+    }
+
     /**
      * NoImage画像のリソースIDを設定する。
      * 
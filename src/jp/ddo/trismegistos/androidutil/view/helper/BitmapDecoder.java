@@ -0,0 +1,284 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+/**
+ * 表示サイズに合わせて画像をデコードするUtilクラス。<br>
+ * 最初に画像サイズのみを読み込み、要求サイズを下回らない範囲で最大の2のべき乗の縮小率でデコードする。<br>
+ * 要求サイズが小さいJPEG画像はアルファ値が不要なため、RGB_565でデコードしてメモリを半分にする。<br>
+ * {@link BitmapPool}を指定した場合は、同じサイズのBitmapを再利用してデコードする。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/22
+ */
+public class BitmapDecoder {
+
+    /** タグ。 */
+    private static final String TAG = BitmapDecoder.class.getSimpleName();
+
+    /** RGB_565でデコードする要求サイズ(幅×高さ)の上限。 */
+    private static final int RGB_565_MAX_PIXELS = 256 * 256;
+
+    /**
+     * プライベートコンストラクタ。
+     */
+    private BitmapDecoder() {
+    }
+
+    /**
+     * ファイルから画像をデコードする。<br>
+     * 要求サイズが0以下の場合は縮小しない。
+     * 
+     * @param path ファイルパス
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public static Bitmap decodeFile(final String path, final int reqWidth, final int reqHeight) {
+        return decodeFile(path, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * ファイルから画像をデコードする。<br>
+     * 要求サイズが0以下の場合は縮小しない。
+     * 
+     * @param path ファイルパス
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @param pool 再利用するBitmapのプール。nullの場合は再利用しない
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public static Bitmap decodeFile(final String path, final int reqWidth, final int reqHeight,
+            final BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (isSizeSpecified(reqWidth, reqHeight) || pool != null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(path, options);
+            setupOptions(options, reqWidth, reqHeight, pool);
+        }
+        try {
+            return BitmapFactory.decodeFile(path, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Log.w(TAG, "REUSE bitmap is Failed. " + e.getMessage());
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeFile(path, options);
+        }
+    }
+
+    /**
+     * バイト配列から画像をデコードする。<br>
+     * 要求サイズが0以下の場合は縮小しない。
+     * 
+     * @param data 画像データ
+     * @param offset 開始位置
+     * @param length データ長
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length,
+            final int reqWidth, final int reqHeight) {
+        return decodeByteArray(data, offset, length, reqWidth, reqHeight, null);
+    }
+
+    /**
+     * バイト配列から画像をデコードする。<br>
+     * 要求サイズが0以下の場合は縮小しない。
+     * 
+     * @param data 画像データ
+     * @param offset 開始位置
+     * @param length データ長
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @param pool 再利用するBitmapのプール。nullの場合は再利用しない
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public static Bitmap decodeByteArray(final byte[] data, final int offset, final int length,
+            final int reqWidth, final int reqHeight, final BitmapPool pool) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (isSizeSpecified(reqWidth, reqHeight) || pool != null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeByteArray(data, offset, length, options);
+            setupOptions(options, reqWidth, reqHeight, pool);
+        }
+        try {
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Log.w(TAG, "REUSE bitmap is Failed. " + e.getMessage());
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, offset, length, options);
+        }
+    }
+
+    /**
+     * ByteBufferの残りのデータから画像をデコードする。<br>
+     * ヒープ上の配列を持つ場合はその配列から、持たない場合はストリームとして読み込むため、データ全体をコピーしない。<br>
+     * bufferの位置は変更しない。要求サイズが0以下の場合は縮小しない。
+     * 
+     * @param buffer 画像データ
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @param pool 再利用するBitmapのプール。nullの場合は再利用しない
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public static Bitmap decodeByteBuffer(final ByteBuffer buffer, final int reqWidth,
+            final int reqHeight, final BitmapPool pool) {
+        if (buffer.hasArray()) {
+            return decodeByteArray(buffer.array(), buffer.arrayOffset() + buffer.position(),
+                    buffer.remaining(), reqWidth, reqHeight, pool);
+        }
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        if (isSizeSpecified(reqWidth, reqHeight) || pool != null) {
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+            setupOptions(options, reqWidth, reqHeight, pool);
+        }
+        try {
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+        } catch (final IllegalArgumentException e) {
+            if (options.inBitmap == null) {
+                throw e;
+            }
+            Log.w(TAG, "REUSE bitmap is Failed. " + e.getMessage());
+            pool.put(options.inBitmap);
+            options.inBitmap = null;
+            return BitmapFactory.decodeStream(new ByteBufferInputStream(buffer), null, options);
+        }
+    }
+
+    /**
+     * 要求サイズが指定されているかどうかを返す。
+     * 
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @return 幅、高さのいずれかが指定されている場合はtrue
+     */
+    static boolean isSizeSpecified(final int reqWidth, final int reqHeight) {
+        return reqWidth > 0 || reqHeight > 0;
+    }
+
+    /**
+     * 画像サイズの読み込み結果から、デコード用のオプションを設定する。<br>
+     * 縮小しない場合のみ、同じサイズのBitmapをプールから取り出して再利用する。
+     * 
+     * @param options 画像サイズを読み込んだオプション
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @param pool 再利用するBitmapのプール
+     */
+    private static void setupOptions(final BitmapFactory.Options options, final int reqWidth,
+            final int reqHeight, final BitmapPool pool) {
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateInSampleSize(options.outWidth, options.outHeight,
+                reqWidth, reqHeight);
+        if ("image/jpeg".equals(options.outMimeType) && reqWidth > 0 && reqHeight > 0
+                && reqWidth * reqHeight <= RGB_565_MAX_PIXELS) {
+            options.inPreferredConfig = Bitmap.Config.RGB_565;
+        }
+        if (pool != null && BitmapPool.isSupported()) {
+            options.inMutable = true;
+            if (options.inSampleSize == 1 && options.outWidth > 0 && options.outHeight > 0) {
+                options.inBitmap = pool.get(options.outWidth, options.outHeight,
+                        options.inPreferredConfig);
+            }
+        }
+    }
+
+    /**
+     * 縮小率を計算する。<br>
+     * 縮小後の幅、高さが要求サイズを下回らない範囲で、最大の2のべき乗を返す。<br>
+     * 幅、高さのどちらかが0以下の場合は、もう一方のみで計算する。
+     * 
+     * @param width 元画像の幅(px)
+     * @param height 元画像の高さ(px)
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @return 縮小率
+     */
+    public static int calculateInSampleSize(final int width, final int height,
+            final int reqWidth, final int reqHeight) {
+        int inSampleSize = 1;
+        if (width <= 0 || height <= 0 || isSizeSpecified(reqWidth, reqHeight) == false) {
+            return inSampleSize;
+        }
+        while ((reqWidth <= 0 || width / (inSampleSize * 2) >= reqWidth)
+                && (reqHeight <= 0 || height / (inSampleSize * 2) >= reqHeight)) {
+            inSampleSize *= 2;
+        }
+        return inSampleSize;
+    }
+
+    /**
+     * ByteBufferの残りのデータを読み込むストリーム。<br>
+     * 元のByteBufferの位置を変更しないよう、複製したByteBufferから読み込む。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    private static class ByteBufferInputStream extends InputStream {
+
+        /** 読み込み元。 */
+        private final ByteBuffer buffer;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param buffer 読み込み元
+         */
+        ByteBufferInputStream(final ByteBuffer buffer) {
+            this.buffer = buffer.duplicate();
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (buffer.hasRemaining() == false) {
+                return -1;
+            }
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public boolean markSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized void mark(final int readLimit) {
+            buffer.mark();
+        }
+
+        @Override
+        public synchronized void reset() {
+            buffer.reset();
+        }
+    }
+}
@@ -0,0 +1,305 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import android.graphics.Bitmap;
+import android.os.Build;
+
+/**
+ * デコード時に再利用するBitmapを保持するクラス。<br>
+ * 幅、高さ、Configごとにバケットを分けて保持し、{@link android.graphics.BitmapFactory.Options#inBitmap}
+ * で再利用する。<br>
+ * 使用中のBitmapを上書きしないよう、Bitmapを渡す側がキャッシュへの保存や通知の前に{@link #acquire(Bitmap)}
+ * で使用中にし、受け取った側が使い終えた時点で{@link #release(Bitmap)}を呼び出す。
+ * 使用中に追加されたBitmapは、使用中で無くなった時点でプールに入る。<br>
+ * 使用中のBitmapは弱参照で保持するため、解放されないまま参照されなくなったBitmapは再利用されずにGCで回収される。<br>
+ * 最大サイズを超えた場合は、最も長く使用されていないバケットのBitmapから破棄する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/25
+ */
+public class BitmapPool {
+
+    /** バケット。キーは幅、高さ、Config。アクセス順に並ぶ。 */
+    private final LinkedHashMap<String, List<Bitmap>> buckets =
+            new LinkedHashMap<String, List<Bitmap>>(16, 0.75f, true);
+
+    /** 使用中のBitmapと参照数。BitmapはequalsをオーバーライドしないためWeakHashMapでも同一性で比較される。 */
+    private final WeakHashMap<Bitmap, Integer> inUse = new WeakHashMap<Bitmap, Integer>();
+
+    /** 使用中で無くなった時点でプールに入れるBitmap。 */
+    private final WeakHashMap<Bitmap, Boolean> pending = new WeakHashMap<Bitmap, Boolean>();
+
+    /** 最大サイズ(Byte)。 */
+    private final int maxSize;
+
+    /** 現在のサイズ(Byte)。 */
+    private int size;
+
+    /** 再利用できた回数。 */
+    private int hitCount;
+
+    /** 再利用できなかった回数。 */
+    private int missCount;
+
+    /** プールに追加した回数。 */
+    private int putCount;
+
+    /** 最大サイズを超えて破棄した回数。 */
+    private int evictionCount;
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param maxSize 最大サイズ(Byte)
+     */
+    public BitmapPool(final int maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * 再利用が可能な端末かどうかを返す。
+     * 
+     * @return Android 3.0以上の場合はtrue
+     */
+    public static boolean isSupported() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB;
+    }
+
+    /**
+     * 指定した幅、高さ、ConfigのBitmapを取り出す。
+     * 
+     * @param width 幅(px)
+     * @param height 高さ(px)
+     * @param config Config
+     * @return 再利用できるBitmap。無い場合はnull
+     */
+    public synchronized Bitmap get(final int width, final int height, final Bitmap.Config config) {
+        final List<Bitmap> bucket = buckets.get(getKey(width, height, config));
+        if (bucket == null || bucket.isEmpty()) {
+            missCount++;
+            return null;
+        }
+        final Bitmap bitmap = bucket.remove(bucket.size() - 1);
+        size -= sizeOf(bitmap);
+        hitCount++;
+        return bitmap;
+    }
+
+    /**
+     * Bitmapをプールに追加する。<br>
+     * 使用中の場合は、使用中で無くなった時点で追加する。<br>
+     * 再利用できないBitmapは追加しない。
+     * 
+     * @param bitmap Bitmap
+     */
+    public synchronized void put(final Bitmap bitmap) {
+        if (bitmap == null || bitmap.isRecycled() || bitmap.isMutable() == false
+                || isSupported() == false) {
+            return;
+        }
+        if (inUse.containsKey(bitmap)) {
+            pending.put(bitmap, Boolean.TRUE);
+            return;
+        }
+        final int bitmapSize = sizeOf(bitmap);
+        if (bitmapSize > maxSize) {
+            return;
+        }
+        final String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        List<Bitmap> bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = new ArrayList<Bitmap>(2);
+            buckets.put(key, bucket);
+        } else if (bucket.contains(bitmap)) {
+            return;
+        }
+        bucket.add(bitmap);
+        size += bitmapSize;
+        putCount++;
+        trimToSize(maxSize);
+    }
+
+    /**
+     * Bitmapを使用中にする。<br>
+     * 呼び出しごとに参照数を加算するため、同じ回数だけ{@link #release(Bitmap)}を呼び出すこと。
+     * プールに入っていた場合は、再利用されないよう取り除く。
+     * 
+     * @param bitmap Bitmap
+     */
+    public synchronized void acquire(final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        final Integer count = inUse.get(bitmap);
+        inUse.put(bitmap, Integer.valueOf(count == null ? 1 : count.intValue() + 1));
+        if (count == null) {
+            removeFromBucket(bitmap);
+        }
+    }
+
+    /**
+     * Bitmapの使用を終了する。<br>
+     * 使用中に追加されていた場合は、プールに追加する。
+     * 
+     * @param bitmap Bitmap
+     */
+    public synchronized void release(final Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        final Integer count = inUse.get(bitmap);
+        if (count == null) {
+            return;
+        }
+        if (count.intValue() > 1) {
+            inUse.put(bitmap, Integer.valueOf(count.intValue() - 1));
+            return;
+        }
+        inUse.remove(bitmap);
+        if (pending.remove(bitmap) != null) {
+            put(bitmap);
+        }
+    }
+
+    /**
+     * プールに入っているBitmapを取り除く。
+     * 
+     * @param bitmap Bitmap
+     */
+    private void removeFromBucket(final Bitmap bitmap) {
+        if (bitmap.isRecycled()) {
+            return;
+        }
+        final String key = getKey(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+        final List<Bitmap> bucket = buckets.get(key);
+        if (bucket != null && bucket.remove(bitmap)) {
+            size -= sizeOf(bitmap);
+        }
+    }
+
+    /**
+     * 指定したサイズ以下になるまで、最も長く使用されていないバケットのBitmapから破棄する。
+     * 
+     * @param targetSize 目標サイズ(Byte)
+     */
+    public synchronized void trimToSize(final int targetSize) {
+        final Iterator<Map.Entry<String, List<Bitmap>>> it = buckets.entrySet().iterator();
+        while (size > targetSize && it.hasNext()) {
+            final List<Bitmap> bucket = it.next().getValue();
+            while (size > targetSize && bucket.isEmpty() == false) {
+                final Bitmap bitmap = bucket.remove(0);
+                size -= sizeOf(bitmap);
+                evictionCount++;
+                bitmap.recycle();
+            }
+            if (bucket.isEmpty()) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 全てのBitmapを破棄する。
+     */
+    public synchronized void clear() {
+        trimToSize(0);
+        buckets.clear();
+    }
+
+    /**
+     * バケットのキーを取得する。
+     * 
+     * @param width 幅(px)
+     * @param height 高さ(px)
+     * @param config Config
+     * @return キー
+     */
+    private static String getKey(final int width, final int height, final Bitmap.Config config) {
+        return width + "x" + height + ":" + (config == null ? Bitmap.Config.ARGB_8888 : config);
+    }
+
+    /**
+     * Bitmapのサイズを取得する。
+     * 
+     * @param bitmap Bitmap
+     * @return サイズ(Byte)
+     */
+    private static int sizeOf(final Bitmap bitmap) {
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * 現在のサイズを取得する。
+     * 
+     * @return サイズ(Byte)
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * 最大サイズを取得する。
+     * 
+     * @return 最大サイズ(Byte)
+     */
+    public int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 再利用できた回数を取得する。
+     * 
+     * @return 再利用できた回数
+     */
+    public synchronized int hitCount() {
+        return hitCount;
+    }
+
+    /**
+     * 再利用できなかった回数を取得する。
+     * 
+     * @return 再利用できなかった回数
+     */
+    public synchronized int missCount() {
+        return missCount;
+    }
+
+    /**
+     * プールに追加した回数を取得する。
+     * 
+     * @return プールに追加した回数
+     */
+    public synchronized int putCount() {
+        return putCount;
+    }
+
+    /**
+     * 最大サイズを超えて破棄した回数を取得する。
+     * 
+     * @return 破棄した回数
+     */
+    public synchronized int evictionCount() {
+        return evictionCount;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        final int accesses = hitCount + missCount;
+        final int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return String.format("BitmapPool[size=%d,maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]",
+                size, maxSize, hitCount, missCount, hitPercent);
+    }
+}
@@ -0,0 +1,131 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 画像URLからキャッシュキーを生成するUtilクラス。<br>
+ * URLのSHA-1ダイジェストを40文字の16進数文字列にしたものをキーとし、
+ * ファイルキャッシュのファイル名、メモリキャッシュのキー、処理中の要求の識別に共通で使用する。<br>
+ * 作業用のバッファはスレッドごとに使い回すため、キー生成時の一時オブジェクトは結果の文字列のみとなる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/14
+ */
+public class CacheKey {
+
+    /** ダイジェストアルゴリズム。 */
+    private static final String ALGORITHM = "SHA-1";
+
+    /** ダイジェストのバイト数。 */
+    private static final int DIGEST_LENGTH = 20;
+
+    /** 16進数の文字。 */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** スレッドごとの作業領域。 */
+    private static final ThreadLocal<Workspace> WORKSPACE = new ThreadLocal<Workspace>() {
+        @Override
+        protected Workspace initialValue() {
+            return new Workspace();
+        }
+    };
+
+    /**
+     * プライベートコンストラクタ。
+     */
+    private CacheKey() {
+    }
+
+    /**
+     * URLからキャッシュキーを生成する。
+     * 
+     * @param url 画像のURL
+     * @return 40文字の16進数文字列
+     */
+    public static String of(final String url) {
+        final Workspace ws = WORKSPACE.get();
+        final int len = ws.encode(url);
+        ws.digest.update(ws.bytes, 0, len);
+        try {
+            ws.digest.digest(ws.hash, 0, DIGEST_LENGTH);
+        } catch (final Exception e) {
+            throw new IllegalStateException(e);
+        }
+        for (int i = 0; i < DIGEST_LENGTH; i++) {
+            final int b = ws.hash[i] & 0xff;
+            ws.hex[i * 2] = HEX[b >>> 4];
+            ws.hex[i * 2 + 1] = HEX[b & 0x0f];
+        }
+        return new String(ws.hex);
+    }
+
+    /**
+     * スレッドごとの作業領域。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/14
+     */
+    private static class Workspace {
+
+        /** ダイジェスト。 */
+        private final MessageDigest digest;
+
+        /** UTF-8エンコード用のバッファ。 */
+        private byte[] bytes = new byte[256];
+
+        /** ダイジェストの出力先。 */
+        private final byte[] hash = new byte[DIGEST_LENGTH];
+
+        /** 16進数文字列の出力先。 */
+        private final char[] hex = new char[DIGEST_LENGTH * 2];
+
+        /**
+         * コンストラクタ。
+         */
+        Workspace() {
+            try {
+                digest = MessageDigest.getInstance(ALGORITHM);
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        /**
+         * 文字列をUTF-8でバッファにエンコードする。<br>
+         * バッファが足りない場合のみ拡張する。
+         * 
+         * @param s 文字列
+         * @return エンコード後のバイト数
+         */
+        int encode(final String s) {
+            final int length = s.length();
+            if (bytes.length < length * 3) {
+                bytes = new byte[length * 3];
+            }
+            int pos = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = s.charAt(i);
+                if (c < 0x80) {
+                    bytes[pos++] = (byte) c;
+                } else if (c < 0x800) {
+                    bytes[pos++] = (byte) (0xc0 | (c >> 6));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                } else if (Character.isHighSurrogate(c) && i + 1 < length
+                        && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    final int cp = Character.toCodePoint(c, s.charAt(++i));
+                    bytes[pos++] = (byte) (0xf0 | (cp >> 18));
+                    bytes[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (cp & 0x3f));
+                } else {
+                    bytes[pos++] = (byte) (0xe0 | (c >> 12));
+                    bytes[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                    bytes[pos++] = (byte) (0x80 | (c & 0x3f));
+                }
+            }
+            return pos;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * ファイルキャッシュの各エントリのメタデータを保持するクラス。<br>
+ * レスポンスヘッダのETag、Last-Modified、有効期限、Content-Lengthを保持し、キャッシュファイルと同じディレクトリに保存する。<br>
+ * 有効期限が切れたエントリは、If-None-Match、If-Modified-Sinceを付けた条件付きリクエストで再検証する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/26
+ */
+public class CacheMetadata {
+
+    /** プロパティ名:ETag。 */
+    private static final String KEY_ETAG = "etag";
+
+    /** プロパティ名:Last-Modified。 */
+    private static final String KEY_LAST_MODIFIED = "lastModified";
+
+    /** プロパティ名:有効期限。 */
+    private static final String KEY_EXPIRES = "expires";
+
+    /** プロパティ名:Content-Length。 */
+    private static final String KEY_CONTENT_LENGTH = "contentLength";
+
+    /** ETag。無い場合はnull。 */
+    private final String etag;
+
+    /** Last-Modified。無い場合はnull。 */
+    private final String lastModified;
+
+    /** 有効期限(エポックミリ秒)。 */
+    private final long expires;
+
+    /** Content-Length(Byte)。不明な場合は-1。 */
+    private final long contentLength;
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param etag ETag。無い場合はnull
+     * @param lastModified Last-Modified。無い場合はnull
+     * @param expires 有効期限(エポックミリ秒)
+     * @param contentLength Content-Length(Byte)。不明な場合は-1
+     */
+    public CacheMetadata(final String etag, final String lastModified, final long expires,
+            final long contentLength) {
+        this.etag = etag;
+        this.lastModified = lastModified;
+        this.expires = expires;
+        this.contentLength = contentLength;
+    }
+
+    /**
+     * レスポンスヘッダからメタデータを作成する。<br>
+     * 有効期限はCache-Controlのmax-age、Expiresの順に求め、いずれも無い場合はdefaultTtlを使用する。<br>
+     * Cache-Controlにno-cache、no-storeが含まれる場合は、毎回再検証するよう有効期限を現在時刻とする。
+     * 
+     * @param response レスポンス
+     * @param now 現在時刻(エポックミリ秒)
+     * @param defaultTtl 有効期限の指定が無い場合の有効期間(ミリ秒)
+     * @return メタデータ
+     */
+    public static CacheMetadata from(final HttpFetcher.Response response, final long now,
+            final long defaultTtl) {
+        return new CacheMetadata(response.getHeaderField("ETag"),
+                response.getHeaderField("Last-Modified"), getExpires(response, now, defaultTtl),
+                response.getContentLength());
+    }
+
+    /**
+     * 304 Not Modifiedのレスポンスヘッダで有効期限を更新したメタデータを作成する。<br>
+     * ETag、Last-Modifiedはレスポンスに含まれる場合のみ更新する。
+     * 
+     * @param response 304のレスポンス
+     * @param now 現在時刻(エポックミリ秒)
+     * @param defaultTtl 有効期限の指定が無い場合の有効期間(ミリ秒)
+     * @return 更新したメタデータ
+     */
+    public CacheMetadata revalidated(final HttpFetcher.Response response, final long now,
+            final long defaultTtl) {
+        final String newEtag = response.getHeaderField("ETag");
+        final String newLastModified = response.getHeaderField("Last-Modified");
+        return new CacheMetadata(newEtag != null ? newEtag : etag,
+                newLastModified != null ? newLastModified : lastModified, getExpires(response,
+                        now, defaultTtl), contentLength);
+    }
+
+    /**
+     * レスポンスヘッダから有効期限を求める。
+     * 
+     * @param response レスポンス
+     * @param now 現在時刻(エポックミリ秒)
+     * @param defaultTtl 有効期限の指定が無い場合の有効期間(ミリ秒)
+     * @return 有効期限(エポックミリ秒)
+     */
+    private static long getExpires(final HttpFetcher.Response response, final long now,
+            final long defaultTtl) {
+        final String cacheControl = response.getHeaderField("Cache-Control");
+        if (cacheControl != null) {
+            for (final String directive : cacheControl.split(",")) {
+                final String d = directive.trim().toLowerCase();
+                if (d.equals("no-cache") || d.equals("no-store")) {
+                    return now;
+                }
+                if (d.startsWith("max-age=")) {
+                    try {
+                        return now + Long.parseLong(d.substring("max-age=".length())) * 1000L;
+                    } catch (final NumberFormatException e) {
+                        return now;
+                    }
+                }
+            }
+        }
+        final long expiration = response.getHeaderFieldDate("Expires", 0);
+        if (expiration > 0) {
+            final long date = response.getHeaderFieldDate("Date", 0);
+            // サーバとの時刻のずれを避けるため、Dateからの相対時間で求める
+            return now + Math.max(0, expiration - (date > 0 ? date : now));
+        }
+        return now + defaultTtl;
+    }
+
+    /**
+     * 条件付きリクエストのヘッダを設定する。
+     * 
+     * @param headers 設定先のリクエストヘッダ
+     */
+    public void applyTo(final Map<String, String> headers) {
+        if (etag != null) {
+            headers.put("If-None-Match", etag);
+        }
+        if (lastModified != null) {
+            headers.put("If-Modified-Since", lastModified);
+        }
+    }
+
+    /**
+     * 有効期限が切れているかどうかを返す。
+     * 
+     * @param now 現在時刻(エポックミリ秒)
+     * @return 有効期限が切れている場合はtrue
+     */
+    public boolean isExpired(final long now) {
+        return expires <= now;
+    }
+
+    /**
+     * 条件付きリクエストで再検証できるかどうかを返す。
+     * 
+     * @return ETag、Last-Modifiedのいずれかがある場合はtrue
+     */
+    public boolean isRevalidatable() {
+        return etag != null || lastModified != null;
+    }
+
+    /**
+     * ファイルからメタデータを読み込む。
+     * 
+     * @param file メタデータファイル
+     * @return メタデータ
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static CacheMetadata read(final File file) throws IOException {
+        final Properties props = new Properties();
+        final InputStream in = new FileInputStream(file);
+        try {
+            props.load(in);
+        } finally {
+            in.close();
+        }
+        try {
+            return new CacheMetadata(props.getProperty(KEY_ETAG),
+                    props.getProperty(KEY_LAST_MODIFIED), Long.parseLong(props.getProperty(
+                            KEY_EXPIRES, "0")), Long.parseLong(props.getProperty(
+                            KEY_CONTENT_LENGTH, "-1")));
+        } catch (final NumberFormatException e) {
+            throw new IOException("unexpected metadata: " + e.getMessage());
+        }
+    }
+
+    /**
+     * メタデータをファイルに書き込む。
+     * 
+     * @param file メタデータファイル
+     * @throws IOException 書き込みに失敗した場合
+     */
+    void write(final File file) throws IOException {
+        final Properties props = new Properties();
+        if (etag != null) {
+            props.setProperty(KEY_ETAG, etag);
+        }
+        if (lastModified != null) {
+            props.setProperty(KEY_LAST_MODIFIED, lastModified);
+        }
+        props.setProperty(KEY_EXPIRES, String.valueOf(expires));
+        props.setProperty(KEY_CONTENT_LENGTH, String.valueOf(contentLength));
+        final OutputStream out = new FileOutputStream(file);
+        try {
+            props.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * ETagを取得する。
+     * 
+     * @return ETag。無い場合はnull
+     */
+    public String getEtag() {
+        return etag;
+    }
+
+    /**
+     * Last-Modifiedを取得する。
+     * 
+     * @return Last-Modified。無い場合はnull
+     */
+    public String getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * 有効期限を取得する。
+     * 
+     * @return 有効期限(エポックミリ秒)
+     */
+    public long getExpires() {
+        return expires;
+    }
+
+    /**
+     * Content-Lengthを取得する。
+     * 
+     * @return Content-Length(Byte)。不明な場合は-1
+     */
+    public long getContentLength() {
+        return contentLength;
+    }
+}
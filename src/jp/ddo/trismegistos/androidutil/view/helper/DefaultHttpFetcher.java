@@ -0,0 +1,464 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.zip.GZIPInputStream;
+
+import android.util.Log;
+
+/**
+ * {@link HttpURLConnection}を使用する{@link HttpFetcher}のデフォルト実装。<br>
+ * 接続は{@link HttpURLConnection#disconnect()}せず、本文を読み切って閉じることでホスト毎にKeep-Aliveで再利用する。<br>
+ * ホスト毎の同時接続数の上限、接続・読み込みのタイムアウト、gzip、GETのリトライを設定できる。<br>
+ * 各設定は画像の読み込み開始前に行うこと。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/05
+ */
+public class DefaultHttpFetcher implements HttpFetcher {
+
+    /** タグ。 */
+    private static final String TAG = DefaultHttpFetcher.class.getSimpleName();
+
+    /** 接続タイムアウトのデフォルト値(ミリ秒)。 */
+    public static final int DEFAULT_CONNECT_TIMEOUT = 15 * 1000;
+
+    /** 読み込みタイムアウトのデフォルト値(ミリ秒)。 */
+    public static final int DEFAULT_READ_TIMEOUT = 30 * 1000;
+
+    /** ホスト毎の同時接続数のデフォルト値。 */
+    public static final int DEFAULT_MAX_CONNECTIONS_PER_HOST = 4;
+
+    /** リトライ回数のデフォルト値。 */
+    public static final int DEFAULT_MAX_RETRIES = 2;
+
+    /** 最初のリトライまでの待ち時間のデフォルト値(ミリ秒)。 */
+    public static final long DEFAULT_RETRY_BACKOFF = 500;
+
+    /** 接続を再利用するため、エラー時に読み捨てる本文の上限(Byte)。 */
+    private static final int MAX_DISCARD_SIZE = 64 * 1024;
+
+    /** ホスト毎の同時接続数を制限するセマフォ。キーはホスト名:ポート。 */
+    private final ConcurrentMap<String, Semaphore> hostPermits =
+            new ConcurrentHashMap<String, Semaphore>();
+
+    /** 接続タイムアウト(ミリ秒)。 */
+    private volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+
+    /** 読み込みタイムアウト(ミリ秒)。 */
+    private volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    /** ホスト毎の同時接続数。 */
+    private volatile int maxConnectionsPerHost = DEFAULT_MAX_CONNECTIONS_PER_HOST;
+
+    /** リトライ回数。 */
+    private volatile int maxRetries = DEFAULT_MAX_RETRIES;
+
+    /** 最初のリトライまでの待ち時間(ミリ秒)。以降は倍にしていく。 */
+    private volatile long retryBackoff = DEFAULT_RETRY_BACKOFF;
+
+    /** gzipを要求する場合はtrue。 */
+    private volatile boolean gzip = true;
+
+    /**
+     * {@inheritDoc}<br>
+     * 接続の失敗、タイムアウト、5xxのレスポンスの場合は、待ち時間を倍にしながらリトライする。
+     */
+    @Override
+    public Response get(final String url, final Map<String, String> headers) throws IOException {
+        final URL u = new URL(url);
+        final Semaphore permits = getPermits(u);
+        long backoff = retryBackoff;
+        for (int attempt = 0;; attempt++) {
+            acquire(permits);
+            try {
+                return open(u, headers, permits);
+            } catch (final IOException e) {
+                if (attempt >= maxRetries || isRetryable(e) == false) {
+                    throw e;
+                }
+                Log.w(TAG, "RETRY " + url + " : " + e.getMessage());
+            }
+            try {
+                Thread.sleep(backoff);
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting to retry.");
+            }
+            backoff *= 2;
+        }
+    }
+
+    /**
+     * 接続し、レスポンスを取得する。<br>
+     * レスポンスを返さない場合はpermitsを解放する。
+     * 
+     * @param url URL
+     * @param headers 追加するリクエストヘッダ
+     * @param permits 取得済みのホストのセマフォ
+     * @return レスポンス
+     * @throws IOException 通信に失敗した場合、または2xx、304以外のレスポンスの場合
+     */
+    private Response open(final URL url, final Map<String, String> headers,
+            final Semaphore permits) throws IOException {
+        boolean success = false;
+        try {
+            final HttpURLConnection con = (HttpURLConnection) url.openConnection();
+            con.setUseCaches(true);
+            con.setRequestMethod("GET");
+            con.setConnectTimeout(connectTimeout);
+            con.setReadTimeout(readTimeout);
+            if (gzip) {
+                // 自分で指定した場合は透過的に展開されないため、UrlConnectionResponseで展開する
+                con.setRequestProperty("Accept-Encoding", "gzip");
+            }
+            if (headers != null) {
+                for (final Map.Entry<String, String> header : headers.entrySet()) {
+                    con.setRequestProperty(header.getKey(), header.getValue());
+                }
+            }
+            final int code = con.getResponseCode();
+            if ((code < 200 || code >= 300) && code != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                discard(con);
+                throw new HttpStatusException(code, url.toString());
+            }
+            success = true;
+            return new UrlConnectionResponse(con, permits);
+        } finally {
+            if (success == false) {
+                permits.release();
+            }
+        }
+    }
+
+    /**
+     * エラーレスポンスの本文を読み捨て、接続を再利用できるようにする。
+     * 
+     * @param con コネクション
+     */
+    private static void discard(final HttpURLConnection con) {
+        final InputStream err = con.getErrorStream();
+        if (err == null) {
+            return;
+        }
+        try {
+            final byte[] buf = new byte[4096];
+            int total = 0;
+            int len;
+            while (total < MAX_DISCARD_SIZE && (len = err.read(buf)) != -1) {
+                total += len;
+            }
+        } catch (final IOException e) {
+        } finally {
+            try {
+                err.close();
+            } catch (final IOException e) {
+            }
+        }
+    }
+
+    /**
+     * リトライする例外かどうかを返す。<br>
+     * スレッドが割り込まれている場合はキャンセルとみなし、リトライしない。
+     * 
+     * @param e 例外
+     * @return リトライする場合はtrue
+     */
+    private static boolean isRetryable(final IOException e) {
+        if (Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (e instanceof HttpStatusException) {
+            final int code = ((HttpStatusException) e).getCode();
+            return code >= 500 || code == HttpURLConnection.HTTP_CLIENT_TIMEOUT;
+        }
+        return true;
+    }
+
+    /**
+     * ホストのセマフォを取得する。
+     * 
+     * @param url URL
+     * @return セマフォ
+     */
+    private Semaphore getPermits(final URL url) {
+        final String host = url.getHost() + ":" + url.getPort();
+        Semaphore permits = hostPermits.get(host);
+        if (permits == null) {
+            final Semaphore created = new Semaphore(maxConnectionsPerHost);
+            permits = hostPermits.putIfAbsent(host, created);
+            if (permits == null) {
+                permits = created;
+            }
+        }
+        return permits;
+    }
+
+    /**
+     * セマフォを取得する。
+     * 
+     * @param permits セマフォ
+     * @throws InterruptedIOException 待機中に割り込まれた場合
+     */
+    private static void acquire(final Semaphore permits) throws InterruptedIOException {
+        try {
+            permits.acquire();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for a connection.");
+        }
+    }
+
+    /**
+     * 接続タイムアウトを設定する。
+     * 
+     * @param connectTimeout 接続タイムアウト(ミリ秒)
+     */
+    public void setConnectTimeout(final int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * 接続タイムアウトを取得する。
+     * 
+     * @return 接続タイムアウト(ミリ秒)
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * 読み込みタイムアウトを設定する。
+     * 
+     * @param readTimeout 読み込みタイムアウト(ミリ秒)
+     */
+    public void setReadTimeout(final int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * 読み込みタイムアウトを取得する。
+     * 
+     * @return 読み込みタイムアウト(ミリ秒)
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     * ホスト毎の同時接続数を設定する。<br>
+     * 既に接続したことのあるホストには反映されない。
+     * 
+     * @param maxConnectionsPerHost ホスト毎の同時接続数
+     */
+    public void setMaxConnectionsPerHost(final int maxConnectionsPerHost) {
+        if (maxConnectionsPerHost <= 0) {
+            throw new IllegalArgumentException("maxConnectionsPerHost must be positive.");
+        }
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+    }
+
+    /**
+     * ホスト毎の同時接続数を取得する。
+     * 
+     * @return ホスト毎の同時接続数
+     */
+    public int getMaxConnectionsPerHost() {
+        return maxConnectionsPerHost;
+    }
+
+    /**
+     * リトライ回数を設定する。
+     * 
+     * @param maxRetries リトライ回数。0の場合はリトライしない
+     */
+    public void setMaxRetries(final int maxRetries) {
+        this.maxRetries = maxRetries;
+    }
+
+    /**
+     * リトライ回数を取得する。
+     * 
+     * @return リトライ回数
+     */
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * 最初のリトライまでの待ち時間を設定する。以降のリトライでは待ち時間を倍にしていく。
+     * 
+     * @param retryBackoff 待ち時間(ミリ秒)
+     */
+    public void setRetryBackoff(final long retryBackoff) {
+        this.retryBackoff = retryBackoff;
+    }
+
+    /**
+     * 最初のリトライまでの待ち時間を取得する。
+     * 
+     * @return 待ち時間(ミリ秒)
+     */
+    public long getRetryBackoff() {
+        return retryBackoff;
+    }
+
+    /**
+     * gzipを要求するかどうかを設定する。
+     * 
+     * @param gzip gzipを要求する場合はtrue
+     */
+    public void setGzip(final boolean gzip) {
+        this.gzip = gzip;
+    }
+
+    /**
+     * gzipを要求するかどうかを取得する。
+     * 
+     * @return gzipを要求する場合はtrue
+     */
+    public boolean isGzip() {
+        return gzip;
+    }
+
+    /**
+     * 2xx、304以外のレスポンスを受信した場合の例外。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    public static class HttpStatusException extends IOException {
+
+        /** シリアルバージョンUID。 */
+        private static final long serialVersionUID = 1L;
+
+        /** ステータスコード。 */
+        private final int code;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param code ステータスコード
+         * @param url URL
+         */
+        public HttpStatusException(final int code, final String url) {
+            super("HTTP " + code + " : " + url);
+            this.code = code;
+        }
+
+        /**
+         * ステータスコードを取得する。
+         * 
+         * @return ステータスコード
+         */
+        public int getCode() {
+            return code;
+        }
+    }
+
+    /**
+     * {@link HttpURLConnection}のレスポンス。<br>
+     * 閉じた時にホストのセマフォを解放する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    private static class UrlConnectionResponse implements Response {
+
+        /** コネクション。 */
+        private final HttpURLConnection con;
+
+        /** ホストのセマフォ。 */
+        private final Semaphore permits;
+
+        /** 本文のストリーム。 */
+        private InputStream in;
+
+        /** 閉じた場合はtrue。 */
+        private boolean closed;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param con レスポンスを受信したコネクション
+         * @param permits 取得済みのホストのセマフォ
+         */
+        UrlConnectionResponse(final HttpURLConnection con, final Semaphore permits) {
+            this.con = con;
+            this.permits = permits;
+        }
+
+        @Override
+        public int getResponseCode() {
+            try {
+                return con.getResponseCode();
+            } catch (final IOException e) {
+                return -1;
+            }
+        }
+
+        /**
+         * {@inheritDoc}<br>
+         * gzipで圧縮されている場合は展開後のサイズが不明なため-1を返す。
+         */
+        @Override
+        public int getContentLength() {
+            return isGzipped() ? -1 : con.getContentLength();
+        }
+
+        @Override
+        public String getHeaderField(final String name) {
+            return con.getHeaderField(name);
+        }
+
+        @Override
+        public long getHeaderFieldDate(final String name, final long defaultValue) {
+            return con.getHeaderFieldDate(name, defaultValue);
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+                final InputStream raw = con.getInputStream();
+                in = isGzipped() ? new GZIPInputStream(raw) : raw;
+            }
+            return in;
+        }
+
+        @Override
+        public synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            try {
+                // disconnect()は呼ばず、ストリームを閉じることで接続をプールに戻す
+                if (in != null) {
+                    in.close();
+                } else if (getResponseCode() != HttpURLConnection.HTTP_NOT_MODIFIED) {
+                    con.getInputStream().close();
+                }
+            } catch (final IOException e) {
+            } finally {
+                permits.release();
+            }
+        }
+
+        /**
+         * 本文がgzipで圧縮されているかどうかを返す。
+         * 
+         * @return gzipで圧縮されている場合はtrue
+         */
+        private boolean isGzipped() {
+            return "gzip".equalsIgnoreCase(con.getContentEncoding());
+        }
+    }
+}
@@ -0,0 +1,840 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import jp.ddo.trismegistos.androidutil.file.FileUtil;
+import jp.ddo.trismegistos.androidutil.file.FileWalker;
+import android.util.Log;
+
+/**
+ * 容量上限付きのファイルキャッシュを管理するクラス。<br>
+ * キャッシュファイルの一覧とサイズはメモリ上のインデックスで管理し、ジャーナルファイルに追記していく。<br>
+ * そのため、サイズ取得や存在確認でディレクトリを走査することはない。<br>
+ * 上限を超えた場合は、最も長く参照されていないファイルからバックグラウンドで削除する。<br>
+ * 各エントリには元のURLも記録し、キーの衝突を検出した場合はキャッシュなしとして扱う。<br>
+ * 各エントリの{@link CacheMetadata}は、キャッシュファイルと同じディレクトリに".meta"を付けたファイル名で保存する。<br>
+ * ジャーナルには各ファイルの長さとCRC32も記録し、途中で切れたファイルや破損したファイルを検出した場合は破棄する。<br>
+ * ジャーナルの読み込みは起動を遅らせないようバックグラウンドで開始し、読み込み完了前に呼ばれた操作は完了を待つ。<br>
+ * {@link #clear()}はディレクトリを別名に変更してから削除するため、ファイル数に関わらずすぐに戻る。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/12
+ */
+public class DiskCache {
+
+    /** タグ。 */
+    private static final String TAG = DiskCache.class.getSimpleName();
+
+    /** ジャーナルファイル名。 */
+    static final String JOURNAL_FILE = "journal";
+
+    /** ジャーナル再作成時の一時ファイル名。 */
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+
+    /** 書き込み中の一時ファイルの拡張子。 */
+    private static final String TEMP_FILE_SUFFIX = ".tmp";
+
+    /** メタデータファイルの拡張子。 */
+    private static final String META_FILE_SUFFIX = ".meta";
+
+    /** ジャーナルのマジックナンバー。 */
+    private static final String MAGIC = "jp.ddo.trismegistos.androidutil.DiskCache";
+
+    /** ジャーナルのバージョン。 */
+    private static final String VERSION = "3";
+
+    /** チェックサムを記録していない以前のジャーナルのバージョン。 */
+    private static final String LEGACY_VERSION = "2";
+
+    /** チェックサムが不明な場合の値。 */
+    static final long UNKNOWN_CHECKSUM = -1;
+
+    /** ジャーナル操作:登録。 */
+    private static final String CLEAN = "CLEAN";
+
+    /** ジャーナル操作:削除。 */
+    private static final String REMOVE = "REMOVE";
+
+    /** ジャーナル操作:参照。 */
+    private static final String READ = "READ";
+
+    /** ジャーナルを再作成する冗長行数の閾値。 */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /** キャッシュディレクトリ。 */
+    private final File directory;
+
+    /** 最大キャッシュサイズ(Byte)。 */
+    private final long maxSize;
+
+    /** キャッシュのインデックス。アクセス順に並ぶ。 */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0,
+            0.75f, true);
+
+    /** 現在のキャッシュサイズ(Byte)。 */
+    private long size = 0;
+
+    /** ジャーナルの書き込み先。 */
+    private Writer journalWriter;
+
+    /** ジャーナル中の冗長な行数。 */
+    private int redundantOpCount;
+
+    /** 一時ファイル名の通し番号。 */
+    private int tempFileSequence;
+
+    /** ジャーナルを読み込んだ場合はtrue。 */
+    private boolean opened;
+
+    /** 削除処理用のExecutor。 */
+    private final ExecutorService cleanupExecutor = new ThreadPoolExecutor(0, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** 削除処理。 */
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskCache.this) {
+                ensureOpen();
+                if (journalWriter == null) {
+                    return;
+                }
+                trimToSize();
+                if (isJournalRebuildRequired()) {
+                    rebuildJournal();
+                }
+            }
+        }
+    };
+
+    /** ジャーナルの読み込み処理。 */
+    private final Runnable openRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskCache.this) {
+                ensureOpen();
+            }
+        }
+    };
+
+    /**
+     * コンストラクタ。<br>
+     * ジャーナルが存在する場合はジャーナルからインデックスを復元する。<br>
+     * インデックスに無い既存のファイルや、前回の起動で残った一時ファイルは削除する。<br>
+     * 読み込みはバックグラウンドで行うため、コンストラクタはすぐに戻る。
+     * 
+     * @param directory キャッシュディレクトリ
+     * @param maxSize 最大キャッシュサイズ(Byte)
+     */
+    public DiskCache(final File directory, final long maxSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        cleanupExecutor.execute(openRunnable);
+    }
+
+    /**
+     * ジャーナルを読み込んでいない場合は読み込む。<br>
+     * ロックを取得した状態で呼び出すこと。
+     */
+    private void ensureOpen() {
+        if (opened == false) {
+            opened = true;
+            open();
+        }
+    }
+
+    /**
+     * ジャーナルを読み込み、インデックスを復元する。
+     */
+    private void open() {
+        if (FileUtil.mkdir(directory) == false) {
+            Log.w(TAG, "CREATE directory is Failed. path is " + directory.getAbsolutePath());
+        }
+        // 削除中に終了した場合に残ったディレクトリを削除する
+        FileUtil.deleteTrash(directory);
+        final File journal = new File(directory, JOURNAL_FILE);
+        boolean append = false;
+        if (journal.exists()) {
+            try {
+                // 以前の形式、または途中で切れたジャーナルには追記できないため、読み込めた内容で作り直す
+                append = readJournal(journal);
+            } catch (final IOException e) {
+                Log.w(TAG, "READ journal is Failed. " + e.getMessage());
+                entries.clear();
+                size = 0;
+            }
+        }
+        // 前回の起動で書き込み途中に終了した一時ファイルなどは、ジャーナルがあっても残るため毎回削除する
+        deleteUnknownFiles();
+        if (append) {
+            try {
+                journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                        journal, true), "UTF-8"));
+                return;
+            } catch (final IOException e) {
+                Log.w(TAG, "OPEN journal is Failed. " + e.getMessage());
+            }
+        }
+        rebuildJournal();
+    }
+
+    /**
+     * ジャーナルを読み込む。<br>
+     * 書き込み途中で終了した場合などに不正な行があった場合は、その手前までの内容を復元する。
+     * 改行で終わっていない最後の行も書き込み途中とみなして読み込まない。
+     * 
+     * @param journal ジャーナルファイル
+     * @return そのまま追記できる場合はtrue、以前の形式、または不正な行があった場合はfalse
+     * @throws IOException 読み込みに失敗した場合、またはヘッダが不正な場合
+     */
+    private boolean readJournal(final File journal) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), "UTF-8"));
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            final boolean legacy = LEGACY_VERSION.equals(version);
+            if (MAGIC.equals(magic) == false
+                    || (VERSION.equals(version) == false && legacy == false)) {
+                throw new IOException("unexpected journal header: " + magic + ", " + version);
+            }
+            final boolean torn = endsWithNewline(journal) == false;
+            boolean complete = true;
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && torn) {
+                    Log.w(TAG, "TRUNCATE journal. torn line is " + line);
+                    complete = false;
+                    break;
+                }
+                try {
+                    readJournalLine(line, legacy);
+                } catch (final IOException e) {
+                    Log.w(TAG, "TRUNCATE journal. " + e.getMessage());
+                    complete = false;
+                    break;
+                }
+                lineCount++;
+                line = next;
+            }
+            redundantOpCount = lineCount - entries.size();
+            return legacy == false && complete;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * ファイルが改行で終わっているかどうかを判定する。
+     * 
+     * @param file ファイル
+     * @return 改行で終わっている場合、または空の場合はtrue
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static boolean endsWithNewline(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * ジャーナルの1行を読み込み、インデックスに反映する。
+     * 
+     * @param line ジャーナルの1行
+     * @param legacy チェックサムを記録していない以前の形式の場合はtrue
+     * @throws IOException 行の形式が不正な場合
+     */
+    private void readJournalLine(final String line, final boolean legacy) throws IOException {
+        final String[] parts = line.split(" ", legacy ? 4 : 5);
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        final String key = parts[1];
+        if (REMOVE.equals(parts[0])) {
+            final Entry entry = entries.remove(key);
+            if (entry != null) {
+                size -= entry.length;
+            }
+        } else if (READ.equals(parts[0])) {
+            entries.get(key);
+        } else if (CLEAN.equals(parts[0]) && parts.length == (legacy ? 4 : 5)) {
+            final Entry entry;
+            try {
+                entry = legacy ? new Entry(key, Long.parseLong(parts[2]), UNKNOWN_CHECKSUM,
+                        parts[3]) : new Entry(key, Long.parseLong(parts[2]),
+                        Long.parseLong(parts[3]), parts[4]);
+            } catch (final NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            final Entry old = entries.put(key, entry);
+            if (old != null) {
+                size -= old.length;
+            }
+            size += entry.length;
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * インデックスに無いファイルを削除する。<br>
+     * 書き込み途中で残った一時ファイル({@code <key>.N.tmp})や、ジャーナルに記録される前に終了したキャッシュファイル、
+     * 以前のバージョンで作成されたURLを特定できないキャッシュファイルの破棄用。<br>
+     * 起動のたびにディレクトリを1回走査する。バックグラウンドのスレッドで呼び出すこと。
+     */
+    private void deleteUnknownFiles() {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            String name = file.getName();
+            if (name.endsWith(META_FILE_SUFFIX)) {
+                name = name.substring(0, name.length() - META_FILE_SUFFIX.length());
+            }
+            if (file.isFile() && name.startsWith(JOURNAL_FILE) == false
+                    && entries.containsKey(name) == false) {
+                if (file.delete() == false) {
+                    Log.w(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
+                }
+            }
+        }
+    }
+
+    /**
+     * 現在のインデックスからジャーナルを作り直す。
+     */
+    private void rebuildJournal() {
+        if (journalWriter != null) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+        final File journal = new File(directory, JOURNAL_FILE);
+        final File journalTmp = new File(directory, JOURNAL_FILE_TMP);
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journalTmp), "UTF-8"));
+            try {
+                writer.write(MAGIC);
+                writer.write('\n');
+                writer.write(VERSION);
+                writer.write('\n');
+                for (final Entry entry : entries.values()) {
+                    writer.write(toCleanLine(entry));
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (journalTmp.renameTo(journal) == false) {
+                throw new IOException("RENAME journal is Failed.");
+            }
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journal, true), "UTF-8"));
+            redundantOpCount = 0;
+        } catch (final IOException e) {
+            Log.e(TAG, "REBUILD journal is Failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * ジャーナルに1行追記する。
+     * 
+     * @param line 追記する行
+     * @param flush 即座に書き出す場合はtrue
+     */
+    private void writeJournal(final String line, final boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "WRITE journal is Failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * 登録のジャーナル行を作成する。
+     * 
+     * @param entry エントリ
+     * @return ジャーナル行
+     */
+    private static String toCleanLine(final Entry entry) {
+        return CLEAN + ' ' + entry.key + ' ' + entry.length + ' ' + entry.checksum + ' '
+                + entry.url;
+    }
+
+    /**
+     * キャッシュファイルを取得する。<br>
+     * キャッシュに存在しない場合、またはキーが別のURLと衝突している場合はnullを返す。<br>
+     * ファイルの長さが登録時と異なる場合は、途中で切れたファイルとして削除し、nullを返す。
+     * 
+     * @param key キャッシュキー
+     * @param url 画像のURL
+     * @return キャッシュファイル
+     */
+    public synchronized File get(final String key, final String url) {
+        ensureOpen();
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.url.equals(url) == false) {
+            Log.w(TAG, "KEY collision detected. key is " + key + ", url is " + url
+                    + ", cached url is " + entry.url);
+            return null;
+        }
+        final File file = getFile(key);
+        if (file.length() != entry.length) {
+            Log.w(TAG, "BROKEN file detected. path is " + file.getAbsolutePath());
+            remove(key);
+            return null;
+        }
+        redundantOpCount++;
+        writeJournal(READ + ' ' + key, false);
+        if (isJournalRebuildRequired()) {
+            cleanupExecutor.execute(cleanupRunnable);
+        }
+        return file;
+    }
+
+    /**
+     * 読み込んだキャッシュファイルの内容を、登録時のチェックサムと照合する。<br>
+     * 一致しない場合は破損したファイルとして削除する。
+     * 
+     * @param key キャッシュキー
+     * @param data 読み込んだデータ
+     * @param length データ長
+     * @return 一致した場合、またはチェックサムが不明な場合はtrue
+     */
+    public synchronized boolean verify(final String key, final byte[] data, final int length) {
+        ensureOpen();
+        final Entry entry = entries.get(key);
+        if (entry == null || entry.checksum == UNKNOWN_CHECKSUM) {
+            return true;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        if (length == entry.length && crc.getValue() == entry.checksum) {
+            return true;
+        }
+        Log.w(TAG, "CHECKSUM mismatch detected. key is " + key);
+        remove(key);
+        return false;
+    }
+
+    /**
+     * ファイルのCRC32を求める。<br>
+     * ファイル全体を読み込むため、キャッシュのロックを取得せずに呼び出すこと。
+     * 
+     * @param file ファイル
+     * @return CRC32
+     * @throws IOException 読み込みに失敗した場合
+     */
+    static long checksum(final File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final InputStream in = new FileInputStream(file);
+        try {
+            final byte[] buf = new byte[8192];
+            int len;
+            while ((len = in.read(buf)) != -1) {
+                crc.update(buf, 0, len);
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 最近参照された順に、画像のURLを取得する。<br>
+     * アクセス順は変更しない。
+     * 
+     * @param count 取得する最大数
+     * @return 画像のURL。最も最近参照されたものが先頭
+     */
+    public synchronized List<String> recentUrls(final int count) {
+        ensureOpen();
+        final List<String> urls = new ArrayList<String>(entries.size());
+        for (final Entry entry : entries.values()) {
+            urls.add(entry.url);
+        }
+        Collections.reverse(urls);
+        return new ArrayList<String>(urls.subList(0, Math.min(count, urls.size())));
+    }
+
+    /**
+     * キャッシュキーに対応するファイルを取得する。
+     * 
+     * @param key キャッシュキー
+     * @return キャッシュファイル
+     */
+    private File getFile(final String key) {
+        return new File(directory, key);
+    }
+
+    /**
+     * キャッシュキーに対応するメタデータファイルを取得する。
+     * 
+     * @param key キャッシュキー
+     * @return メタデータファイル
+     */
+    private File getMetaFile(final String key) {
+        return new File(directory, key + META_FILE_SUFFIX);
+    }
+
+    /**
+     * 書き込み用の一時ファイルを作成する。<br>
+     * 書き込み完了後は{@link #commit(String, String, File, long, CacheMetadata)}、失敗した場合は
+     * {@link #abort(File)}を呼び出すこと。<br>
+     * 同じキーに対して同時に書き込んでも、一時ファイルは別になる。
+     * 
+     * @param key キャッシュキー
+     * @return 一時ファイル
+     */
+    public synchronized File newTempFile(final String key) {
+        // 読み込み時にインデックスに無いファイルとして一時ファイルを削除するため、読み込みを終えてから作成する
+        ensureOpen();
+        return new File(directory, key + '.' + (tempFileSequence++) + TEMP_FILE_SUFFIX);
+    }
+
+    /**
+     * 書き込みが完了した一時ファイルをキャッシュファイルにリネームし、キャッシュに登録する。<br>
+     * リネームにより置き換えるため、読み込み側が書き込み途中のファイルを参照することはない。<br>
+     * 同じキーで別のURLが登録されていた場合は上書きする。<br>
+     * 最大キャッシュサイズを超えた場合は、バックグラウンドで古いファイルを削除する。<br>
+     * CRC32は呼び出し元が書き込んだデータから求めておき、ロック中にファイルを読み直さない。
+     * 
+     * @param key キャッシュキー
+     * @param url 画像のURL
+     * @param tempFile 書き込みが完了した一時ファイル
+     * @param checksum 書き込んだデータのCRC32
+     * @param metadata メタデータ。nullの場合は保存しない
+     */
+    public synchronized void commit(final String key, final String url, final File tempFile,
+            final long checksum, final CacheMetadata metadata) {
+        ensureOpen();
+        final File file = getFile(key);
+        if (checksum == UNKNOWN_CHECKSUM || tempFile.renameTo(file) == false) {
+            Log.w(TAG, "COMMIT file is Failed. path is " + tempFile.getAbsolutePath());
+            abort(tempFile);
+            remove(key);
+            return;
+        }
+        final Entry entry = new Entry(key, file.length(), checksum, url);
+        final Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.length;
+            redundantOpCount++;
+        }
+        size += entry.length;
+        if (metadata != null) {
+            writeMetadata(key, metadata);
+        } else {
+            deleteFile(getMetaFile(key));
+        }
+        writeJournal(toCleanLine(entry), true);
+        if (size > maxSize || isJournalRebuildRequired()) {
+            cleanupExecutor.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * キャッシュファイルのメタデータを読み込む。
+     * 
+     * @param key キャッシュキー
+     * @return メタデータ。キャッシュに存在しない、または保存されていない場合はnull
+     */
+    public CacheMetadata readMetadata(final String key) {
+        synchronized (this) {
+            ensureOpen();
+            if (entries.containsKey(key) == false) {
+                return null;
+            }
+        }
+        final File metaFile = getMetaFile(key);
+        if (metaFile.isFile() == false) {
+            return null;
+        }
+        try {
+            return CacheMetadata.read(metaFile);
+        } catch (final IOException e) {
+            Log.w(TAG, "READ metadata is Failed. " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * キャッシュファイルのメタデータを保存する。<br>
+     * 一時ファイルに書き込んでからリネームするため、読み込み側が書き込み途中のメタデータを参照することはない。
+     * 
+     * @param key キャッシュキー
+     * @param metadata メタデータ
+     */
+    public synchronized void writeMetadata(final String key, final CacheMetadata metadata) {
+        ensureOpen();
+        if (entries.containsKey(key) == false) {
+            return;
+        }
+        final File tempFile = newTempFile(key + META_FILE_SUFFIX);
+        try {
+            metadata.write(tempFile);
+            if (tempFile.renameTo(getMetaFile(key)) == false) {
+                throw new IOException("RENAME metadata is Failed.");
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "WRITE metadata is Failed. " + e.getMessage());
+            abort(tempFile);
+        }
+    }
+
+    /**
+     * 書き込みに失敗した一時ファイルを削除する。
+     * 
+     * @param tempFile 一時ファイル
+     */
+    public void abort(final File tempFile) {
+        deleteFile(tempFile);
+    }
+
+    /**
+     * ファイルを削除する。
+     * 
+     * @param file ファイル
+     */
+    private static void deleteFile(final File file) {
+        if (file.exists() && file.delete() == false) {
+            Log.w(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
+        }
+    }
+
+    /**
+     * キャッシュファイルを削除する。
+     * 
+     * @param key キャッシュキー
+     * @return 削除した場合はtrue、キャッシュに存在しなかった場合はfalse
+     */
+    public synchronized boolean remove(final String key) {
+        ensureOpen();
+        final Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        deleteFile(getFile(key));
+        deleteFile(getMetaFile(key));
+        size -= entry.length;
+        redundantOpCount++;
+        writeJournal(REMOVE + ' ' + key, true);
+        return true;
+    }
+
+    /**
+     * 全てのキャッシュファイルを削除する。<br>
+     * キャッシュディレクトリを別名に変更し、ファイルの削除はバックグラウンドで行う。
+     * 別名に変更できない場合は、インデックスにあるファイルをその場で削除する。
+     */
+    public synchronized void clear() {
+        ensureOpen();
+        if (journalWriter != null) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+        final File trash = FileUtil.moveToTrash(directory);
+        if (trash != null) {
+            FileWalker.getInstance().delete(trash, null);
+        }
+        if (trash == null || FileUtil.mkdir(directory) == false) {
+            final List<String> keys = new ArrayList<String>(entries.keySet());
+            for (final String key : keys) {
+                deleteFile(getFile(key));
+                deleteFile(getMetaFile(key));
+            }
+        }
+        entries.clear();
+        size = 0;
+        rebuildJournal();
+    }
+
+    /**
+     * 最大キャッシュサイズ以下になるまで、最も長く参照されていないファイルから削除する。
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            it.remove();
+            deleteFile(getFile(entry.key));
+            deleteFile(getMetaFile(entry.key));
+            size -= entry.length;
+            redundantOpCount++;
+            writeJournal(REMOVE + ' ' + entry.key, false);
+        }
+        if (journalWriter != null) {
+            try {
+                journalWriter.flush();
+            } catch (final IOException e) {
+                Log.e(TAG, "WRITE journal is Failed. " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * ジャーナルの再作成が必要かどうかを判定する。
+     * 
+     * @return 冗長な行が閾値を超え、かつ有効な行数以上ある場合にtrue
+     */
+    private boolean isJournalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= entries.size();
+    }
+
+    /**
+     * キャッシュに存在するかどうかを返す。
+     * 
+     * @param key キャッシュキー
+     * @return 存在する場合はtrue
+     */
+    public synchronized boolean contains(final String key) {
+        ensureOpen();
+        return entries.containsKey(key);
+    }
+
+    /**
+     * 現在のキャッシュサイズを取得する。<br>
+     * ディレクトリの走査は行わない。
+     * 
+     * @return キャッシュサイズ(Byte)
+     */
+    public synchronized long size() {
+        ensureOpen();
+        return size;
+    }
+
+    /**
+     * 最大キャッシュサイズを取得する。
+     * 
+     * @return 最大キャッシュサイズ(Byte)
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * キャッシュされているファイル数を取得する。
+     * 
+     * @return ファイル数
+     */
+    public synchronized int count() {
+        ensureOpen();
+        return entries.size();
+    }
+
+    /**
+     * ジャーナルを閉じる。<br>
+     * 以降の登録・削除はジャーナルに記録されない。
+     */
+    public synchronized void close() {
+        opened = true;
+        if (journalWriter != null) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+        cleanupExecutor.shutdown();
+    }
+
+    /**
+     * 例外を無視してクローズする。
+     * 
+     * @param writer Writer
+     */
+    private static void closeQuietly(final Writer writer) {
+        try {
+            writer.close();
+        } catch (final Exception e) {
+        }
+    }
+
+    /**
+     * キャッシュのインデックスのエントリ。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/12
+     */
+    private static class Entry {
+
+        /** キャッシュキー。 */
+        private final String key;
+
+        /** ファイルサイズ(Byte)。 */
+        private final long length;
+
+        /** ファイルのCRC32。不明な場合は{@link DiskCache#UNKNOWN_CHECKSUM}。 */
+        private final long checksum;
+
+        /** 画像のURL。 */
+        private final String url;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param key キャッシュキー
+         * @param length ファイルサイズ(Byte)
+         * @param checksum ファイルのCRC32
+         * @param url 画像のURL
+         */
+        Entry(final String key, final long length, final long checksum, final String url) {
+            this.key = key;
+            this.length = length;
+            this.checksum = checksum;
+            this.url = url;
+        }
+    }
+}
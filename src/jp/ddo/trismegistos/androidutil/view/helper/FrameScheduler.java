@@ -0,0 +1,191 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import android.os.Build;
+import android.view.Choreographer;
+import android.view.View;
+
+/**
+ * 描画フレームに合わせて処理を実行するクラス。<br>
+ * 次のフレームまでに何度要求しても、処理は1フレームにつき1回のみ実行する。<br>
+ * API 16以降は{@link Choreographer}で垂直同期に合わせて実行し、それ以前の端末ではフレーム間隔の遅延で代用する。<br>
+ * UIスレッドから使用すること。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public abstract class FrameScheduler {
+
+    /** Choreographerを使用できない場合のフレーム間隔(ミリ秒)。 */
+    private static final long FALLBACK_FRAME_DELAY = 16;
+
+    /** フレームごとに実行する処理。 */
+    final Runnable frame;
+
+    /** 実行を要求済みの場合はtrue。 */
+    private boolean scheduled;
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param frame フレームごとに実行する処理
+     */
+    FrameScheduler(final Runnable frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * 端末のAPIレベルに合わせたFrameSchedulerを作成する。
+     * 
+     * @param view 処理を実行するView。Choreographerを使用できない場合に使用する
+     * @param frame フレームごとに実行する処理
+     * @return FrameScheduler
+     */
+    public static FrameScheduler create(final View view, final Runnable frame) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            return new ChoreographerScheduler(frame);
+        }
+        return new HandlerScheduler(view, frame);
+    }
+
+    /**
+     * 次のフレームでの実行を要求する。<br>
+     * 既に要求済みの場合は何もしない。
+     */
+    public final void schedule() {
+        if (scheduled) {
+            return;
+        }
+        scheduled = true;
+        post();
+    }
+
+    /**
+     * 実行の要求を取り消す。
+     */
+    public final void cancel() {
+        if (scheduled) {
+            scheduled = false;
+            remove();
+        }
+    }
+
+    /**
+     * 要求済みかどうかを返す。
+     * 
+     * @return 要求済みの場合はtrue
+     */
+    public final boolean isScheduled() {
+        return scheduled;
+    }
+
+    /**
+     * フレームの処理を実行する。<br>
+     * 処理中に{@link #schedule()}を呼び出した場合は、次のフレームで再度実行する。
+     */
+    final void dispatch() {
+        scheduled = false;
+        frame.run();
+    }
+
+    /**
+     * 次のフレームでの{@link #dispatch()}の実行を登録する。
+     */
+    abstract void post();
+
+    /**
+     * 登録した実行を取り消す。
+     */
+    abstract void remove();
+
+    /**
+     * Choreographerで垂直同期に合わせて実行するFrameScheduler。<br>
+     * API 16未満の端末では読み込まないこと。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private static class ChoreographerScheduler extends FrameScheduler implements
+            Choreographer.FrameCallback {
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param frame フレームごとに実行する処理
+         */
+        ChoreographerScheduler(final Runnable frame) {
+            super(frame);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            dispatch();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void post() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void remove() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+    }
+
+    /**
+     * Viewのメッセージキューにフレーム間隔の遅延で登録するFrameScheduler。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private static class HandlerScheduler extends FrameScheduler implements Runnable {
+
+        /** 処理を実行するView。 */
+        private final View view;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param view 処理を実行するView
+         * @param frame フレームごとに実行する処理
+         */
+        HandlerScheduler(final View view, final Runnable frame) {
+            super(frame);
+            this.view = view;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            dispatch();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void post() {
+            view.postDelayed(this, FALLBACK_FRAME_DELAY);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        void remove() {
+            view.removeCallbacks(this);
+        }
+    }
+}
@@ -0,0 +1,83 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+
+/**
+ * 画像をHTTPで取得するインタフェース。<br>
+ * {@link ImagePipeline#setFetcher(HttpFetcher)}で差し替えることで、独自のHTTPクライアントやテスト用のスタブを使用できる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/05
+ */
+public interface HttpFetcher {
+
+    /**
+     * GETリクエストを送信し、レスポンスを取得する。<br>
+     * 2xx、304以外のレスポンスの場合はIOExceptionを投げる。<br>
+     * 取得したレスポンスは必ず{@link Response#close()}を呼び出すこと。
+     * 
+     * @param url URL
+     * @param headers 追加するリクエストヘッダ。不要な場合はnull
+     * @return レスポンス
+     * @throws IOException 通信に失敗した場合
+     */
+    Response get(String url, Map<String, String> headers) throws IOException;
+
+    /**
+     * HTTPレスポンス。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    interface Response {
+
+        /**
+         * ステータスコードを取得する。
+         * 
+         * @return ステータスコード
+         */
+        int getResponseCode();
+
+        /**
+         * 本文のバイト数を取得する。
+         * 
+         * @return 本文のバイト数。不明な場合は-1
+         */
+        int getContentLength();
+
+        /**
+         * レスポンスヘッダを取得する。
+         * 
+         * @param name ヘッダ名
+         * @return 値。無い場合はnull
+         */
+        String getHeaderField(String name);
+
+        /**
+         * 日付のレスポンスヘッダを取得する。
+         * 
+         * @param name ヘッダ名
+         * @param defaultValue ヘッダが無い、または解析できない場合の値
+         * @return エポックミリ秒
+         */
+        long getHeaderFieldDate(String name, long defaultValue);
+
+        /**
+         * 本文のストリームを取得する。<br>
+         * gzipで圧縮されている場合は展開したストリームを返す。
+         * 
+         * @return 本文のストリーム
+         * @throws IOException 取得に失敗した場合
+         */
+        InputStream getInputStream() throws IOException;
+
+        /**
+         * レスポンスを閉じる。<br>
+         * 本文を最後まで読み込んでいた場合、接続は再利用される。
+         */
+        void close();
+    }
+}
@@ -2,15 +2,37 @@
 package jp.ddo.trismegistos.androidutil.view.helper;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
-import jp.ddo.trismegistos.androidutil.file.FileUtil;
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Configuration;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.support.v4.util.LruCache;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 /**
- * 画像ファイルのキャッシュを管理するクラス。
+ * 画像ファイルのキャッシュを管理するクラス。<br>
+ * メモリキャッシュはデフォルトでヒープの1/8とし、{@link #onTrimMemory(int)}で通知されたレベルに応じて段階的に縮小する。<br>
+ * {@link BitmapPool}を設定しない場合は、メモリキャッシュから追い出したBitmapをSoftReferenceで保持し、
+ * GCに回収されるまでは再利用する。<br>
+ * Bitmapとファイルキャッシュの間に、JPEGなどの圧縮データを保持するメモリキャッシュを持つ。
+ * Bitmapのメモリキャッシュから追い出された画像も、ファイルを読み込まずにメモリ上のデータからデコードできる。<br>
+ * ファイルキャッシュは、URLごとにファイルを作成する{@link DiskCache}と、セグメントファイルに追記する
+ * {@link PackCache}のいずれかを使用する。<br>
+ * {@link #warmUp(int)}で、ファイルキャッシュのうち最近参照された画像を圧縮データのメモリキャッシュに先読みできる。
  * 
  * @author y_sugasawa
  * @since 2013/01/28
@@ -20,25 +42,80 @@ public class ImageCache {
     /** タグ。 */
     private static final String TAG = ImageCache.class.getSimpleName();
 
-    /** デフォルトキャッシュサイズ 50MB */
-    private static final int DEFAULT_CACHE_SIZE = 50 * 1024 * 1024;
+    /** デフォルトキャッシュサイズ ヒープの1/8 */
+    private static final float DEFAULT_CACHE_FRACTION = 0.125f;
+
+    /** SoftReferenceで保持するBitmapの最大数 */
+    private static final int SOFT_CACHE_CAPACITY = 64;
+
+    /** Bitmapのメモリキャッシュに対する、圧縮データのメモリキャッシュのデフォルトサイズの割合 1/4 */
+    private static final int DEFAULT_ENCODED_CACHE_DIVISOR = 4;
+
+    /** デフォルトファイルキャッシュサイズ 100MB */
+    private static final long DEFAULT_DISK_CACHE_SIZE = 100 * 1024 * 1024;
+
+    /** デフォルトのファイルキャッシュの有効期間 24時間 */
+    private static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+
+    /** インスタンスの識別子の採番。 */
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    /** インスタンスの識別子。同じプロセス内で一意。 */
+    private final long id = NEXT_ID.incrementAndGet();
 
     /** キャッシュオブジェクト。 */
-    private LruCache<String, Bitmap> cache;
+    private Cache cache;
+
+    /** 圧縮データのメモリキャッシュ。使用しない場合はnull。 */
+    private volatile EncodedCache encodedCache;
 
     /** ファイルキャッシュディレクトリ。 */
     private File cacheDir;
 
+    /** ファイルキャッシュ。 */
+    private DiskCache diskCache;
+
+    /** セグメントファイルのファイルキャッシュ。使用しない場合はnull。 */
+    private PackCache packCache;
+
+    /** 再利用するBitmapのプール。 */
+    private BitmapPool bitmapPool;
+
+    /** レスポンスに有効期限の指定が無い場合の有効期間(ミリ秒)。 */
+    private long defaultTtl = DEFAULT_TTL;
+
+    /** メモリキャッシュから追い出したBitmap。BitmapPoolを設定しない場合のみ使用する。 */
+    private final Map<String, SoftReference<Bitmap>> softCache = Collections
+            .synchronizedMap(new LinkedHashMap<String, SoftReference<Bitmap>>(16, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected boolean removeEldestEntry(
+                        final Map.Entry<String, SoftReference<Bitmap>> eldest) {
+                    return size() > SOFT_CACHE_CAPACITY;
+                }
+            });
+
     /**
      * コンストラクタ。<br>
-     * キャッシュサイズを50MBとしてキャッシュを作成する。
+     * キャッシュサイズをヒープの1/8としてキャッシュを作成する。
      * 
      * @param cacheDir ファイルキャッシュディレクトリ
      */
     public ImageCache(final File cacheDir) {
-        this.cacheDir = cacheDir;
-        cache = new Cache(DEFAULT_CACHE_SIZE);
-        createCacheDir();
+        this(cacheDir, getMemoryCacheSize(DEFAULT_CACHE_FRACTION));
+    }
+
+    /**
+     * コンストラクタ。<br>
+     * 端末のメモリクラスに対する割合でキャッシュサイズを決め、キャッシュを作成する。<br>
+     * ファイルキャッシュディレクトリはアプリのキャッシュディレクトリ配下の"images"とする。
+     * 
+     * @param context コンテキスト
+     * @param fraction メモリクラスに対する割合(0より大きく1未満)
+     */
+    public ImageCache(final Context context, final float fraction) {
+        this(new File(context.getCacheDir(), "images"), getMemoryCacheSize(context, fraction));
     }
 
     /**
@@ -49,20 +126,103 @@ public class ImageCache {
      * @param cacheSize キャッシュサイズ(Byte)
      */
     public ImageCache(final File cacheDir, int cacheSize) {
+        this(cacheDir, cacheSize, DEFAULT_DISK_CACHE_SIZE);
+    }
+
+    /**
+     * コンストラクタ。<br>
+     * 指定したキャッシュサイズ、ファイルキャッシュサイズでキャッシュを作成する。<br>
+     * ファイルキャッシュサイズを超えた場合は、参照されていない順にファイルを削除する。
+     * 
+     * @param cacheDir ファイルキャッシュディレクトリ
+     * @param cacheSize キャッシュサイズ(Byte)
+     * @param diskCacheSize ファイルキャッシュサイズ(Byte)
+     */
+    public ImageCache(final File cacheDir, int cacheSize, long diskCacheSize) {
+        this(cacheDir, cacheSize, diskCacheSize, false);
+    }
+
+    /**
+     * コンストラクタ。<br>
+     * 指定したキャッシュサイズ、ファイルキャッシュサイズでキャッシュを作成する。<br>
+     * packedがtrueの場合は、ファイルキャッシュに{@link PackCache}を使用する。
+     * 小さい画像が大量にある場合に、ファイル数を抑え、読み込みごとのファイルの開閉を無くす。
+     * 
+     * @param cacheDir ファイルキャッシュディレクトリ
+     * @param cacheSize キャッシュサイズ(Byte)
+     * @param diskCacheSize ファイルキャッシュサイズ(Byte)
+     * @param packed セグメントファイルに追記する場合はtrue、URLごとにファイルを作成する場合はfalse
+     */
+    public ImageCache(final File cacheDir, int cacheSize, long diskCacheSize, boolean packed) {
         this.cacheDir = cacheDir;
         cache = new Cache(cacheSize);
-        createCacheDir();
+        setEncodedCacheSize(cacheSize / DEFAULT_ENCODED_CACHE_DIVISOR);
+        createCacheDir(diskCacheSize, packed);
     }
 
     /**
-     * キャッシュディレクトリを作成する。<br>
-     * 作成に失敗した場合は、ファイルキャッシュなしとして処理を続行するようにしている。
+     * インスタンスの識別子を取得する。<br>
+     * 異なるインスタンスへの要求を区別するために使用する。
+     * 
+     * @return 同じプロセス内で一意な識別子
      */
-    private void createCacheDir() {
+    long getId() {
+        return id;
+    }
+
+    /**
+     * ヒープの最大サイズに対する割合でメモリキャッシュのサイズを求める。
+     * 
+     * @param fraction ヒープの最大サイズに対する割合(0より大きく1未満)
+     * @return メモリキャッシュのサイズ(Byte)
+     */
+    public static int getMemoryCacheSize(final float fraction) {
+        checkFraction(fraction);
+        return (int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() * fraction);
+    }
+
+    /**
+     * 端末のメモリクラスに対する割合でメモリキャッシュのサイズを求める。<br>
+     * ヒープの最大サイズの方が小さい場合は、ヒープの最大サイズに対する割合とする。
+     * 
+     * @param context コンテキスト
+     * @param fraction メモリクラスに対する割合(0より大きく1未満)
+     * @return メモリキャッシュのサイズ(Byte)
+     */
+    public static int getMemoryCacheSize(final Context context, final float fraction) {
+        checkFraction(fraction);
+        final ActivityManager am = (ActivityManager) context
+                .getSystemService(Context.ACTIVITY_SERVICE);
+        final long memoryClass = am.getMemoryClass() * 1024L * 1024L;
+        final long heap = Math.min(memoryClass, Runtime.getRuntime().maxMemory());
+        return (int) Math.min(Integer.MAX_VALUE, heap * fraction);
+    }
+
+    /**
+     * 割合の範囲を確認する。
+     * 
+     * @param fraction 割合
+     */
+    private static void checkFraction(final float fraction) {
+        if (fraction <= 0 || fraction >= 1) {
+            throw new IllegalArgumentException("fraction must be between 0 and 1.");
+        }
+    }
+
+    /**
+     * ファイルキャッシュを作成する。<br>
+     * キャッシュディレクトリの作成はジャーナルの読み込みと合わせてバックグラウンドで行うため、
+     * 呼び出したスレッドではファイルI/Oを行わない。
+     * 
+     * @param diskCacheSize ファイルキャッシュサイズ(Byte)
+     * @param packed セグメントファイルに追記する場合はtrue
+     */
+    private void createCacheDir(final long diskCacheSize, final boolean packed) {
         if (cacheDir != null) {
-            if (FileUtil.mkdir(cacheDir) == false) {
-                Log.w(TAG, "CREATE CacheDir is Failed. CacheDir is " + cacheDir.getAbsolutePath());
-                cacheDir = null;
+            if (packed) {
+                packCache = new PackCache(cacheDir, diskCacheSize);
+            } else {
+                diskCache = new DiskCache(cacheDir, diskCacheSize);
             }
         }
     }
@@ -74,7 +234,175 @@ public class ImageCache {
      * @param bitmap 画像のBitmap
      */
     public void saveBitmap(final String url, final Bitmap bitmap) {
-        cache.put(url, bitmap);
+        saveBitmap(url, 0, 0, bitmap);
+    }
+
+    /**
+     * 要求サイズに合わせてデコードしたBitmapをメモリキャッシュする。<br>
+     * 同じURLでも要求サイズごとに別のキャッシュとして扱う。<br>
+     * Bitmapのプールを設定している場合、保存後も使用するBitmapは保存前に{@link BitmapPool#acquire(Bitmap)}で使用中にすること。
+     * 
+     * @param url 画像のURL
+     * @param width 要求した幅(px)。0の場合は元のサイズ
+     * @param height 要求した高さ(px)。0の場合は元のサイズ
+     * @param bitmap 画像のBitmap
+     */
+    public void saveBitmap(final String url, final int width, final int height,
+            final Bitmap bitmap) {
+        cache.put(getMemoryKey(url, width, height), bitmap);
+    }
+
+    /**
+     * 画像の圧縮データをメモリキャッシュする。<br>
+     * データはヒープ外のByteBufferにコピーして保持する。圧縮データのメモリキャッシュを使用しない場合は何もしない。
+     * 
+     * @param url 画像のURL
+     * @param data 画像データ
+     * @param length データ長
+     */
+    public void saveEncodedImage(final String url, final byte[] data, final int length) {
+        final EncodedCache encoded = encodedCache;
+        if (encoded == null || length <= 0 || length > encoded.maxSize()) {
+            return;
+        }
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(length);
+        buffer.put(data, 0, length);
+        buffer.flip();
+        encoded.put(getFileName(url), buffer);
+    }
+
+    /**
+     * メモリキャッシュから画像の圧縮データを取得する。
+     * 
+     * @param url 画像のURL
+     * @return 読み込み専用の画像データ。メモリキャッシュに無い場合はnull
+     */
+    public ByteBuffer getEncodedImage(final String url) {
+        final EncodedCache encoded = encodedCache;
+        if (encoded == null) {
+            return null;
+        }
+        final ByteBuffer buffer = encoded.get(getFileName(url));
+        ImageStats.getInstance().increment(buffer != null ? ImageStats.Counter.ENCODED_HIT
+                : ImageStats.Counter.ENCODED_MISS);
+        return buffer != null ? buffer.asReadOnlyBuffer() : null;
+    }
+
+    /**
+     * 圧縮データのメモリキャッシュのサイズを設定する。<br>
+     * デフォルトはBitmapのメモリキャッシュの1/4。
+     * 
+     * @param size キャッシュサイズ(Byte)。0の場合は使用しない
+     */
+    public void setEncodedCacheSize(final int size) {
+        if (size <= 0) {
+            final EncodedCache encoded = encodedCache;
+            encodedCache = null;
+            if (encoded != null) {
+                encoded.evictAll();
+            }
+        } else if (encodedCache == null) {
+            encodedCache = new EncodedCache(size);
+        } else {
+            encodedCache.resize(size);
+        }
+    }
+
+    /**
+     * 圧縮データのメモリキャッシュを使用するかどうかを返す。
+     * 
+     * @return 使用する場合はtrue
+     */
+    public boolean isEncodedCache() {
+        return encodedCache != null;
+    }
+
+    /**
+     * ファイルキャッシュのうち最近参照された画像を、圧縮データのメモリキャッシュに先読みする。<br>
+     * 起動直後の表示でファイルを読み込まずに済むよう、{@link ImagePipeline}のデコード用スレッドで優先度を下げて行う。<br>
+     * 圧縮データのメモリキャッシュ、またはファイルキャッシュを使用しない場合は何もしない。
+     * 
+     * @param count 先読みする最大数
+     */
+    public void warmUp(final int count) {
+        if (count <= 0 || encodedCache == null || (diskCache == null && packCache == null)) {
+            return;
+        }
+        ImagePipeline.getInstance().getExecutor().executeDecode(new Runnable() {
+            @Override
+            public void run() {
+                final List<String> urls = packCache != null ? packCache.recentUrls(count)
+                        : diskCache.recentUrls(count);
+                // 最も最近参照された画像が最後に登録されるよう、古い順に読み込む
+                for (int i = urls.size() - 1; i >= 0; i--) {
+                    final EncodedCache encoded = encodedCache;
+                    if (encoded == null) {
+                        return;
+                    }
+                    final String url = urls.get(i);
+                    if (encoded.get(getFileName(url)) == null) {
+                        warmUp(url);
+                    }
+                }
+            }
+        }, ImageExecutor.PRIORITY_LOW);
+    }
+
+    /**
+     * ファイルキャッシュの画像を、圧縮データのメモリキャッシュに読み込む。
+     * 
+     * @param url 画像のURL
+     */
+    private void warmUp(final String url) {
+        if (packCache != null) {
+            final ByteBuffer buffer = packCache.get(getFileName(url), url);
+            final EncodedCache encoded = encodedCache;
+            if (buffer == null || encoded == null || buffer.remaining() > encoded.maxSize()) {
+                return;
+            }
+            final ByteBuffer copy = ByteBuffer.allocateDirect(buffer.remaining());
+            copy.put(buffer);
+            copy.flip();
+            encoded.put(getFileName(url), copy);
+            return;
+        }
+        final File file = diskCache.get(getFileName(url), url);
+        if (file == null) {
+            return;
+        }
+        try {
+            final byte[] data = readFile(file);
+            if (verifyCachedData(url, data, data.length)) {
+                saveEncodedImage(url, data, data.length);
+            }
+        } catch (final IOException e) {
+            Log.w(TAG, "READ cache file is Failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * ファイルを全て読み込む。
+     * 
+     * @param file ファイル
+     * @return ファイルの内容
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static byte[] readFile(final File file) throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < data.length) {
+                final int len = in.read(data, length, data.length - length);
+                if (len == -1) {
+                    throw new IOException("unexpected end of file: " + file.getAbsolutePath());
+                }
+                length += len;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
     }
 
     /**
@@ -85,83 +413,577 @@ public class ImageCache {
      * @return 画像のBitmap
      */
     public Bitmap getImage(final String url) {
+        return getImage(url, 0, 0);
+    }
+
+    /**
+     * キャッシュから要求サイズに合わせた画像のBitmapを取得する。<br>
+     * Bitmapのメモリキャッシュ→圧縮データのメモリキャッシュ→ファイルキャッシュの順に取得する。<br>
+     * 圧縮データ、ファイルキャッシュから取得した場合は、要求サイズに合わせて縮小してデコードし、メモリキャッシュに保存する。<br>
+     * ファイルキャッシュの有効期限が切れている場合はnullを返す。再検証は{@link ImagePipeline}が行う。<br>
+     * ファイルキャッシュのデータが保存時のチェックサムと一致しない場合は、破損したキャッシュとして削除してnullを返す。<br>
+     * ファイルの読み込みとデコードを呼び出し元のスレッドで行うため、UIスレッドからは
+     * {@link #getMemoryImage(String, int, int)}を使用すること。<br>
+     * Bitmapのプールを設定している場合は、使用中にしてから返す。
+     * 
+     * @param url 元画像ファイルのURL
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @return 画像のBitmap
+     */
+    public Bitmap getImage(final String url, final int width, final int height) {
 
-        final Bitmap bm = cache.get(url);
+        final String memoryKey = getMemoryKey(url, width, height);
+        final Bitmap bm = getMemoryImage(memoryKey);
         if (bm != null) {
             return bm;
         }
 
-        if (cacheDir == null) {
+        final ImageStats stats = ImageStats.getInstance();
+        final ByteBuffer encoded = getEncodedImage(url);
+        if (encoded != null) {
+            try {
+                final Bitmap bitmap = BitmapDecoder.decodeByteBuffer(encoded, width, height,
+                        bitmapPool);
+                if (bitmap != null) {
+                    putAcquired(memoryKey, bitmap);
+                    return bitmap;
+                }
+            } catch (final OutOfMemoryError e) {
+                Log.e(TAG, e.getMessage());
+                stats.increment(ImageStats.Counter.OOM_RECOVERY);
+                stats.error(url, e);
+                onOutOfMemory();
+                return null;
+            }
+        }
+
+        if (diskCache == null && packCache == null) {
             return null;
         }
 
-        final String fileName = getFileName(url);
-        final File localFile = new File(cacheDir, fileName);
+        final File localFile = getFreshCachedFile(url);
+        final ByteBuffer packed = getFreshPackedImage(url);
+        if (localFile == null && packed == null) {
+            stats.increment(ImageStats.Counter.DISK_MISS);
+            return null;
+        }
+        stats.increment(ImageStats.Counter.DISK_HIT);
+        final long start = SystemClock.uptimeMillis();
         Bitmap bitmap = null;
         try {
-            bitmap = BitmapFactory.decodeFile(localFile.getPath());
+            if (packed != null) {
+                bitmap = BitmapDecoder.decodeByteBuffer(packed, width, height, bitmapPool);
+            } else {
+                // 破損したファイルをデコードしないよう、読み込んだデータを照合してからデコードする
+                final byte[] data = readFile(localFile);
+                if (verifyCachedData(url, data, data.length)) {
+                    bitmap = BitmapDecoder.decodeByteArray(data, 0, data.length, width, height,
+                            bitmapPool);
+                }
+            }
+            if (bitmap != null) {
+                putAcquired(memoryKey, bitmap);
+            }
         } catch (final Exception e) {
             Log.e(TAG, e.getMessage());
+            stats.error(url, e);
         } catch (final OutOfMemoryError e) {
             Log.e(TAG, e.getMessage());
-            cache.evictAll();
+            stats.increment(ImageStats.Counter.OOM_RECOVERY);
+            stats.error(url, e);
+            onOutOfMemory();
         }
+        stats.record(ImageStats.Timer.DISK_LOAD, SystemClock.uptimeMillis() - start);
         return bitmap;
     }
 
     /**
-     * メモリキャッシュを削除する。
+     * メモリキャッシュのみから要求サイズに合わせた画像のBitmapを取得する。<br>
+     * ファイルの読み込みを行わないため、UIスレッドから呼び出してもよい。
+     * Bitmapのプールを設定している場合は、使用中にしてから返す。
+     * 
+     * @param url 元画像ファイルのURL
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @return 画像のBitmap。メモリキャッシュに無い場合はnull
+     */
+    public Bitmap getMemoryImage(final String url, final int width, final int height) {
+        return getMemoryImage(getMemoryKey(url, width, height));
+    }
+
+    /**
+     * メモリキャッシュに要求サイズに合わせた画像のBitmapがあるかどうかを返す。<br>
+     * Bitmapを使用中にしないため、取得せずに有無のみを確認する場合に使用する。
+     * 
+     * @param url 元画像ファイルのURL
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @return メモリキャッシュにある場合はtrue
+     */
+    public boolean hasMemoryImage(final String url, final int width, final int height) {
+        return findMemoryImage(getMemoryKey(url, width, height)) != null;
+    }
+
+    /**
+     * メモリキャッシュから画像のBitmapを取得し、使用中にする。<br>
+     * 取得と使用中にする間にキャッシュから追い出されてプールに入らないよう、プールのロックを取得して行う。
+     * 
+     * @param memoryKey メモリキャッシュのキー
+     * @return 画像のBitmap。メモリキャッシュに無い場合はnull
+     */
+    private Bitmap getMemoryImage(final String memoryKey) {
+        final BitmapPool pool = bitmapPool;
+        if (pool == null) {
+            return findMemoryImage(memoryKey);
+        }
+        synchronized (pool) {
+            final Bitmap bitmap = findMemoryImage(memoryKey);
+            pool.acquire(bitmap);
+            return bitmap;
+        }
+    }
+
+    /**
+     * デコードしたBitmapを使用中にしてからメモリキャッシュに保存する。
+     * 
+     * @param memoryKey メモリキャッシュのキー
+     * @param bitmap 画像のBitmap
+     */
+    private void putAcquired(final String memoryKey, final Bitmap bitmap) {
+        final BitmapPool pool = bitmapPool;
+        if (pool != null) {
+            pool.acquire(bitmap);
+        }
+        cache.put(memoryKey, bitmap);
+    }
+
+    /**
+     * メモリキャッシュから画像のBitmapを取得し、ヒット数を記録する。
+     * 
+     * @param memoryKey メモリキャッシュのキー
+     * @return 画像のBitmap。メモリキャッシュに無い場合はnull
+     */
+    private Bitmap findMemoryImage(final String memoryKey) {
+        Bitmap bitmap = cache.get(memoryKey);
+        if (bitmap == null) {
+            final SoftReference<Bitmap> ref = softCache.remove(memoryKey);
+            if (ref != null) {
+                bitmap = ref.get();
+                if (bitmap != null && bitmap.isRecycled() == false) {
+                    cache.put(memoryKey, bitmap);
+                } else {
+                    bitmap = null;
+                }
+            }
+        }
+        ImageStats.getInstance().increment(bitmap != null ? ImageStats.Counter.MEMORY_HIT
+                : ImageStats.Counter.MEMORY_MISS);
+        return bitmap;
+    }
+
+    /**
+     * メモリキャッシュを削除する。<br>
+     * Bitmapのプール、SoftReferenceで保持しているBitmapも破棄する。
      */
     public void memoryCacheClear() {
         cache.evictAll();
+        final EncodedCache encoded = encodedCache;
+        if (encoded != null) {
+            encoded.evictAll();
+        }
+        softCache.clear();
+        if (bitmapPool != null) {
+            bitmapPool.clear();
+        }
     }
 
     /**
-     * ファイルキャッシュを削除する。
+     * メモリ不足の通知に応じて、メモリキャッシュを縮小する。<br>
+     * レベルが高いほど小さくし、{@link ComponentCallbacks2#TRIM_MEMORY_COMPLETE}では全て破棄する。<br>
+     * UI非表示、実行中の軽度の不足以外では、Bitmapのプール、SoftReferenceで保持しているBitmapも破棄する。
+     * 
+     * @param level {@link ComponentCallbacks2#onTrimMemory(int)}のレベル
      */
-    public void deleteAll() {
-        if (cacheDir != null && cacheDir.isDirectory() == false) {
+    public void onTrimMemory(final int level) {
+        final int maxSize = cache.maxSize();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            memoryCacheClear();
             return;
         }
-
-        final File[] files = cacheDir.listFiles();
-        for (final File file : files) {
-            if (file.isFile()) {
-                if (!file.delete()) {
-                    Log.v(TAG, "file delete false");
-                }
+        final int targetSize;
+        boolean releasePool = true;
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE) {
+            targetSize = maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            targetSize = maxSize / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_UI_HIDDEN) {
+            targetSize = maxSize * 3 / 4;
+            releasePool = false;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            targetSize = maxSize / 4;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            targetSize = maxSize / 2;
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE) {
+            targetSize = maxSize * 3 / 4;
+            releasePool = false;
+        } else {
+            return;
+        }
+        cache.trimToSize(targetSize);
+        final EncodedCache encoded = encodedCache;
+        if (encoded != null) {
+            encoded.trimToSize((int) ((long) encoded.maxSize() * targetSize / maxSize));
+        }
+        if (releasePool) {
+            softCache.clear();
+            if (bitmapPool != null) {
+                bitmapPool.clear();
             }
         }
     }
 
     /**
-     * ファイルキャッシュディレクトリのサイズを取得する。
+     * メモリ不足の通知に応じて、メモリキャッシュを全て破棄する。
+     * 
+     * @see ComponentCallbacks#onLowMemory()
+     */
+    public void onLowMemory() {
+        memoryCacheClear();
+    }
+
+    /**
+     * デコード中にOutOfMemoryErrorが発生した場合に、メモリキャッシュを半分に縮小する。<br>
+     * 全て破棄すると表示中の画像も読み込み直しになるため、まずは古いものから解放する。
+     */
+    void onOutOfMemory() {
+        cache.trimToSize(cache.size() / 2);
+        final EncodedCache encoded = encodedCache;
+        if (encoded != null) {
+            encoded.trimToSize(encoded.size() / 2);
+        }
+        softCache.clear();
+        if (bitmapPool != null) {
+            bitmapPool.clear();
+        }
+    }
+
+    /**
+     * アプリケーションのメモリ不足の通知を受け取るよう登録する。<br>
+     * Android 4.0以上では{@link ComponentCallbacks2}を登録する。それ未満では登録できないため、
+     * ActivityのonLowMemory()から{@link #onLowMemory()}を呼び出すこと。
+     * 
+     * @param context コンテキスト
+     */
+    public void registerComponentCallbacks(final Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            context.getApplicationContext().registerComponentCallbacks(new TrimCallbacks(this));
+        }
+    }
+
+    /**
+     * 再利用するBitmapのプールを設定する。<br>
+     * 設定した場合、メモリキャッシュから削除されたBitmapはプールに入り、以降のデコードで上書きして再利用される。<br>
+     * そのため、{@link #getImage(String, int, int)}、{@link #getMemoryImage(String, int, int)}、
+     * {@link ImagePipeline}の結果のBitmapは{@link BitmapPool#acquire(Bitmap)}で使用中にしてから渡す。
+     * 使い終えたら{@link BitmapPool#release(Bitmap)}を呼び出すと再利用される。呼び出さない場合は再利用されない。
+     * {@link jp.ddo.trismegistos.androidutil.view.WebImageView}は自動的に呼び出す。
+     * 
+     * @param bitmapPool Bitmapのプール。nullの場合は再利用しない
+     */
+    public void setBitmapPool(final BitmapPool bitmapPool) {
+        this.bitmapPool = bitmapPool;
+        softCache.clear();
+    }
+
+    /**
+     * 再利用するBitmapのプールを取得する。
+     * 
+     * @return Bitmapのプール。設定されていない場合はnull
+     */
+    public BitmapPool getBitmapPool() {
+        return bitmapPool;
+    }
+
+    /**
+     * ファイルキャッシュを削除する。
+     */
+    public void deleteAll() {
+        if (diskCache != null) {
+            diskCache.clear();
+        }
+        if (packCache != null) {
+            packCache.clear();
+        }
+    }
+
+    /**
+     * ファイルキャッシュディレクトリのサイズを取得する。<br>
+     * ファイルキャッシュのインデックスから取得するため、ディレクトリの走査は行わない。
      * 
      * @return ファイルキャッシュディレクトリのサイズ
      */
     public long dirSize() {
-        long size = 0L;
-        if (cacheDir == null) {
-            return size;
+        if (packCache != null) {
+            return packCache.fileSize();
         }
-        if (cacheDir.isDirectory()) {
-            for (final File file : cacheDir.listFiles()) {
-                size += file.length();
-            }
-        } else {
-            size = cacheDir.length();
+        if (diskCache == null) {
+            return 0L;
+        }
+        return diskCache.size();
+    }
+
+    /**
+     * ファイルキャッシュの書き込み用の一時ファイルを取得する。<br>
+     * 書き込み完了後は{@link #commitCacheFile(String, File, CacheMetadata)}、失敗した場合は
+     * {@link #abortCacheFile(File)}を呼び出すこと。
+     * 
+     * @param url 画像のURL
+     * @return 書き込み用の一時ファイル。ファイルキャッシュが不可能な場合はnull
+     */
+    public File getCacheFile(final String url) {
+        if (diskCache == null) {
+            return null;
+        }
+        return diskCache.newTempFile(getFileName(url));
+    }
+
+    /**
+     * 書き込みが完了した一時ファイルをファイルキャッシュに登録する。<br>
+     * CRC32を求めるために一時ファイルを読み直すため、書き込んだデータがある場合は
+     * {@link #commitCacheFile(String, File, long, CacheMetadata)}を使用すること。
+     * 
+     * @param url 画像のURL
+     * @param tempFile 書き込みが完了した一時ファイル
+     * @param metadata メタデータ。nullの場合は保存しない
+     */
+    public void commitCacheFile(final String url, final File tempFile,
+            final CacheMetadata metadata) {
+        if (diskCache == null) {
+            return;
+        }
+        long checksum = DiskCache.UNKNOWN_CHECKSUM;
+        try {
+            checksum = DiskCache.checksum(tempFile);
+        } catch (final IOException e) {
+            Log.w(TAG, "CHECKSUM file is Failed. " + e.getMessage());
+        }
+        diskCache.commit(getFileName(url), url, tempFile, checksum, metadata);
+    }
+
+    /**
+     * 書き込みが完了した一時ファイルをファイルキャッシュに登録する。
+     * 
+     * @param url 画像のURL
+     * @param tempFile 書き込みが完了した一時ファイル
+     * @param checksum 書き込んだデータのCRC32
+     * @param metadata メタデータ。nullの場合は保存しない
+     */
+    public void commitCacheFile(final String url, final File tempFile, final long checksum,
+            final CacheMetadata metadata) {
+        if (diskCache != null) {
+            diskCache.commit(getFileName(url), url, tempFile, checksum, metadata);
+        }
+    }
+
+    /**
+     * ファイルキャッシュのファイルを取得する。<br>
+     * 有効期限は確認しない。
+     * 
+     * @param url 画像のURL
+     * @return キャッシュファイル。キャッシュに存在しない場合はnull
+     */
+    public File getCachedFile(final String url) {
+        if (diskCache == null) {
+            return null;
+        }
+        return diskCache.get(getFileName(url), url);
+    }
+
+    /**
+     * 有効期限内のファイルキャッシュのファイルを取得する。<br>
+     * メタデータが無いファイルは有効期限内として扱う。
+     * 
+     * @param url 画像のURL
+     * @return キャッシュファイル。キャッシュに存在しない、または有効期限が切れている場合はnull
+     */
+    public File getFreshCachedFile(final String url) {
+        if (diskCache == null) {
+            return null;
+        }
+        final String key = getFileName(url);
+        final File file = diskCache.get(key, url);
+        if (file == null) {
+            return null;
+        }
+        final CacheMetadata metadata = diskCache.readMetadata(key);
+        if (metadata != null && metadata.isExpired(System.currentTimeMillis())) {
+            return null;
+        }
+        return file;
+    }
+
+    /**
+     * ファイルキャッシュから読み込んだデータを、保存時のチェックサムと照合する。<br>
+     * 一致しない場合は破損したキャッシュとして削除する。
+     * 
+     * @param url 画像のURL
+     * @param data 読み込んだデータ
+     * @param length データ長
+     * @return 一致した場合、またはチェックサムが記録されていない場合はtrue
+     */
+    public boolean verifyCachedData(final String url, final byte[] data, final int length) {
+        if (diskCache == null) {
+            return true;
+        }
+        return diskCache.verify(getFileName(url), data, length);
+    }
+
+    /**
+     * {@link PackCache}に画像データを保存する。
+     * 
+     * @param url 画像のURL
+     * @param data 画像データ
+     * @param length データ長
+     * @param metadata メタデータ。nullの場合は有効期限なしとする
+     */
+    public void savePackedImage(final String url, final byte[] data, final int length,
+            final CacheMetadata metadata) {
+        if (packCache != null) {
+            packCache.put(getFileName(url), url, data, length, metadata);
+        }
+    }
+
+    /**
+     * {@link PackCache}から画像データを取得する。<br>
+     * 有効期限は確認しない。
+     * 
+     * @param url 画像のURL
+     * @return 読み込み専用の画像データ。キャッシュに存在しない場合はnull
+     */
+    public ByteBuffer getPackedImage(final String url) {
+        if (packCache == null) {
+            return null;
+        }
+        return packCache.get(getFileName(url), url);
+    }
+
+    /**
+     * {@link PackCache}から有効期限内の画像データを取得する。
+     * 
+     * @param url 画像のURL
+     * @return 読み込み専用の画像データ。キャッシュに存在しない、または有効期限が切れている場合はnull
+     */
+    public ByteBuffer getFreshPackedImage(final String url) {
+        if (packCache == null) {
+            return null;
+        }
+        final String key = getFileName(url);
+        final CacheMetadata metadata = packCache.readMetadata(key);
+        if (metadata != null && metadata.isExpired(System.currentTimeMillis())) {
+            return null;
         }
-        return size;
+        return packCache.get(key, url);
     }
 
     /**
-     * ファイル名を取得する。
+     * ファイルキャッシュに{@link PackCache}を使用しているかどうかを返す。
+     * 
+     * @return PackCacheを使用している場合はtrue
+     */
+    public boolean isPackCache() {
+        return packCache != null;
+    }
+
+    /**
+     * ファイルキャッシュのメタデータを取得する。
+     * 
+     * @param url 画像のURL
+     * @return メタデータ。キャッシュに存在しない、または保存されていない場合はnull
+     */
+    public CacheMetadata getMetadata(final String url) {
+        if (packCache != null) {
+            return packCache.readMetadata(getFileName(url));
+        }
+        if (diskCache == null) {
+            return null;
+        }
+        return diskCache.readMetadata(getFileName(url));
+    }
+
+    /**
+     * ファイルキャッシュのメタデータを更新する。<br>
+     * 再検証で有効期限を延長した場合に使用する。
+     * 
+     * @param url 画像のURL
+     * @param metadata メタデータ
+     */
+    public void updateMetadata(final String url, final CacheMetadata metadata) {
+        if (diskCache != null) {
+            diskCache.writeMetadata(getFileName(url), metadata);
+        }
+        if (packCache != null) {
+            packCache.writeMetadata(getFileName(url), metadata);
+        }
+    }
+
+    /**
+     * レスポンスに有効期限の指定が無い場合の有効期間を設定する。<br>
+     * デフォルトは24時間。
+     * 
+     * @param defaultTtl 有効期間(ミリ秒)
+     */
+    public void setDefaultTtl(final long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * レスポンスに有効期限の指定が無い場合の有効期間を取得する。
+     * 
+     * @return 有効期間(ミリ秒)
+     */
+    public long getDefaultTtl() {
+        return defaultTtl;
+    }
+
+    /**
+     * 書き込みに失敗した一時ファイルを破棄する。
+     * 
+     * @param tempFile 一時ファイル
+     */
+    public void abortCacheFile(final File tempFile) {
+        if (diskCache != null) {
+            diskCache.abort(tempFile);
+        }
+    }
+
+    /**
+     * ファイル名を取得する。<br>
+     * メモリキャッシュのキーとしても使用する。
      * 
      * @param url 画像のURL
      * @return 画像ファイル名。
+     * @see CacheKey#of(String)
      */
     public static String getFileName(final String url) {
-        return String.valueOf(url.hashCode());
+        return CacheKey.of(url);
+    }
+
+    /**
+     * メモリキャッシュのキーを取得する。<br>
+     * 要求サイズが指定されている場合は、サイズをキーに含める。
+     * 
+     * @param url 画像のURL
+     * @param width 要求した幅(px)
+     * @param height 要求した高さ(px)
+     * @return メモリキャッシュのキー
+     */
+    public static String getMemoryKey(final String url, final int width, final int height) {
+        final String key = getFileName(url);
+        if (BitmapDecoder.isSizeSpecified(width, height) == false) {
+            return key;
+        }
+        return key + '_' + width + 'x' + height;
     }
 
     /**
@@ -183,12 +1005,13 @@ public class ImageCache {
     }
 
     /**
-     * SupportLibraryのLruCacheのバグを修正したLruCacheクラス。
+     * Bitmapのメモリキャッシュクラス。<br>
+     * UIスレッドからの参照がデコード用スレッドからの追加を待たないよう、{@link MemoryCache}を使用する。
      * 
      * @author y_sugasawa
      * @since 2013/02/06
      */
-    class Cache extends LruCache<String, Bitmap> {
+    class Cache extends MemoryCache<String, Bitmap> {
 
         /**
          * コンストラクタ。
@@ -199,10 +1022,107 @@ public class ImageCache {
             super(maxSize);
         }
 
+        /**
+         * {@inheritDoc}<br>
+         * Bitmapのバイト数を返す。
+         */
         @Override
         protected int sizeOf(final String key, final Bitmap value) {
             return value.getRowBytes() * value.getHeight();
         }
 
+        /**
+         * {@inheritDoc}<br>
+         * Bitmapのプールが設定されている場合は、削除されたBitmapをプールに入れる。
+         */
+        @Override
+        protected void entryRemoved(final boolean evicted, final String key,
+                final Bitmap oldValue, final Bitmap newValue) {
+            if (evicted) {
+                final ImageStats stats = ImageStats.getInstance();
+                stats.increment(ImageStats.Counter.EVICTION);
+                stats.add(ImageStats.Counter.EVICTION_BYTES, sizeOf(key, oldValue));
+            }
+            final BitmapPool pool = bitmapPool;
+            if (pool != null && oldValue != newValue) {
+                pool.put(oldValue);
+            } else if (pool == null && evicted) {
+                softCache.put(key, new SoftReference<Bitmap>(oldValue));
+            }
+        }
+
+    }
+
+    /**
+     * 画像の圧縮データのメモリキャッシュクラス。<br>
+     * キーはファイルキャッシュと同じく、要求サイズを含まないURLのファイル名とする。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    private static class EncodedCache extends MemoryCache<String, ByteBuffer> {
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param maxSize 最大キャッシュサイズ
+         */
+        EncodedCache(final int maxSize) {
+            super(maxSize);
+        }
+
+        /**
+         * {@inheritDoc}<br>
+         * データのバイト数を返す。
+         */
+        @Override
+        protected int sizeOf(final String key, final ByteBuffer value) {
+            return value.capacity();
+        }
+    }
+
+    /**
+     * メモリ不足の通知を受け取るクラス。<br>
+     * Android 4.0未満で{@link ComponentCallbacks2}を読み込まないよう、登録時のみ生成する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/02
+     */
+    private static class TrimCallbacks implements ComponentCallbacks2 {
+
+        /** 通知先のキャッシュ。 */
+        private final ImageCache imageCache;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param imageCache 通知先のキャッシュ
+         */
+        TrimCallbacks(final ImageCache imageCache) {
+            this.imageCache = imageCache;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onTrimMemory(final int level) {
+            imageCache.onTrimMemory(level);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onLowMemory() {
+            imageCache.onLowMemory();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onConfigurationChanged(final Configuration newConfig) {
+        }
     }
 }
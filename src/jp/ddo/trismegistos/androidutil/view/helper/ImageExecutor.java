@@ -0,0 +1,314 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.os.Process;
+
+/**
+ * 画像処理専用のExecutorクラス。<br>
+ * ネットワークI/O用とデコード用に別々のスレッドプールを持ち、アプリ内の他のLoaderとスレッドを共有しない。<br>
+ * 待ち行列は優先度の高い順、同じ優先度の場合は後から登録されたものから実行する(LIFO)。<br>
+ * 待ち行列にあるタスクの優先度は{@link Task#raisePriority(int)}で引き上げられる。<br>
+ * 待ち行列が上限を超えた場合は、最も優先度が低く古いタスクを破棄する。<br>
+ * 破棄されたタスクが{@link Discardable}を実装している場合は、破棄されたことを通知する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/20
+ */
+public class ImageExecutor {
+
+    /** 優先度:低。画面外の画像の先読みなど。 */
+    public static final int PRIORITY_LOW = 0;
+
+    /** 優先度:通常。 */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /** 優先度:高。画面に表示中の画像など。 */
+    public static final int PRIORITY_HIGH = 2;
+
+    /** デフォルトのネットワークI/O用スレッド数。 */
+    public static final int DEFAULT_NETWORK_THREADS = 4;
+
+    /** デフォルトのデコード用スレッド数。 */
+    public static final int DEFAULT_DECODE_THREADS = 2;
+
+    /** デフォルトの待ち行列の上限。 */
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 128;
+
+    /** 登録順の通し番号。 */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** ネットワークI/O用のスレッドプール。 */
+    private final ThreadPoolExecutor networkExecutor;
+
+    /** デコード用のスレッドプール。 */
+    private final ThreadPoolExecutor decodeExecutor;
+
+    /** 待ち行列の上限。 */
+    private final int maxQueueSize;
+
+    /**
+     * コンストラクタ。<br>
+     * デフォルトのスレッド数、待ち行列の上限で作成する。
+     */
+    public ImageExecutor() {
+        this(DEFAULT_NETWORK_THREADS, DEFAULT_DECODE_THREADS, DEFAULT_MAX_QUEUE_SIZE);
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param networkThreads ネットワークI/O用スレッド数
+     * @param decodeThreads デコード用スレッド数
+     * @param maxQueueSize 各スレッドプールの待ち行列の上限
+     */
+    public ImageExecutor(final int networkThreads, final int decodeThreads,
+            final int maxQueueSize) {
+        if (networkThreads <= 0 || decodeThreads <= 0 || maxQueueSize <= 0) {
+            throw new IllegalArgumentException("networkThreads, decodeThreads and maxQueueSize "
+                    + "must be positive.");
+        }
+        this.maxQueueSize = maxQueueSize;
+        networkExecutor = createExecutor("ImageNetwork", networkThreads);
+        decodeExecutor = createExecutor("ImageDecode", decodeThreads);
+    }
+
+    /**
+     * スレッドプールを作成する。
+     * 
+     * @param name スレッド名
+     * @param threads スレッド数
+     * @return スレッドプール
+     */
+    private static ThreadPoolExecutor createExecutor(final String name, final int threads) {
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.SECONDS,
+                new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        final Thread thread = new Thread(new Runnable() {
+                            @Override
+                            public void run() {
+                                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                                r.run();
+                            }
+                        }, name + "#" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * ネットワークI/O用のスレッドプールでタスクを実行する。
+     * 
+     * @param runnable タスク
+     * @param priority 優先度
+     * @return 登録したタスク
+     */
+    public Task executeNetwork(final Runnable runnable, final int priority) {
+        return execute(networkExecutor, runnable, priority);
+    }
+
+    /**
+     * デコード用のスレッドプールでタスクを実行する。
+     * 
+     * @param runnable タスク
+     * @param priority 優先度
+     * @return 登録したタスク
+     */
+    public Task executeDecode(final Runnable runnable, final int priority) {
+        return execute(decodeExecutor, runnable, priority);
+    }
+
+    /**
+     * タスクを登録する。<br>
+     * 待ち行列が上限に達している場合は、最も優先度が低く古いタスクを破棄する。
+     * 
+     * @param executor スレッドプール
+     * @param runnable タスク
+     * @param priority 優先度
+     * @return 登録したタスク
+     */
+    private Task execute(final ThreadPoolExecutor executor, final Runnable runnable,
+            final int priority) {
+        final Task task = new Task(executor, runnable, priority, sequence.incrementAndGet());
+        Task oldest = null;
+        synchronized (executor) {
+            if (executor.getQueue().size() >= maxQueueSize) {
+                for (final Iterator<Runnable> it = executor.getQueue().iterator(); it.hasNext();) {
+                    final Task t = (Task) it.next();
+                    if (oldest == null || t.compareTo(oldest) > 0) {
+                        oldest = t;
+                    }
+                }
+                if (oldest != null) {
+                    oldest.cancel();
+                }
+            }
+            executor.execute(task);
+        }
+        if (oldest != null && oldest.runnable instanceof Discardable) {
+            ((Discardable) oldest.runnable).onDiscarded();
+        }
+        return task;
+    }
+
+    /**
+     * 全てのスレッドプールを停止する。<br>
+     * 実行されずに待ち行列から取り除かれたタスクには、{@link Discardable#onDiscarded()}で通知する。
+     */
+    public void shutdown() {
+        final List<Runnable> dropped = new ArrayList<Runnable>();
+        dropped.addAll(networkExecutor.shutdownNow());
+        dropped.addAll(decodeExecutor.shutdownNow());
+        for (final Runnable r : dropped) {
+            final Task task = (Task) r;
+            if (task.isCancelled() == false && task.runnable instanceof Discardable) {
+                ((Discardable) task.runnable).onDiscarded();
+            }
+        }
+    }
+
+    /**
+     * ネットワークI/O用の待ち行列の長さを取得する。
+     * 
+     * @return 待ち行列の長さ
+     */
+    public int getNetworkQueueSize() {
+        return networkExecutor.getQueue().size();
+    }
+
+    /**
+     * デコード用の待ち行列の長さを取得する。
+     * 
+     * @return 待ち行列の長さ
+     */
+    public int getDecodeQueueSize() {
+        return decodeExecutor.getQueue().size();
+    }
+
+    /**
+     * 待ち行列の上限を超えて破棄された際に通知を受ける処理。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    public interface Discardable extends Runnable {
+
+        /**
+         * 実行されずに待ち行列から破棄された際に呼ばれる。
+         */
+        void onDiscarded();
+    }
+
+    /**
+     * 優先度付きのタスク。<br>
+     * 実行前にキャンセルされた場合は待ち行列から取り除かれ、実行されない。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    public static class Task implements Runnable, Comparable<Task> {
+
+        /** 登録先のスレッドプール。 */
+        private final ThreadPoolExecutor executor;
+
+        /** 実行する処理。 */
+        private final Runnable runnable;
+
+        /** 優先度。待ち行列の外にある間のみ変更する。 */
+        private volatile int priority;
+
+        /** 登録順の通し番号。 */
+        private final long sequence;
+
+        /** キャンセルされた場合はtrue。 */
+        private volatile boolean cancelled;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param executor 登録先のスレッドプール
+         * @param runnable 実行する処理
+         * @param priority 優先度
+         * @param sequence 登録順の通し番号
+         */
+        Task(final ThreadPoolExecutor executor, final Runnable runnable, final int priority,
+                final long sequence) {
+            this.executor = executor;
+            this.runnable = runnable;
+            this.priority = priority;
+            this.sequence = sequence;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            if (cancelled == false) {
+                runnable.run();
+            }
+        }
+
+        /**
+         * タスクをキャンセルする。<br>
+         * 実行中の場合は処理を中断しない。
+         */
+        public void cancel() {
+            cancelled = true;
+            executor.remove(this);
+        }
+
+        /**
+         * 優先度を引き上げる。<br>
+         * 待ち行列の並び順が崩れないよう、待ち行列から取り除いてから優先度を変更し、登録し直す。
+         * 実行中、実行済み、またはキャンセルされた場合は何もしない。
+         * 
+         * @param newPriority 優先度。現在の優先度以下の場合は何もしない
+         */
+        public void raisePriority(final int newPriority) {
+            synchronized (executor) {
+                if (newPriority <= priority || executor.remove(this) == false) {
+                    return;
+                }
+                priority = newPriority;
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * キャンセルされたかどうかを返す。
+         * 
+         * @return キャンセルされた場合はtrue
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * {@inheritDoc}<br>
+         * 優先度の高いもの、同じ優先度では後から登録されたものほど前に並ぶ。
+         */
+        @Override
+        public int compareTo(final Task another) {
+            if (priority != another.priority) {
+                return priority > another.priority ? -1 : 1;
+            }
+            if (sequence != another.sequence) {
+                return sequence > another.sequence ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+}
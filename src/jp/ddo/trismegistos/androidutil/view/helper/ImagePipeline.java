@@ -0,0 +1,1221 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.CRC32;
+
+import jp.ddo.trismegistos.androidutil.file.FileUtil;
+import android.graphics.Bitmap;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Web上の画像の取得、キャッシュ保存、デコードを行うクラス。<br>
+ * メモリ上の圧縮データ、ファイルキャッシュの検索、読み込み、デコードは{@link ImageExecutor}のデコード用スレッド、ダウンロードはネットワークI/O用スレッドで行う。<br>
+ * 同じURLへの要求が同時に複数あった場合は、最初の要求の取得・デコード結果を全ての要求で共有する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/18
+ */
+public class ImagePipeline {
+
+    /** タグ。 */
+    private static final String TAG = ImagePipeline.class.getSimpleName();
+
+    /** Content-Lengthが不明な場合の受信バッファの初期サイズ(Byte)。 */
+    private static final int INITIAL_BUFFER_SIZE = 32 * 1024;
+
+    /** Content-Lengthから確保する受信バッファの上限(Byte)。超える場合は受信に合わせて拡張する。 */
+    private static final int MAX_PREALLOCATE_SIZE = 4 * 1024 * 1024;
+
+    /** ファイルへ書き込む単位(Byte)。 */
+    private static final int WRITE_CHUNK_SIZE = 16 * 1024;
+
+    /** 進捗を通知する間隔(Byte)。 */
+    private static final int PROGRESS_INTERVAL = 16 * 1024;
+
+    /** デフォルトのインスタンス。 */
+    private static ImagePipeline instance;
+
+    /** 画像処理用のExecutor。 */
+    private final ImageExecutor executor;
+
+    /** 処理中の要求。キーは要求キー。 */
+    private final Map<String, InFlight> inFlights = new HashMap<String, InFlight>();
+
+    /** 統計。 */
+    private final ImageStats stats = ImageStats.getInstance();
+
+    /** 画像の取得に使用するHttpFetcher。 */
+    private volatile HttpFetcher fetcher = new DefaultHttpFetcher();
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param executor 画像処理用のExecutor
+     */
+    public ImagePipeline(final ImageExecutor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * デフォルトのインスタンスを取得する。<br>
+     * {@link #setInstance(ImagePipeline)}で設定されていない場合は、デフォルト設定の{@link ImageExecutor}で作成する。
+     * 
+     * @return ImagePipeline
+     */
+    public static synchronized ImagePipeline getInstance() {
+        if (instance == null) {
+            instance = new ImagePipeline(new ImageExecutor());
+        }
+        return instance;
+    }
+
+    /**
+     * デフォルトのインスタンスを設定する。<br>
+     * スレッド数や待ち行列の上限を変更する場合は、画像の読み込み開始前に設定すること。
+     * 
+     * @param pipeline ImagePipeline
+     */
+    public static synchronized void setInstance(final ImagePipeline pipeline) {
+        instance = pipeline;
+    }
+
+    /**
+     * 画像処理用のExecutorを取得する。
+     * 
+     * @return 画像処理用のExecutor
+     */
+    public ImageExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * 画像の取得に使用するHttpFetcherを設定する。<br>
+     * タイムアウトやホスト毎の同時接続数を変更する場合や、テスト用のスタブに差し替える場合に使用する。
+     * 
+     * @param fetcher HttpFetcher
+     */
+    public void setFetcher(final HttpFetcher fetcher) {
+        if (fetcher == null) {
+            throw new IllegalArgumentException("fetcher must not be null.");
+        }
+        this.fetcher = fetcher;
+    }
+
+    /**
+     * 画像の取得に使用するHttpFetcherを取得する。
+     * 
+     * @return HttpFetcher
+     */
+    public HttpFetcher getFetcher() {
+        return fetcher;
+    }
+
+    /**
+     * 画像の取得を要求する。<br>
+     * 同じ要求が処理中の場合は、その処理に合流して結果を共有する。要求サイズが異なる場合もダウンロードは共有する。<br>
+     * 合流した要求の優先度の方が高い場合は、待ち行列にある処理の優先度を引き上げる。<br>
+     * localDirがnullでない場合はlocalDirに保存し、imageCacheがnullでない場合はキャッシュに保存する。<br>
+     * 要求サイズが指定されている場合は、要求サイズに合わせて縮小してデコードする。<br>
+     * 結果はワーカースレッドからcallbackに通知される。
+     * 
+     * @param url 画像URL
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param localDir ローカルディレクトリ
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @param priority 優先度
+     * @param callback 結果の通知先
+     * @return 要求。キャンセルに使用する
+     */
+    public ImageRequest submit(final String url, final ImageCache imageCache, final File localDir,
+            final int width, final int height, final int priority, final Callback callback) {
+        return submit(url, imageCache, localDir, width, height, priority, true, callback);
+    }
+
+    /**
+     * 画像をファイルキャッシュに先読みする。<br>
+     * デコードは行わず、ファイルキャッシュに有効期限内の画像がある場合はダウンロードも行わない。<br>
+     * 結果はワーカースレッドからcallbackに通知される。Bitmapは常にnullとなるため、成否は
+     * {@link ImageRequest#isSucceeded()}で判定すること。
+     * 
+     * @param url 画像URL
+     * @param imageCache ファイルキャッシュが可能なキャッシュ管理オブジェクト
+     * @param priority 優先度
+     * @param callback 結果の通知先
+     * @return 要求。キャンセルに使用する
+     */
+    public ImageRequest prefetch(final String url, final ImageCache imageCache,
+            final int priority, final Callback callback) {
+        if (imageCache == null || imageCache.isFileCache() == false) {
+            throw new IllegalArgumentException("imageCache must have a disk cache.");
+        }
+        return submit(url, imageCache, null, 0, 0, priority, false, callback);
+    }
+
+    /**
+     * 画像の取得を要求する。
+     * 
+     * @param url 画像URL
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param localDir ローカルディレクトリ
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @param priority 優先度
+     * @param decode デコードする場合はtrue、保存のみの場合はfalse
+     * @param callback 結果の通知先
+     * @return 要求。キャンセルに使用する
+     */
+    private ImageRequest submit(final String url, final ImageCache imageCache,
+            final File localDir, final int width, final int height, final int priority,
+            final boolean decode, final Callback callback) {
+        final String requestKey = getRequestKey(url, imageCache, localDir);
+        final ImageRequest request = new ImageRequest(this, url, width, height, decode, callback);
+        final InFlight inFlight;
+        final boolean isNew;
+        ImageExecutor.Task raise = null;
+        synchronized (inFlights) {
+            final InFlight pending = inFlights.get(requestKey);
+            if (pending != null) {
+                inFlight = pending;
+                isNew = false;
+                if (priority > pending.priority) {
+                    // 先読みなどの低い優先度の処理に合流した場合は、待ち行列の順番を引き上げる
+                    pending.priority = priority;
+                    raise = pending.task;
+                }
+            } else {
+                inFlight = new InFlight(requestKey, url, imageCache, localDir, priority);
+                inFlights.put(requestKey, inFlight);
+                stats.addInFlight(1);
+                isNew = true;
+            }
+            request.inFlight = inFlight;
+            inFlight.requests.add(request);
+        }
+        if (isNew) {
+            if (hasCache(inFlight)) {
+                // ダウンロード待ちの後ろに並ばないよう、キャッシュはデコード用スレッドで検索する
+                execute(inFlight, new DiskStage(inFlight), false);
+            } else {
+                execute(inFlight, new NetworkStage(inFlight), true);
+            }
+        } else if (raise != null) {
+            raise.raisePriority(priority);
+        }
+        return request;
+    }
+
+    /**
+     * 処理中の要求の次の処理を、要求の現在の優先度で登録する。<br>
+     * 登録中に優先度の高い要求が合流した場合は、登録したタスクの優先度を引き上げる。
+     * 
+     * @param inFlight 処理中の要求
+     * @param stage 処理
+     * @param network ネットワークI/O用のスレッドプールで実行する場合はtrue、デコード用の場合はfalse
+     */
+    private void execute(final InFlight inFlight, final Runnable stage, final boolean network) {
+        final int priority = inFlight.priority;
+        final ImageExecutor.Task task = network ? executor.executeNetwork(stage, priority)
+                : executor.executeDecode(stage, priority);
+        inFlight.task = task;
+        final int current = inFlight.priority;
+        if (current > priority) {
+            task.raisePriority(current);
+        }
+    }
+
+    /**
+     * 画像を取得する。<br>
+     * 処理が完了するまで呼び出し元のスレッドをブロックするため、UIスレッドから呼び出さないこと。
+     * 
+     * @param url 画像URL
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param localDir ローカルディレクトリ
+     * @return 画像のBitmap。取得に失敗した場合はnull
+     */
+    public Bitmap load(final String url, final ImageCache imageCache, final File localDir) {
+        return load(url, imageCache, localDir, 0, 0);
+    }
+
+    /**
+     * 要求サイズに合わせて画像を取得する。<br>
+     * 処理が完了するまで呼び出し元のスレッドをブロックするため、UIスレッドから呼び出さないこと。
+     * 
+     * @param url 画像URL
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param localDir ローカルディレクトリ
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @return 画像のBitmap。取得に失敗した場合はnull
+     */
+    public Bitmap load(final String url, final ImageCache imageCache, final File localDir,
+            final int width, final int height) {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final Bitmap[] result = new Bitmap[1];
+        final ImageRequest request = submit(url, imageCache, localDir, width, height,
+                ImageExecutor.PRIORITY_NORMAL, new Callback() {
+                    @Override
+                    public void onComplete(final ImageRequest request, final Bitmap bitmap) {
+                        result[0] = bitmap;
+                        latch.countDown();
+                    }
+                });
+        try {
+            latch.await();
+        } catch (final InterruptedException e) {
+            request.cancel();
+            Thread.currentThread().interrupt();
+            return null;
+        }
+        return result[0];
+    }
+
+    /**
+     * 処理中の要求を識別するキーを取得する。<br>
+     * 保存先が異なる要求は別の要求として扱う。
+     * 
+     * @param url 画像URL
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param localDir ローカルディレクトリ
+     * @return 要求キー
+     */
+    private static String getRequestKey(final String url, final ImageCache imageCache,
+            final File localDir) {
+        final StringBuilder sb = new StringBuilder(ImageCache.getFileName(url));
+        if (localDir != null) {
+            sb.append('|').append(localDir.getAbsolutePath());
+        } else if (imageCache != null) {
+            sb.append('@').append(imageCache.getId());
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 要求をキャンセルする。<br>
+     * 同じ処理を待っている要求が他に無くなった場合は、処理自体も待ち行列から取り除く。
+     * 
+     * @param request 要求
+     */
+    void cancel(final ImageRequest request) {
+        final InFlight inFlight = request.inFlight;
+        ImageExecutor.Task task = null;
+        synchronized (inFlights) {
+            request.cancelled = true;
+            if (inFlight == null || inFlight.requests.remove(request) == false) {
+                return;
+            }
+            if (inFlight.requests.isEmpty()) {
+                inFlight.abandoned = true;
+                removeInFlight(inFlight);
+                task = inFlight.task;
+            }
+        }
+        if (task != null) {
+            task.cancel();
+        }
+    }
+
+    /**
+     * 処理中の要求を一覧から取り除く。<br>
+     * inFlightsのロックを取得した状態で呼び出すこと。
+     * 
+     * @param inFlight 処理中の要求
+     */
+    private void removeInFlight(final InFlight inFlight) {
+        if (inFlights.get(inFlight.key) == inFlight) {
+            inFlights.remove(inFlight.key);
+            stats.addInFlight(-1);
+        }
+    }
+
+    /**
+     * 待っている要求を要求サイズごとにデコードし、結果を通知する。<br>
+     * デコード中に合流した要求も含め、待っている要求が無くなるまで繰り返す。<br>
+     * 保存のみの要求は、デコードせずに成功を通知する。
+     * 
+     * @param inFlight 処理中の要求
+     */
+    private void decodeAndComplete(final InFlight inFlight) {
+        while (true) {
+            final ImageRequest first;
+            synchronized (inFlights) {
+                if (inFlight.requests.isEmpty()) {
+                    removeInFlight(inFlight);
+                    inFlight.data = null;
+                    inFlight.encoded = null;
+                    return;
+                }
+                first = inFlight.requests.get(0);
+            }
+            Bitmap bitmap = null;
+            if (first.decode) {
+                if (inFlight.data == null && inFlight.encoded == null
+                        && inFlight.cachedFile != null) {
+                    final long start = SystemClock.uptimeMillis();
+                    try {
+                        readCachedFile(inFlight, inFlight.cachedFile);
+                    } catch (final IOException e) {
+                        Log.w(TAG, "READ cache file is Failed. " + e.getMessage());
+                    }
+                    stats.record(ImageStats.Timer.DISK_LOAD, SystemClock.uptimeMillis() - start);
+                }
+                bitmap = decode(inFlight, first.width, first.height);
+            }
+            final List<ImageRequest> requests = new ArrayList<ImageRequest>();
+            synchronized (inFlights) {
+                final Iterator<ImageRequest> it = inFlight.requests.iterator();
+                while (it.hasNext()) {
+                    final ImageRequest request = it.next();
+                    if (request.decode == first.decode && request.width == first.width
+                            && request.height == first.height) {
+                        it.remove();
+                        requests.add(request);
+                    }
+                }
+            }
+            final BitmapPool pool = inFlight.imageCache != null ? inFlight.imageCache
+                    .getBitmapPool() : null;
+            if (bitmap != null) {
+                if (pool != null) {
+                    // 通知先ごとに使用中にしてから保存し、通知までに追い出されてもプールに入らないようにする
+                    for (int i = 0; i < requests.size(); i++) {
+                        pool.acquire(bitmap);
+                    }
+                }
+                if (inFlight.imageCache != null && inFlight.localDir == null) {
+                    inFlight.imageCache.saveBitmap(inFlight.url, first.width, first.height,
+                            bitmap);
+                }
+            }
+            final boolean succeeded = first.decode == false || bitmap != null;
+            for (final ImageRequest request : requests) {
+                if (request.cancelled == false) {
+                    request.succeeded = succeeded;
+                    notifyComplete(request, bitmap);
+                } else if (bitmap != null && pool != null) {
+                    pool.release(bitmap);
+                }
+            }
+        }
+    }
+
+    /**
+     * 処理を完了し、待っている全ての要求に結果を通知する。<br>
+     * 失敗の通知にのみ使用する。
+     * 
+     * @param inFlight 処理中の要求
+     * @param bitmap 結果
+     */
+    private void complete(final InFlight inFlight, final Bitmap bitmap) {
+        final List<ImageRequest> requests;
+        synchronized (inFlights) {
+            removeInFlight(inFlight);
+            requests = new ArrayList<ImageRequest>(inFlight.requests);
+            inFlight.requests.clear();
+        }
+        for (final ImageRequest request : requests) {
+            if (request.cancelled == false) {
+                notifyComplete(request, bitmap);
+            }
+        }
+    }
+
+    /**
+     * 要求に結果を通知する。<br>
+     * 通知先で例外が発生しても、他の要求への通知は続ける。
+     * 
+     * @param request 要求
+     * @param bitmap 結果
+     */
+    private static void notifyComplete(final ImageRequest request, final Bitmap bitmap) {
+        try {
+            request.callback.onComplete(request, bitmap);
+        } catch (final RuntimeException e) {
+            Log.e(TAG, "CALLBACK is Failed. url is " + request.url, e);
+        }
+    }
+
+    /**
+     * 処理中に予期しない例外が発生した場合に、待っている全ての要求に失敗を通知する。<br>
+     * 処理中の一覧に要求が残り、後から合流した要求が完了しなくなることを防ぐ。
+     * 
+     * @param inFlight 処理中の要求
+     * @param t 例外
+     */
+    private void fail(final InFlight inFlight, final Throwable t) {
+        Log.e(TAG, "UNEXPECTED error. url is " + inFlight.url, t);
+        stats.error(inFlight.url, t);
+        complete(inFlight, null);
+    }
+
+    /**
+     * 画像をダウンロードし、保存する。<br>
+     * 受信したデータはメモリ上に読み込みながら、同じバッファから一時ファイルに書き込む。<br>
+     * 全て受信できた場合のみ一時ファイルを保存先にリネームするため、書き込み途中のファイルが参照されることはない。<br>
+     * ファイルキャッシュにメタデータがある場合は条件付きリクエストを送信し、304 Not Modifiedの場合は
+     * 本文を受信せずにキャッシュファイルを読み込む。<br>
+     * ローカルディレクトリに保存する場合は{@link PartialDownload}で受信途中のファイルを管理し、
+     * 通信が途切れても次回は続きから受信する。
+     * 
+     * @param inFlight 処理中の要求
+     * @return ダウンロードに成功した場合はtrue
+     */
+    private boolean download(final InFlight inFlight) {
+
+        final String url = inFlight.url;
+        final ImageCache imageCache = inFlight.imageCache;
+        final File localDir = inFlight.localDir;
+
+        HttpFetcher.Response response = null;
+        InputStream in = null;
+        OutputStream out = null;
+        File tempFile = null;
+        PartialDownload partial = null;
+        boolean success = false;
+        Exception error = null;
+
+        final long start = SystemClock.uptimeMillis();
+        File cachedFile = null;
+        ByteBuffer cachedBuffer = null;
+        CacheMetadata metadata = null;
+        if (localDir == null && imageCache != null && imageCache.isFileCache()) {
+            metadata = imageCache.getMetadata(url);
+            if (metadata != null && metadata.isRevalidatable()) {
+                if (imageCache.isPackCache()) {
+                    cachedBuffer = imageCache.getPackedImage(url);
+                } else {
+                    cachedFile = imageCache.getCachedFile(url);
+                }
+            }
+        }
+        final boolean revalidate = cachedFile != null || cachedBuffer != null;
+
+        try {
+            Map<String, String> headers = null;
+            if (revalidate) {
+                headers = new HashMap<String, String>();
+                metadata.applyTo(headers);
+            } else if (localDir != null) {
+                FileUtil.mkdir(localDir);
+                partial = new PartialDownload(localDir, getFileName(url));
+                headers = new HashMap<String, String>();
+                partial.applyTo(headers);
+            }
+            response = fetcher.get(url, headers);
+
+            if (revalidate
+                    && response.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                if (useNotModified(inFlight, cachedBuffer, cachedFile)) {
+                    imageCache.updateMetadata(url, metadata.revalidated(response,
+                            System.currentTimeMillis(), imageCache.getDefaultTtl()));
+                    stats.increment(ImageStats.Counter.NETWORK_NOT_MODIFIED);
+                    success = true;
+                    return true;
+                }
+                // 破損したキャッシュファイルは照合時に削除済みのため、条件を付けずに取得し直す
+                response.close();
+                response = null;
+                response = fetcher.get(url, null);
+            }
+            in = response.getInputStream();
+
+            final int contentLength;
+            int length = 0;
+            if (partial != null) {
+                out = partial.open(response);
+                contentLength = (int) partial.getTotalLength();
+                length = (int) partial.getOffset();
+            } else {
+                if (imageCache != null && imageCache.isFileCache()
+                        && imageCache.isPackCache() == false) {
+                    tempFile = imageCache.getCacheFile(url);
+                }
+                if (tempFile != null) {
+                    out = new FileOutputStream(tempFile);
+                }
+                contentLength = response.getContentLength();
+            }
+
+            // 不正なContent-Lengthで巨大な配列を確保しないよう、上限を設ける
+            byte[] data = new byte[Math.max(contentLength > 0 ? Math.min(contentLength,
+                    MAX_PREALLOCATE_SIZE) : INITIAL_BUFFER_SIZE, length)];
+            if (length > 0) {
+                // 受信済みのデータは.partファイルから読み込み、続きのみを受信する
+                partial.readPart(data);
+                stats.increment(ImageStats.Counter.NETWORK_RESUMED);
+            }
+            final int resumed = length;
+            int written = length;
+            int notified = length;
+            while (true) {
+                if (length == data.length) {
+                    // Content-Lengthどおりに受信した場合は、終端の確認のみで拡張しない
+                    final int b = in.read();
+                    if (b == -1) {
+                        break;
+                    }
+                    final byte[] newData = new byte[data.length * 2];
+                    System.arraycopy(data, 0, newData, 0, length);
+                    data = newData;
+                    data[length++] = (byte) b;
+                } else {
+                    final int len = in.read(data, length, data.length - length);
+                    if (len == -1) {
+                        break;
+                    }
+                    length += len;
+                }
+                if (out != null && length - written >= WRITE_CHUNK_SIZE) {
+                    out.write(data, written, length - written);
+                    written = length;
+                }
+                if (length - notified >= PROGRESS_INTERVAL) {
+                    notifyProgress(inFlight, length, contentLength);
+                    notified = length;
+                }
+            }
+            if (out != null) {
+                out.write(data, written, length - written);
+                out.close();
+                out = null;
+            }
+            if (partial != null) {
+                partial.verify(response, data, length);
+            }
+            inFlight.data = data;
+            inFlight.length = length;
+            if (localDir == null && imageCache != null) {
+                imageCache.saveEncodedImage(url, data, length);
+            }
+            stats.increment(ImageStats.Counter.NETWORK_FETCH);
+            stats.add(ImageStats.Counter.BYTES_DOWNLOADED, length - resumed);
+            stats.record(ImageStats.Timer.NETWORK_FETCH, SystemClock.uptimeMillis() - start);
+
+            if (localDir != null) {
+                final File file = new File(localDir, getFileName(url));
+                if (partial.commit(file) == false) {
+                    Log.w(TAG, "RENAME file is Failed. path is " + file.getAbsolutePath());
+                }
+            } else if (tempFile != null) {
+                // 書き込んだデータはメモリ上にあるため、ファイルを読み直さずにCRC32を求める
+                final CRC32 crc = new CRC32();
+                crc.update(data, 0, length);
+                imageCache.commitCacheFile(url, tempFile, crc.getValue(), CacheMetadata.from(
+                        response, System.currentTimeMillis(), imageCache.getDefaultTtl()));
+            } else if (imageCache != null && imageCache.isPackCache()) {
+                imageCache.savePackedImage(url, data, length, CacheMetadata.from(response,
+                        System.currentTimeMillis(), imageCache.getDefaultTtl()));
+            }
+            success = true;
+            return true;
+        } catch (final Exception e) {
+            Log.e(TAG, "" + e.getMessage());
+            stats.increment(ImageStats.Counter.NETWORK_ERROR);
+            stats.error(url, e);
+            error = e;
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "DOWNLOAD is Failed. out of memory. url is " + url);
+            stats.increment(ImageStats.Counter.NETWORK_ERROR);
+            stats.error(url, e);
+        } finally {
+            if (response != null) {
+                // 本文のストリームも閉じられ、接続は再利用される
+                response.close();
+            }
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (final Exception e) {
+                }
+            }
+            if (success == false && partial != null) {
+                partial.abort(error);
+            } else if (success == false && tempFile != null) {
+                imageCache.abortCacheFile(tempFile);
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * ダウンロードの前にキャッシュを検索する要求かどうかを返す。
+     * 
+     * @param inFlight 処理中の要求
+     * @return 圧縮データのメモリキャッシュ、ファイルキャッシュのいずれかを検索する場合はtrue
+     */
+    private static boolean hasCache(final InFlight inFlight) {
+        return inFlight.localDir == null && inFlight.imageCache != null
+                && (inFlight.imageCache.isEncodedCache() || inFlight.imageCache.isFileCache());
+    }
+
+    /**
+     * ファイルキャッシュを検索する要求かどうかを返す。
+     * 
+     * @param inFlight 処理中の要求
+     * @return ファイルキャッシュを検索する場合はtrue
+     */
+    private static boolean hasDiskCache(final InFlight inFlight) {
+        return inFlight.localDir == null && inFlight.imageCache != null
+                && inFlight.imageCache.isFileCache();
+    }
+
+    /**
+     * 圧縮データのメモリキャッシュに画像がある場合は、ファイルを読み込まずにそのデータからデコードする。<br>
+     * ファイルキャッシュへの先読みのみの要求の場合は、ファイルの有無を確認するため検索しない。
+     * 
+     * @param inFlight 処理中の要求
+     * @return 圧縮データを使用する場合はtrue
+     */
+    private boolean findEncodedCache(final InFlight inFlight) {
+        final ImageCache imageCache = inFlight.imageCache;
+        if (inFlight.localDir != null || imageCache == null
+                || imageCache.isEncodedCache() == false) {
+            return false;
+        }
+        if (imageCache.isFileCache()) {
+            synchronized (inFlights) {
+                if (inFlight.requests.isEmpty() || inFlight.requests.get(0).decode == false) {
+                    return false;
+                }
+            }
+        }
+        inFlight.encoded = imageCache.getEncodedImage(inFlight.url);
+        return inFlight.encoded != null;
+    }
+
+    /**
+     * ファイルキャッシュに有効期限内の画像がある場合は、ダウンロードせずにキャッシュを使用する。<br>
+     * キャッシュファイルはデコードする要求がある場合のみ読み込む。{@link PackCache}の場合は、マップした領域から直接デコードする。<br>
+     * 読み込んだデータが保存時のチェックサムと一致しない場合は、キャッシュに無いものとして扱う。
+     * 
+     * @param inFlight 処理中の要求
+     * @return ファイルキャッシュを使用する場合はtrue
+     */
+    private boolean findDiskCache(final InFlight inFlight) {
+        final ImageCache imageCache = inFlight.imageCache;
+        if (hasDiskCache(inFlight) == false) {
+            return false;
+        }
+        final boolean hit;
+        if (imageCache.isPackCache()) {
+            inFlight.encoded = imageCache.getFreshPackedImage(inFlight.url);
+            hit = inFlight.encoded != null;
+        } else {
+            inFlight.cachedFile = imageCache.getFreshCachedFile(inFlight.url);
+            hit = inFlight.cachedFile != null && loadCachedFile(inFlight);
+        }
+        stats.increment(hit ? ImageStats.Counter.DISK_HIT : ImageStats.Counter.DISK_MISS);
+        return hit;
+    }
+
+    /**
+     * デコードする要求がある場合は、キャッシュファイルを読み込んで検証する。
+     * 
+     * @param inFlight 処理中の要求
+     * @return キャッシュファイルを使用できる場合はtrue
+     */
+    private boolean loadCachedFile(final InFlight inFlight) {
+        synchronized (inFlights) {
+            if (inFlight.requests.isEmpty() || inFlight.requests.get(0).decode == false) {
+                return true;
+            }
+        }
+        final long start = SystemClock.uptimeMillis();
+        try {
+            readCachedFile(inFlight, inFlight.cachedFile);
+            return true;
+        } catch (final IOException e) {
+            Log.w(TAG, "READ cache file is Failed. " + e.getMessage());
+            inFlight.cachedFile = null;
+            return false;
+        } finally {
+            stats.record(ImageStats.Timer.DISK_LOAD, SystemClock.uptimeMillis() - start);
+        }
+    }
+
+    /**
+     * 受信中のバイト数を、{@link ProgressCallback}を実装した要求に通知する。
+     * 
+     * @param inFlight 処理中の要求
+     * @param bytesRead 受信したバイト数
+     * @param contentLength 全体のバイト数。不明な場合は-1
+     */
+    private void notifyProgress(final InFlight inFlight, final int bytesRead,
+            final int contentLength) {
+        final List<ImageRequest> requests = new ArrayList<ImageRequest>(1);
+        synchronized (inFlights) {
+            for (final ImageRequest request : inFlight.requests) {
+                if (request.callback instanceof ProgressCallback) {
+                    requests.add(request);
+                }
+            }
+        }
+        for (final ImageRequest request : requests) {
+            if (request.cancelled == false) {
+                ((ProgressCallback) request.callback).onProgress(request, bytesRead,
+                        contentLength);
+            }
+        }
+    }
+
+    /**
+     * 304 Not Modifiedの場合に、再検証したキャッシュを読み込む。
+     * 
+     * @param inFlight 処理中の要求
+     * @param cachedBuffer {@link PackCache}の画像データ。ファイルキャッシュの場合はnull
+     * @param cachedFile キャッシュファイル。{@link PackCache}の場合はnull
+     * @return キャッシュを使用できる場合はtrue、読み込めない、または破損している場合はfalse
+     */
+    private static boolean useNotModified(final InFlight inFlight,
+            final ByteBuffer cachedBuffer, final File cachedFile) {
+        if (cachedBuffer != null) {
+            inFlight.encoded = cachedBuffer;
+            return true;
+        }
+        try {
+            readCachedFile(inFlight, cachedFile);
+            return true;
+        } catch (final IOException e) {
+            Log.w(TAG, "READ cache file is Failed. " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * キャッシュファイルをメモリ上に読み込む。<br>
+     * ファイルキャッシュのファイルは保存時のチェックサムと照合し、一致しない場合はキャッシュから削除する。
+     * 
+     * @param inFlight 処理中の要求
+     * @param file キャッシュファイル
+     * @throws IOException 読み込みに失敗した場合、またはデータが破損している場合
+     */
+    private static void readCachedFile(final InFlight inFlight, final File file)
+            throws IOException {
+        final byte[] data = new byte[(int) file.length()];
+        final InputStream in = new FileInputStream(file);
+        try {
+            int length = 0;
+            while (length < data.length) {
+                final int len = in.read(data, length, data.length - length);
+                if (len == -1) {
+                    throw new IOException("unexpected end of file: " + file.getAbsolutePath());
+                }
+                length += len;
+            }
+        } finally {
+            in.close();
+        }
+        if (inFlight.localDir == null && inFlight.imageCache != null) {
+            if (inFlight.imageCache.verifyCachedData(inFlight.url, data, data.length) == false) {
+                throw new IOException("checksum mismatch: " + file.getAbsolutePath());
+            }
+            inFlight.imageCache.saveEncodedImage(inFlight.url, data, data.length);
+        }
+        inFlight.data = data;
+        inFlight.length = data.length;
+    }
+
+    /**
+     * ダウンロードした画像を要求サイズに合わせてデコードする。<br>
+     * メモリキャッシュへの保存は、通知先ごとに使用中にしてから{@link #decodeAndComplete(InFlight)}で行う。
+     * 
+     * @param inFlight 処理中の要求
+     * @param width 要求する幅(px)
+     * @param height 要求する高さ(px)
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    private Bitmap decode(final InFlight inFlight, final int width, final int height) {
+        final long start = SystemClock.uptimeMillis();
+        Bitmap bitmap = null;
+        try {
+            final BitmapPool pool = inFlight.imageCache != null ? inFlight.imageCache
+                    .getBitmapPool() : null;
+            if (inFlight.data != null) {
+                bitmap = BitmapDecoder.decodeByteArray(inFlight.data, 0, inFlight.length, width,
+                        height, pool);
+            } else if (inFlight.encoded != null) {
+                bitmap = BitmapDecoder.decodeByteBuffer(inFlight.encoded, width, height, pool);
+            }
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "" + e.getMessage());
+            stats.error(inFlight.url, e);
+            if (inFlight.imageCache != null) {
+                inFlight.imageCache.onOutOfMemory();
+                stats.increment(ImageStats.Counter.OOM_RECOVERY);
+            }
+        }
+        stats.increment(bitmap != null ? ImageStats.Counter.DECODE
+                : ImageStats.Counter.DECODE_ERROR);
+        stats.record(ImageStats.Timer.DECODE, SystemClock.uptimeMillis() - start);
+        return bitmap;
+    }
+
+    /**
+     * URLから画像ファイル名を取得する。<br>
+     * 拡張子を含まない場合は"jpg"を付けて返却する。
+     * 
+     * @param url 画像URL
+     * @return 画像ファイル名
+     */
+    static String getFileName(final String url) {
+        final StringBuilder sb = new StringBuilder(url.substring(url.lastIndexOf("/") + 1));
+        if (sb.indexOf(".") == -1) {
+            sb.append(".jpg");
+        }
+        return sb.toString();
+    }
+
+    /**
+     * 画像取得の結果を受け取るインタフェース。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    public interface Callback {
+
+        /**
+         * 画像の取得が完了した際に、ワーカースレッドから呼ばれる。<br>
+         * キャンセルされた要求には通知されない。<br>
+         * キャッシュ管理オブジェクトにBitmapのプールを設定している場合、bitmapは通知先ごとに使用中になっている。
+         * 使い終えたら{@link BitmapPool#release(Bitmap)}を呼び出すこと。
+         * 
+         * @param request 要求
+         * @param bitmap 画像のBitmap。取得に失敗した場合はnull
+         */
+        void onComplete(ImageRequest request, Bitmap bitmap);
+    }
+
+    /**
+     * 画像取得の結果に加え、ダウンロードの進捗を受け取るインタフェース。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/04
+     */
+    public interface ProgressCallback extends Callback {
+
+        /**
+         * ダウンロード中に一定量を受信するたびに、ワーカースレッドから呼ばれる。<br>
+         * キャッシュから取得した場合は呼ばれない。
+         * 
+         * @param request 要求
+         * @param bytesRead 受信したバイト数
+         * @param contentLength 全体のバイト数。不明な場合は-1
+         */
+        void onProgress(ImageRequest request, int bytesRead, int contentLength);
+    }
+
+    /**
+     * 画像の取得要求。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    public static class ImageRequest {
+
+        /** 要求先のImagePipeline。 */
+        private final ImagePipeline pipeline;
+
+        /** 画像URL。 */
+        private final String url;
+
+        /** 要求する幅(px)。 */
+        private final int width;
+
+        /** 要求する高さ(px)。 */
+        private final int height;
+
+        /** デコードする場合はtrue、保存のみの場合はfalse。 */
+        private final boolean decode;
+
+        /** 結果の通知先。 */
+        private final Callback callback;
+
+        /** 合流している処理。 */
+        private InFlight inFlight;
+
+        /** キャンセルされた場合はtrue。 */
+        private volatile boolean cancelled;
+
+        /** 成功した場合はtrue。 */
+        private volatile boolean succeeded;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param pipeline 要求先のImagePipeline
+         * @param url 画像URL
+         * @param width 要求する幅(px)
+         * @param height 要求する高さ(px)
+         * @param decode デコードする場合はtrue、保存のみの場合はfalse
+         * @param callback 結果の通知先
+         */
+        ImageRequest(final ImagePipeline pipeline, final String url, final int width,
+                final int height, final boolean decode, final Callback callback) {
+            this.pipeline = pipeline;
+            this.url = url;
+            this.width = width;
+            this.height = height;
+            this.decode = decode;
+            this.callback = callback;
+        }
+
+        /**
+         * 要求をキャンセルする。<br>
+         * キャンセル後は結果が通知されない。
+         */
+        public void cancel() {
+            pipeline.cancel(this);
+        }
+
+        /**
+         * キャンセルされたかどうかを返す。
+         * 
+         * @return キャンセルされた場合はtrue
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * 成功したかどうかを返す。<br>
+         * 結果の通知時に設定される。
+         * 
+         * @return 成功した場合はtrue
+         */
+        public boolean isSucceeded() {
+            return succeeded;
+        }
+
+        /**
+         * 画像URLを取得する。
+         * 
+         * @return 画像URL
+         */
+        public String getUrl() {
+            return url;
+        }
+    }
+
+    /**
+     * 処理中の要求。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/18
+     */
+    private static class InFlight {
+
+        /** 要求キー。 */
+        private final String key;
+
+        /** 画像URL。 */
+        private final String url;
+
+        /** キャッシュ管理オブジェクト。 */
+        private final ImageCache imageCache;
+
+        /** ローカルディレクトリ。 */
+        private final File localDir;
+
+        /** 優先度。優先度の高い要求が合流した場合は引き上げる。 */
+        private volatile int priority;
+
+        /** 結果を待っている要求。 */
+        private final List<ImageRequest> requests = new ArrayList<ImageRequest>(1);
+
+        /** 実行中または待ち行列にあるタスク。 */
+        private volatile ImageExecutor.Task task;
+
+        /** 待っている要求が無くなった場合はtrue。 */
+        private volatile boolean abandoned;
+
+        /** ダウンロードしたデータ。デコード完了後に破棄する。 */
+        private byte[] data;
+
+        /** ダウンロードしたデータの長さ。 */
+        private int length;
+
+        /** メモリキャッシュ、{@link PackCache}から取得した圧縮データ。デコード完了後に破棄する。 */
+        private ByteBuffer encoded;
+
+        /** 有効期限内のキャッシュファイル。ダウンロードしなかった場合のみ設定する。 */
+        private File cachedFile;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param key 要求キー
+         * @param url 画像URL
+         * @param imageCache キャッシュ管理オブジェクト
+         * @param localDir ローカルディレクトリ
+         * @param priority 優先度
+         */
+        InFlight(final String key, final String url, final ImageCache imageCache,
+                final File localDir, final int priority) {
+            this.key = key;
+            this.url = url;
+            this.imageCache = imageCache;
+            this.localDir = localDir;
+            this.priority = priority;
+        }
+    }
+
+    /**
+     * キャッシュの検索処理。<br>
+     * 圧縮データのメモリキャッシュ、または有効期限内のファイルキャッシュがある場合はそのまま読み込み、デコードして結果を通知する。無い場合はダウンロード処理を登録する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/05
+     */
+    private class DiskStage implements ImageExecutor.Discardable {
+
+        /** 処理中の要求。 */
+        private final InFlight inFlight;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param inFlight 処理中の要求
+         */
+        DiskStage(final InFlight inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            if (inFlight.abandoned) {
+                return;
+            }
+            try {
+                if (findEncodedCache(inFlight) || findDiskCache(inFlight)) {
+                    decodeAndComplete(inFlight);
+                    return;
+                }
+                execute(inFlight, new NetworkStage(inFlight), true);
+            } catch (final Throwable t) {
+                fail(inFlight, t);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDiscarded() {
+            complete(inFlight, null);
+        }
+    }
+
+    /**
+     * ダウンロード処理。完了後にデコード処理を登録する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    private class NetworkStage implements ImageExecutor.Discardable {
+
+        /** 処理中の要求。 */
+        private final InFlight inFlight;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param inFlight 処理中の要求
+         */
+        NetworkStage(final InFlight inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            if (inFlight.abandoned) {
+                return;
+            }
+            try {
+                if (download(inFlight) == false) {
+                    complete(inFlight, null);
+                    return;
+                }
+                if (inFlight.abandoned) {
+                    return;
+                }
+                execute(inFlight, new DecodeStage(inFlight), false);
+            } catch (final Throwable t) {
+                fail(inFlight, t);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDiscarded() {
+            complete(inFlight, null);
+        }
+    }
+
+    /**
+     * デコード処理。完了後に結果を通知する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/20
+     */
+    private class DecodeStage implements ImageExecutor.Discardable {
+
+        /** 処理中の要求。 */
+        private final InFlight inFlight;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param inFlight 処理中の要求
+         */
+        DecodeStage(final InFlight inFlight) {
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            if (inFlight.abandoned) {
+                return;
+            }
+            try {
+                decodeAndComplete(inFlight);
+            } catch (final Throwable t) {
+                fail(inFlight, t);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDiscarded() {
+            complete(inFlight, null);
+        }
+    }
+}
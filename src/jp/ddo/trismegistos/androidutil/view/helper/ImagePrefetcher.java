@@ -0,0 +1,495 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import jp.ddo.trismegistos.androidutil.view.helper.ImagePipeline.ImageRequest;
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * 画像をまとめて先読みするクラス。<br>
+ * Viewや{@link android.support.v4.app.LoaderManager}を使用せずに、{@link ImagePipeline}で画像をファイルキャッシュ、
+ * またはメモリキャッシュに読み込む。<br>
+ * 同時に処理する件数は{@link #setMaxConcurrency(int)}で制限し、ヒープの空きが少ない場合は
+ * メモリキャッシュへの読み込みをやめて1件ずつ間隔を空けて処理する。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/27
+ */
+public class ImagePrefetcher {
+
+    /** デフォルトの同時処理件数。 */
+    public static final int DEFAULT_MAX_CONCURRENCY = 2;
+
+    /** メモリ不足時に次の処理を開始するまでの間隔(ミリ秒)。 */
+    private static final long LOW_MEMORY_BACKOFF = 1000L;
+
+    /** {@link #onLowMemory()}の通知後、メモリ不足として扱う期間(ミリ秒)。 */
+    private static final long LOW_MEMORY_DURATION = 10 * 1000L;
+
+    /** メモリ不足とみなすヒープの空きの割合。 */
+    private static final float LOW_MEMORY_RATIO = 0.15f;
+
+    /** UIスレッドのHandler。 */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
+
+    /** キャッシュ管理オブジェクト。 */
+    private final ImageCache imageCache;
+
+    /** 画像の取得に使用するImagePipeline。 */
+    private final ImagePipeline pipeline;
+
+    /** 同時処理件数。 */
+    private volatile int maxConcurrency = DEFAULT_MAX_CONCURRENCY;
+
+    /** メモリ不足として扱う期限({@link SystemClock#uptimeMillis()})。 */
+    private volatile long lowMemoryUntil;
+
+    /**
+     * コンストラクタ。<br>
+     * デフォルトの{@link ImagePipeline}を使用する。
+     * 
+     * @param imageCache キャッシュ管理オブジェクト
+     */
+    public ImagePrefetcher(final ImageCache imageCache) {
+        this(imageCache, ImagePipeline.getInstance());
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param imageCache キャッシュ管理オブジェクト
+     * @param pipeline 画像の取得に使用するImagePipeline
+     */
+    public ImagePrefetcher(final ImageCache imageCache, final ImagePipeline pipeline) {
+        if (imageCache == null) {
+            throw new IllegalArgumentException("imageCache is null.");
+        }
+        this.imageCache = imageCache;
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * 同時処理件数を設定する。<br>
+     * デフォルトは{@link #DEFAULT_MAX_CONCURRENCY}。処理中の先読みには、次の件から反映される。
+     * 
+     * @param maxConcurrency 同時処理件数
+     */
+    public void setMaxConcurrency(final int maxConcurrency) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency <= 0");
+        }
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * メモリ不足を通知する。<br>
+     * 通知後しばらくの間は、ヒープの空きに関わらずメモリ不足として扱う。
+     * {@link android.app.Activity#onLowMemory()}などから呼び出すこと。
+     */
+    public void onLowMemory() {
+        lowMemoryUntil = SystemClock.uptimeMillis() + LOW_MEMORY_DURATION;
+    }
+
+    /**
+     * メモリ不足かどうかを返す。
+     * 
+     * @return メモリ不足の場合はtrue
+     */
+    boolean isLowMemory() {
+        if (SystemClock.uptimeMillis() < lowMemoryUntil) {
+            return true;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        return runtime.maxMemory() - used < runtime.maxMemory() * LOW_MEMORY_RATIO;
+    }
+
+    /**
+     * 画像をファイルキャッシュに先読みする。<br>
+     * ファイルキャッシュが不可能な場合は、元のサイズでメモリキャッシュに読み込む。
+     * 
+     * @param urls 画像URLのリスト
+     * @param priority 優先度
+     * @param listener 進捗の通知先。不要な場合はnull
+     * @return 先読みのハンドル。キャンセル、進捗の取得に使用する
+     */
+    public Handle prefetch(final List<String> urls, final int priority, final Listener listener) {
+        return prefetch(urls, 0, 0, priority, false, listener);
+    }
+
+    /**
+     * 画像を先読みする。<br>
+     * toMemoryがfalseの場合はファイルキャッシュのみに読み込み、デコードしない。
+     * trueの場合は要求サイズに合わせてデコードし、メモリキャッシュにも読み込む。<br>
+     * メモリ不足の間は、ファイルキャッシュが可能であればファイルキャッシュのみに読み込む。
+     * 
+     * @param urls 画像URLのリスト
+     * @param width 要求する幅(px)。0の場合は元のサイズ
+     * @param height 要求する高さ(px)。0の場合は元のサイズ
+     * @param priority 優先度。表示中の画像より低くすること
+     * @param toMemory メモリキャッシュにも読み込む場合はtrue
+     * @param listener 進捗の通知先。不要な場合はnull
+     * @return 先読みのハンドル。キャンセル、進捗の取得に使用する
+     */
+    public Handle prefetch(final List<String> urls, final int width, final int height,
+            final int priority, final boolean toMemory, final Listener listener) {
+        final Handle handle = new Handle(urls, width, height, priority, toMemory
+                || imageCache.isFileCache() == false, listener);
+        handle.schedule();
+        return handle;
+    }
+
+    /**
+     * 先読みの進捗を受け取るインタフェース。<br>
+     * UIスレッドから呼ばれる。キャンセル後は呼ばれない。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/27
+     */
+    public interface Listener {
+
+        /**
+         * 1件の先読みが完了した際に呼ばれる。
+         * 
+         * @param handle 先読みのハンドル
+         * @param url 画像URL
+         * @param succeeded 成功した場合はtrue
+         */
+        void onProgress(Handle handle, String url, boolean succeeded);
+
+        /**
+         * 全ての先読みが完了した際に呼ばれる。
+         * 
+         * @param handle 先読みのハンドル
+         */
+        void onFinished(Handle handle);
+    }
+
+    /**
+     * 先読みのハンドル。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/27
+     */
+    public class Handle implements ImagePipeline.Callback {
+
+        /** 画像URLのリスト。 */
+        private final List<String> urls;
+
+        /** 要求する幅(px)。 */
+        private final int width;
+
+        /** 要求する高さ(px)。 */
+        private final int height;
+
+        /** 優先度。 */
+        private final int priority;
+
+        /** メモリキャッシュにも読み込む場合はtrue。 */
+        private final boolean toMemory;
+
+        /** 進捗の通知先。 */
+        private final Listener listener;
+
+        /** 処理中の要求。 */
+        private final List<ImageRequest> requests = new ArrayList<ImageRequest>();
+
+        /** 登録中の要求の件数。ロックの外で登録するため、登録を終えるまで同時処理件数に含める。 */
+        private int submitting;
+
+        /** 登録を終える前に完了した要求。 */
+        private final List<ImageRequest> completedEarly = new ArrayList<ImageRequest>();
+
+        /** 次に処理するURLの位置。 */
+        private int next;
+
+        /** 完了した件数。 */
+        private int completedCount;
+
+        /** 成功した件数。 */
+        private int succeededCount;
+
+        /** 間隔を空けて処理を再開する予定がある場合はtrue。 */
+        private boolean backoffScheduled;
+
+        /** 間隔を空け終えた場合はtrue。次の1件を登録するまで有効。 */
+        private boolean backoffElapsed;
+
+        /** キャンセルされた場合はtrue。 */
+        private volatile boolean cancelled;
+
+        /** 間隔を空けて処理を再開する処理。 */
+        private final Runnable resumeRunnable = new Runnable() {
+            @Override
+            public void run() {
+                synchronized (Handle.this) {
+                    backoffScheduled = false;
+                    backoffElapsed = true;
+                }
+                schedule();
+            }
+        };
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param urls 画像URLのリスト
+         * @param width 要求する幅(px)
+         * @param height 要求する高さ(px)
+         * @param priority 優先度
+         * @param toMemory メモリキャッシュにも読み込む場合はtrue
+         * @param listener 進捗の通知先
+         */
+        Handle(final List<String> urls, final int width, final int height, final int priority,
+                final boolean toMemory, final Listener listener) {
+            this.urls = new ArrayList<String>(urls);
+            this.width = width;
+            this.height = height;
+            this.priority = priority;
+            this.toMemory = toMemory;
+            this.listener = listener;
+        }
+
+        /**
+         * 同時処理件数まで要求を登録する。<br>
+         * メモリ不足の場合は1件ずつ、前の要求の完了から間隔を空けて登録する。<br>
+         * 登録先の待ち行列が上限に達すると他の要求の破棄が同期的に通知されるため、
+         * デッドロックしないよう{@link ImagePipeline}への登録はロックの外で行う。
+         */
+        void schedule() {
+            while (true) {
+                final List<String> hits = new ArrayList<String>();
+                final List<String> submitUrls = new ArrayList<String>();
+                final List<Boolean> decodes = new ArrayList<Boolean>();
+                final boolean finished;
+                synchronized (this) {
+                    while (cancelled == false && next < urls.size()
+                            && backoffScheduled == false) {
+                        final boolean lowMemory = isLowMemory();
+                        final int active = requests.size() + submitting;
+                        if (lowMemory && active > 0) {
+                            break;
+                        }
+                        if (lowMemory && next > 0 && backoffElapsed == false) {
+                            backoffScheduled = true;
+                            HANDLER.postDelayed(resumeRunnable, LOW_MEMORY_BACKOFF);
+                            break;
+                        }
+                        if (active >= maxConcurrency) {
+                            break;
+                        }
+                        final String url = urls.get(next++);
+                        backoffElapsed = false;
+                        final boolean decode = toMemory
+                                && (lowMemory == false || imageCache.isFileCache() == false);
+                        if (decode && imageCache.hasMemoryImage(url, width, height)) {
+                            completedCount++;
+                            succeededCount++;
+                            hits.add(url);
+                            continue;
+                        }
+                        submitUrls.add(url);
+                        decodes.add(Boolean.valueOf(decode));
+                        submitting++;
+                    }
+                    finished = cancelled == false
+                            && (hits.isEmpty() == false || urls.isEmpty()) && isDone();
+                }
+                for (final String url : hits) {
+                    notifyProgress(url, true, false);
+                }
+                if (finished) {
+                    notifyProgress(null, true, true);
+                }
+                boolean completed = false;
+                for (int i = 0; i < submitUrls.size(); i++) {
+                    final String url = submitUrls.get(i);
+                    final ImageRequest request;
+                    if (decodes.get(i).booleanValue()) {
+                        request = pipeline.submit(url, imageCache, null, width, height,
+                                priority, this);
+                    } else {
+                        request = pipeline.prefetch(url, imageCache, priority, this);
+                    }
+                    completed |= register(request);
+                }
+                if (completed == false) {
+                    return;
+                }
+                // 登録前に完了した要求の分だけ空きができたため、続けて登録する
+            }
+        }
+
+        /**
+         * 登録した要求を処理中にする。<br>
+         * 登録中にキャンセルされた場合は要求もキャンセルし、登録前に完了していた場合は完了として数える。
+         * 
+         * @param request 要求
+         * @return 登録前に完了していた場合はtrue
+         */
+        private boolean register(final ImageRequest request) {
+            synchronized (this) {
+                submitting--;
+                if (cancelled == false && completedEarly.remove(request) == false) {
+                    requests.add(request);
+                    return false;
+                }
+            }
+            if (cancelled) {
+                request.cancel();
+                return false;
+            }
+            countCompleted(request);
+            return true;
+        }
+
+        /**
+         * {@inheritDoc}<br>
+         * ワーカースレッドから呼ばれるため、UIスレッドに切り替えて進捗を通知する。
+         */
+        @Override
+        public void onComplete(final ImageRequest request, final Bitmap bitmap) {
+            // メモリキャッシュへの読み込みのみが目的のため、Bitmapはすぐに使用を終了する
+            final BitmapPool pool = imageCache.getBitmapPool();
+            if (pool != null) {
+                pool.release(bitmap);
+            }
+            synchronized (this) {
+                if (requests.remove(request) == false) {
+                    if (cancelled == false && submitting > 0) {
+                        // 登録を終える前に完了した要求。登録時に完了として数える
+                        completedEarly.add(request);
+                    }
+                    return;
+                }
+            }
+            countCompleted(request);
+            schedule();
+        }
+
+        /**
+         * 要求の完了を数え、進捗を通知する。
+         * 
+         * @param request 完了した要求
+         */
+        private void countCompleted(final ImageRequest request) {
+            final boolean finished;
+            synchronized (this) {
+                completedCount++;
+                if (request.isSucceeded()) {
+                    succeededCount++;
+                }
+                finished = isDone();
+            }
+            notifyProgress(request.getUrl(), request.isSucceeded(), finished);
+        }
+
+        /**
+         * UIスレッドに切り替えて進捗を通知する。
+         * 
+         * @param url 完了した画像URL。完了の通知のみの場合はnull
+         * @param succeeded 成功した場合はtrue
+         * @param finished 全て完了した場合はtrue
+         */
+        private void notifyProgress(final String url, final boolean succeeded,
+                final boolean finished) {
+            if (listener == null) {
+                return;
+            }
+            HANDLER.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (cancelled) {
+                        return;
+                    }
+                    if (url != null) {
+                        listener.onProgress(Handle.this, url, succeeded);
+                    }
+                    if (finished) {
+                        listener.onFinished(Handle.this);
+                    }
+                }
+            });
+        }
+
+        /**
+         * 先読みをキャンセルする。<br>
+         * 処理中の要求もキャンセルし、以降は進捗を通知しない。
+         */
+        public void cancel() {
+            final List<ImageRequest> cancelling;
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                cancelling = new ArrayList<ImageRequest>(requests);
+                requests.clear();
+                completedEarly.clear();
+            }
+            HANDLER.removeCallbacks(resumeRunnable);
+            for (final ImageRequest request : cancelling) {
+                request.cancel();
+            }
+        }
+
+        /**
+         * キャンセルされたかどうかを返す。
+         * 
+         * @return キャンセルされた場合はtrue
+         */
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * 全て完了したかどうかを返す。
+         * 
+         * @return 全て完了した場合はtrue
+         */
+        public synchronized boolean isDone() {
+            return completedCount == urls.size();
+        }
+
+        /**
+         * 先読みする件数を取得する。
+         * 
+         * @return 件数
+         */
+        public int getTotalCount() {
+            return urls.size();
+        }
+
+        /**
+         * 完了した件数を取得する。
+         * 
+         * @return 完了した件数
+         */
+        public synchronized int getCompletedCount() {
+            return completedCount;
+        }
+
+        /**
+         * 成功した件数を取得する。
+         * 
+         * @return 成功した件数
+         */
+        public synchronized int getSucceededCount() {
+            return succeededCount;
+        }
+
+        /**
+         * 進捗を取得する。
+         * 
+         * @return 0.0~1.0の進捗
+         */
+        public synchronized float getProgress() {
+            return urls.isEmpty() ? 1.0f : (float) completedCount / urls.size();
+        }
+    }
+}
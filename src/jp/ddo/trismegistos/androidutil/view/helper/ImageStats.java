@@ -0,0 +1,508 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 画像の読み込み処理の統計を集計するクラス。<br>
+ * キャッシュのヒット数、ダウンロード量などの件数と、ダウンロード、デコードなどの処理時間の分布を集計する。<br>
+ * 集計値は{@link #snapshot()}で取得し、{@link Listener}を設定すると記録のたびに通知を受けられる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/02/28
+ */
+public class ImageStats {
+
+    /**
+     * 件数の種類。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    public enum Counter {
+        /** メモリキャッシュのヒット数。 */
+        MEMORY_HIT,
+        /** メモリキャッシュのミス数。 */
+        MEMORY_MISS,
+        /** 圧縮データのメモリキャッシュのヒット数。 */
+        ENCODED_HIT,
+        /** 圧縮データのメモリキャッシュのミス数。 */
+        ENCODED_MISS,
+        /** ファイルキャッシュのヒット数。 */
+        DISK_HIT,
+        /** ファイルキャッシュのミス数。 */
+        DISK_MISS,
+        /** ダウンロード数。 */
+        NETWORK_FETCH,
+        /** 再検証で304 Not Modifiedとなった数。 */
+        NETWORK_NOT_MODIFIED,
+        /** ダウンロードの失敗数。 */
+        NETWORK_ERROR,
+        /** 受信途中のファイルから続きを受信したダウンロード数。 */
+        NETWORK_RESUMED,
+        /** ダウンロードしたバイト数。 */
+        BYTES_DOWNLOADED,
+        /** デコード数。 */
+        DECODE,
+        /** デコードの失敗数。 */
+        DECODE_ERROR,
+        /** メモリキャッシュから追い出された数。 */
+        EVICTION,
+        /** メモリキャッシュから追い出されたバイト数。 */
+        EVICTION_BYTES,
+        /** OutOfMemoryErrorからの回復数。 */
+        OOM_RECOVERY
+    }
+
+    /**
+     * 処理時間の種類。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    public enum Timer {
+        /** ファイルキャッシュの読み込みとデコード。 */
+        DISK_LOAD,
+        /** ダウンロード。 */
+        NETWORK_FETCH,
+        /** デコード。 */
+        DECODE
+    }
+
+    /** 処理時間の分布の各区間の上限(ミリ秒)。最後の区間は上限なし。 */
+    private static final long[] BUCKET_BOUNDS = {
+            1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000
+    };
+
+    /** デフォルトのインスタンス。 */
+    private static final ImageStats INSTANCE = new ImageStats();
+
+    /** 件数。 */
+    private final AtomicLongArray counters = new AtomicLongArray(Counter.values().length);
+
+    /** 処理時間の分布。 */
+    private final Histogram[] histograms = new Histogram[Timer.values().length];
+
+    /** 処理中の要求数。 */
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    /** 通知先。 */
+    private volatile Listener listener;
+
+    /**
+     * コンストラクタ。
+     */
+    public ImageStats() {
+        for (int i = 0; i < histograms.length; i++) {
+            histograms[i] = new Histogram();
+        }
+    }
+
+    /**
+     * デフォルトのインスタンスを取得する。<br>
+     * {@link ImageCache}、{@link ImagePipeline}はこのインスタンスに記録する。
+     * 
+     * @return ImageStats
+     */
+    public static ImageStats getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * 通知先を設定する。<br>
+     * 通知は記録したスレッドから同期的に行われるため、通知先では重い処理を行わないこと。
+     * 
+     * @param listener 通知先。nullの場合は通知しない
+     */
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 件数を1加算する。
+     * 
+     * @param counter 件数の種類
+     */
+    public void increment(final Counter counter) {
+        add(counter, 1);
+    }
+
+    /**
+     * 件数を加算する。
+     * 
+     * @param counter 件数の種類
+     * @param delta 加算する値
+     */
+    public void add(final Counter counter, final long delta) {
+        counters.addAndGet(counter.ordinal(), delta);
+        final Listener l = listener;
+        if (l != null) {
+            l.onCount(counter, delta);
+        }
+    }
+
+    /**
+     * 処理時間を記録する。
+     * 
+     * @param timer 処理時間の種類
+     * @param millis 処理時間(ミリ秒)
+     */
+    public void record(final Timer timer, final long millis) {
+        histograms[timer.ordinal()].record(millis);
+        final Listener l = listener;
+        if (l != null) {
+            l.onTime(timer, millis);
+        }
+    }
+
+    /**
+     * 処理中に発生した例外を通知する。<br>
+     * 集計は行わず、通知先にのみ渡す。
+     * 
+     * @param url 画像URL
+     * @param t 例外
+     */
+    public void error(final String url, final Throwable t) {
+        final Listener l = listener;
+        if (l != null) {
+            l.onError(url, t);
+        }
+    }
+
+    /**
+     * 処理中の要求数を加算する。
+     * 
+     * @param delta 加算する値
+     */
+    void addInFlight(final int delta) {
+        inFlight.addAndGet(delta);
+    }
+
+    /**
+     * 現在の集計値を取得する。
+     * 
+     * @return 集計値
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[counters.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = counters.get(i);
+        }
+        final HistogramSnapshot[] timers = new HistogramSnapshot[histograms.length];
+        for (int i = 0; i < timers.length; i++) {
+            timers[i] = histograms[i].snapshot();
+        }
+        return new Snapshot(counts, timers, inFlight.get());
+    }
+
+    /**
+     * 集計値をリセットする。<br>
+     * 処理中の要求数はリセットしない。
+     */
+    public void reset() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (final Histogram histogram : histograms) {
+            histogram.reset();
+        }
+    }
+
+    /**
+     * 処理時間の分布の各区間の上限を取得する。
+     * 
+     * @return 各区間の上限(ミリ秒)。最後の区間は上限なし
+     */
+    public static long[] getBucketBounds() {
+        return BUCKET_BOUNDS.clone();
+    }
+
+    /**
+     * 統計の記録の通知を受け取るインタフェース。<br>
+     * 独自の集計基盤に送信する場合に使用する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    public interface Listener {
+
+        /**
+         * 件数が加算された際に呼ばれる。
+         * 
+         * @param counter 件数の種類
+         * @param delta 加算された値
+         */
+        void onCount(Counter counter, long delta);
+
+        /**
+         * 処理時間が記録された際に呼ばれる。
+         * 
+         * @param timer 処理時間の種類
+         * @param millis 処理時間(ミリ秒)
+         */
+        void onTime(Timer timer, long millis);
+
+        /**
+         * 処理中に例外が発生した際に呼ばれる。
+         * 
+         * @param url 画像URL
+         * @param t 例外
+         */
+        void onError(String url, Throwable t);
+    }
+
+    /**
+     * 処理時間の分布。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    private static class Histogram {
+
+        /** 区間ごとの件数。 */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_BOUNDS.length + 1);
+
+        /** 合計時間(ミリ秒)。 */
+        private final AtomicLong sum = new AtomicLong();
+
+        /** 最大時間(ミリ秒)。 */
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * 処理時間を記録する。
+         * 
+         * @param millis 処理時間(ミリ秒)
+         */
+        void record(final long millis) {
+            int i = 0;
+            while (i < BUCKET_BOUNDS.length && millis > BUCKET_BOUNDS[i]) {
+                i++;
+            }
+            buckets.incrementAndGet(i);
+            sum.addAndGet(millis);
+            long current;
+            while (millis > (current = max.get()) && max.compareAndSet(current, millis) == false) {
+                // 他のスレッドが更新した場合は再試行する
+            }
+        }
+
+        /**
+         * 現在の分布を取得する。
+         * 
+         * @return 分布
+         */
+        HistogramSnapshot snapshot() {
+            final long[] counts = new long[buckets.length()];
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] = buckets.get(i);
+            }
+            return new HistogramSnapshot(counts, sum.get(), max.get());
+        }
+
+        /**
+         * 分布をリセットする。
+         */
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            sum.set(0);
+            max.set(0);
+        }
+    }
+
+    /**
+     * ある時点の処理時間の分布。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    public static class HistogramSnapshot {
+
+        /** 区間ごとの件数。 */
+        private final long[] buckets;
+
+        /** 件数。 */
+        private final long count;
+
+        /** 合計時間(ミリ秒)。 */
+        private final long sum;
+
+        /** 最大時間(ミリ秒)。 */
+        private final long max;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param buckets 区間ごとの件数
+         * @param sum 合計時間(ミリ秒)
+         * @param max 最大時間(ミリ秒)
+         */
+        HistogramSnapshot(final long[] buckets, final long sum, final long max) {
+            this.buckets = buckets;
+            long total = 0;
+            for (final long c : buckets) {
+                total += c;
+            }
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * 件数を取得する。
+         * 
+         * @return 件数
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * 平均時間を取得する。
+         * 
+         * @return 平均時間(ミリ秒)。記録が無い場合は0
+         */
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /**
+         * 最大時間を取得する。
+         * 
+         * @return 最大時間(ミリ秒)
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * パーセンタイル値を取得する。<br>
+         * 該当する区間の上限値を返すため、近似値となる。最後の区間の場合は最大時間を返す。
+         * 
+         * @param percentile パーセンタイル(0~100)
+         * @return パーセンタイル値(ミリ秒)。記録が無い場合は0
+         */
+        public long getPercentile(final double percentile) {
+            if (count == 0) {
+                return 0;
+            }
+            final long threshold = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0;
+            for (int i = 0; i < BUCKET_BOUNDS.length; i++) {
+                seen += buckets[i];
+                if (seen >= threshold) {
+                    return Math.min(BUCKET_BOUNDS[i], max);
+                }
+            }
+            return max;
+        }
+
+        /**
+         * 区間ごとの件数を取得する。
+         * 
+         * @return 区間ごとの件数。区間の上限は{@link ImageStats#getBucketBounds()}の順
+         */
+        public long[] getBuckets() {
+            return buckets.clone();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return String.format("count=%d,mean=%d,p50=%d,p90=%d,max=%d", count, getMean(),
+                    getPercentile(50), getPercentile(90), max);
+        }
+    }
+
+    /**
+     * ある時点の集計値。
+     * 
+     * @author y_sugasawa
+     * @since 2013/02/28
+     */
+    public static class Snapshot {
+
+        /** 件数。 */
+        private final long[] counters;
+
+        /** 処理時間の分布。 */
+        private final HistogramSnapshot[] timers;
+
+        /** 処理中の要求数。 */
+        private final int inFlight;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param counters 件数
+         * @param timers 処理時間の分布
+         * @param inFlight 処理中の要求数
+         */
+        Snapshot(final long[] counters, final HistogramSnapshot[] timers, final int inFlight) {
+            this.counters = counters;
+            this.timers = timers;
+            this.inFlight = inFlight;
+        }
+
+        /**
+         * 件数を取得する。
+         * 
+         * @param counter 件数の種類
+         * @return 件数
+         */
+        public long get(final Counter counter) {
+            return counters[counter.ordinal()];
+        }
+
+        /**
+         * 処理時間の分布を取得する。
+         * 
+         * @param timer 処理時間の種類
+         * @return 処理時間の分布
+         */
+        public HistogramSnapshot get(final Timer timer) {
+            return timers[timer.ordinal()];
+        }
+
+        /**
+         * 処理中の要求数を取得する。
+         * 
+         * @return 処理中の要求数
+         */
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        /**
+         * メモリキャッシュのヒット率を取得する。
+         * 
+         * @return ヒット率(0~100)
+         */
+        public int getMemoryHitRate() {
+            final long hits = get(Counter.MEMORY_HIT);
+            final long accesses = hits + get(Counter.MEMORY_MISS);
+            return accesses != 0 ? (int) (100 * hits / accesses) : 0;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            final StringBuilder sb = new StringBuilder("ImageStats[");
+            for (final Counter counter : Counter.values()) {
+                sb.append(counter).append('=').append(get(counter)).append(',');
+            }
+            sb.append("IN_FLIGHT=").append(inFlight);
+            for (final Timer timer : Timer.values()) {
+                sb.append(',').append(timer).append("={").append(get(timer)).append('}');
+            }
+            return sb.append(']').toString();
+        }
+    }
+}
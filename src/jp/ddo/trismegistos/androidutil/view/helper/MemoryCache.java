@@ -0,0 +1,464 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 複数スレッドから同時に参照できる、容量上限付きのメモリキャッシュクラス。<br>
+ * {@link android.support.v4.util.LruCache}と同じく{@link #sizeOf(Object, Object)}で重み付けし、
+ * 上限を超えた場合は最も長く参照されていないエントリから追い出す。<br>
+ * 参照はロックを取得せずに行い、参照順の更新はロックを取得できた場合のみ行う。そのため、
+ * 追い出しの順序は近似的なLRUとなるが、参照が書き込みを待つことはない。<br>
+ * 書き込みはキーごとに分割したセグメント単位でロックし、容量の管理はキャッシュ全体で行う。
+ * 
+ * @param <K> キーの型
+ * @param <V> 値の型
+ * @author y_sugasawa
+ * @since 2013/03/01
+ */
+public class MemoryCache<K, V> {
+
+    /** デフォルトのセグメント数。 */
+    public static final int DEFAULT_CONCURRENCY = 4;
+
+    /** エントリ。キーから直接参照する。 */
+    private final ConcurrentHashMap<K, Node<V>> map;
+
+    /** 参照順を管理するセグメント。 */
+    private final Segment[] segments;
+
+    /** 参照順の時刻。 */
+    private final AtomicLong clock = new AtomicLong();
+
+    /** 追い出し処理のロック。 */
+    private final ReentrantLock evictionLock = new ReentrantLock();
+
+    /** 現在のサイズ。 */
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** 最大サイズ。 */
+    private volatile int maxSize;
+
+    /** 参照でヒットした回数。 */
+    private final AtomicInteger hitCount = new AtomicInteger();
+
+    /** 参照でヒットしなかった回数。 */
+    private final AtomicInteger missCount = new AtomicInteger();
+
+    /** 追加した回数。 */
+    private final AtomicInteger putCount = new AtomicInteger();
+
+    /** 追い出した回数。 */
+    private final AtomicInteger evictionCount = new AtomicInteger();
+
+    /**
+     * コンストラクタ。<br>
+     * デフォルトのセグメント数で作成する。
+     * 
+     * @param maxSize 最大サイズ
+     */
+    public MemoryCache(final int maxSize) {
+        this(maxSize, DEFAULT_CONCURRENCY);
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param maxSize 最大サイズ
+     * @param concurrency 同時に書き込むスレッド数の目安。2のべき乗に切り上げてセグメント数とする
+     */
+    public MemoryCache(final int maxSize, final int concurrency) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (concurrency <= 0) {
+            throw new IllegalArgumentException("concurrency <= 0");
+        }
+        int segmentCount = 1;
+        while (segmentCount < concurrency) {
+            segmentCount <<= 1;
+        }
+        this.maxSize = maxSize;
+        map = new ConcurrentHashMap<K, Node<V>>(16, 0.75f, segmentCount);
+        // 内部クラスの配列は型引数を付けて作成できないため、原型で作成する
+        @SuppressWarnings({ "unchecked", "rawtypes" })
+        final Segment[] array = new MemoryCache.Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            array[i] = new Segment();
+        }
+        segments = array;
+    }
+
+    /**
+     * キーに対応する値を取得する。<br>
+     * ロックを取得しないため、書き込み中でも待たされることはない。
+     * 
+     * @param key キー
+     * @return 値。無い場合はnull
+     */
+    public final V get(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Node<V> node = map.get(key);
+        if (node == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        node.tick = clock.incrementAndGet();
+        segmentFor(key).touch(key);
+        return node.value;
+    }
+
+    /**
+     * 値を追加する。<br>
+     * 最大サイズを超えた場合は、最も長く参照されていないエントリから追い出す。
+     * 
+     * @param key キー
+     * @param value 値
+     * @return 以前の値。無い場合はnull
+     */
+    public final V put(final K key, final V value) {
+        if (key == null || value == null) {
+            throw new NullPointerException("key == null || value == null");
+        }
+        final Node<V> node = new Node<V>(value, safeSizeOf(key, value), clock.incrementAndGet());
+        final Segment segment = segmentFor(key);
+        final Node<V> previous;
+        segment.lock.lock();
+        try {
+            previous = map.put(key, node);
+            segment.order.put(key, node);
+        } finally {
+            segment.lock.unlock();
+        }
+        putCount.incrementAndGet();
+        size.addAndGet(node.size);
+        if (previous != null) {
+            size.addAndGet(-previous.size);
+            entryRemoved(false, key, previous.value, value);
+        }
+        trimToSize(maxSize);
+        return previous != null ? previous.value : null;
+    }
+
+    /**
+     * キーに対応する値を削除する。
+     * 
+     * @param key キー
+     * @return 削除した値。無い場合はnull
+     */
+    public final V remove(final K key) {
+        if (key == null) {
+            throw new NullPointerException("key == null");
+        }
+        final Segment segment = segmentFor(key);
+        final Node<V> previous;
+        segment.lock.lock();
+        try {
+            previous = map.remove(key);
+            if (previous != null) {
+                segment.order.remove(key);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+        if (previous == null) {
+            return null;
+        }
+        size.addAndGet(-previous.size);
+        entryRemoved(false, key, previous.value, null);
+        return previous.value;
+    }
+
+    /**
+     * 指定したサイズ以下になるまで、最も長く参照されていないエントリから追い出す。<br>
+     * 各セグメントの先頭のうち最も古いものを追い出すため、キャッシュ全体で近似的なLRUとなる。
+     * 
+     * @param targetSize 目標サイズ。-1の場合は全て追い出す
+     */
+    public void trimToSize(final int targetSize) {
+        if (size.get() <= targetSize) {
+            return;
+        }
+        final List<Map.Entry<K, Node<V>>> evictedEntries = new ArrayList<Map.Entry<K, Node<V>>>();
+        evictionLock.lock();
+        try {
+            while (size.get() > targetSize) {
+                Segment oldest = null;
+                long oldestTick = Long.MAX_VALUE;
+                for (final Segment segment : segments) {
+                    final long tick = segment.headTick();
+                    if (tick < oldestTick) {
+                        oldest = segment;
+                        oldestTick = tick;
+                    }
+                }
+                if (oldest == null) {
+                    break;
+                }
+                final Map.Entry<K, Node<V>> evicted = oldest.evictHead();
+                if (evicted == null) {
+                    continue;
+                }
+                size.addAndGet(-evicted.getValue().size);
+                evictionCount.incrementAndGet();
+                evictedEntries.add(evicted);
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+        for (final Map.Entry<K, Node<V>> evicted : evictedEntries) {
+            entryRemoved(true, evicted.getKey(), evicted.getValue().value, null);
+        }
+    }
+
+    /**
+     * 全てのエントリを追い出す。
+     */
+    public final void evictAll() {
+        trimToSize(-1);
+    }
+
+    /**
+     * 最大サイズを変更する。<br>
+     * 現在のサイズが新しい最大サイズを超えている場合は追い出す。
+     * 
+     * @param newMaxSize 新しい最大サイズ
+     */
+    public void resize(final int newMaxSize) {
+        if (newMaxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        maxSize = newMaxSize;
+        trimToSize(newMaxSize);
+    }
+
+    /**
+     * キーに対応するセグメントを取得する。
+     * 
+     * @param key キー
+     * @return セグメント
+     */
+    private Segment segmentFor(final Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 20) ^ (h >>> 12);
+        h ^= (h >>> 7) ^ (h >>> 4);
+        return segments[h & (segments.length - 1)];
+    }
+
+    /**
+     * サイズを計算し、負の値を検出する。
+     * 
+     * @param key キー
+     * @param value 値
+     * @return サイズ
+     */
+    private int safeSizeOf(final K key, final V value) {
+        final int result = sizeOf(key, value);
+        if (result < 0) {
+            throw new IllegalStateException("Negative size: " + key + "=" + value);
+        }
+        return result;
+    }
+
+    /**
+     * エントリのサイズを返す。<br>
+     * デフォルトは1を返すため、最大サイズはエントリ数となる。
+     * 
+     * @param key キー
+     * @param value 値
+     * @return サイズ
+     */
+    protected int sizeOf(final K key, final V value) {
+        return 1;
+    }
+
+    /**
+     * エントリが追い出された、削除された、または上書きされた際に呼ばれる。<br>
+     * ロックを取得していない状態で呼ばれる。
+     * 
+     * @param evicted 容量を空けるために追い出された場合はtrue
+     * @param key キー
+     * @param oldValue 削除された値
+     * @param newValue 上書きした値。削除、追い出しの場合はnull
+     */
+    protected void entryRemoved(final boolean evicted, final K key, final V oldValue,
+            final V newValue) {
+    }
+
+    /**
+     * 現在のサイズを取得する。
+     * 
+     * @return サイズ
+     */
+    public final int size() {
+        return size.get();
+    }
+
+    /**
+     * 最大サイズを取得する。
+     * 
+     * @return 最大サイズ
+     */
+    public final int maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * 参照でヒットした回数を取得する。
+     * 
+     * @return ヒットした回数
+     */
+    public final int hitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * 参照でヒットしなかった回数を取得する。
+     * 
+     * @return ヒットしなかった回数
+     */
+    public final int missCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 追加した回数を取得する。
+     * 
+     * @return 追加した回数
+     */
+    public final int putCount() {
+        return putCount.get();
+    }
+
+    /**
+     * 追い出した回数を取得する。
+     * 
+     * @return 追い出した回数
+     */
+    public final int evictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public final String toString() {
+        final int hits = hitCount.get();
+        final int accesses = hits + missCount.get();
+        final int hitPercent = accesses != 0 ? (100 * hits / accesses) : 0;
+        return String.format("MemoryCache[maxSize=%d,hits=%d,misses=%d,hitRate=%d%%]", maxSize,
+                hits, accesses - hits, hitPercent);
+    }
+
+    /**
+     * エントリ。
+     * 
+     * @param <V> 値の型
+     * @author y_sugasawa
+     * @since 2013/03/01
+     */
+    private static class Node<V> {
+
+        /** 値。 */
+        private final V value;
+
+        /** サイズ。 */
+        private final int size;
+
+        /** 最後に参照された時刻。 */
+        private volatile long tick;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param value 値
+         * @param size サイズ
+         * @param tick 追加した時刻
+         */
+        Node(final V value, final int size, final long tick) {
+            this.value = value;
+            this.size = size;
+            this.tick = tick;
+        }
+    }
+
+    /**
+     * 参照順を管理するセグメント。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/01
+     */
+    private class Segment {
+
+        /** ロック。 */
+        private final ReentrantLock lock = new ReentrantLock();
+
+        /** 参照順に並んだエントリ。 */
+        private final LinkedHashMap<K, Node<V>> order = new LinkedHashMap<K, Node<V>>(16, 0.75f,
+                true);
+
+        /**
+         * 参照順を更新する。<br>
+         * 書き込み中でロックを取得できない場合は、更新せずに戻る。
+         * 
+         * @param key キー
+         */
+        void touch(final K key) {
+            if (lock.tryLock()) {
+                try {
+                    order.get(key);
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * 先頭のエントリの最後に参照された時刻を取得する。
+         * 
+         * @return 時刻。エントリが無い場合はLong.MAX_VALUE
+         */
+        long headTick() {
+            lock.lock();
+            try {
+                final Iterator<Node<V>> it = order.values().iterator();
+                return it.hasNext() ? it.next().tick : Long.MAX_VALUE;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * 先頭のエントリを削除する。
+         * 
+         * @return 削除したエントリ。エントリが無い場合はnull
+         */
+        Map.Entry<K, Node<V>> evictHead() {
+            lock.lock();
+            try {
+                final Iterator<Map.Entry<K, Node<V>>> it = order.entrySet().iterator();
+                if (it.hasNext() == false) {
+                    return null;
+                }
+                final Map.Entry<K, Node<V>> head = it.next();
+                it.remove();
+                map.remove(head.getKey(), head.getValue());
+                return head;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
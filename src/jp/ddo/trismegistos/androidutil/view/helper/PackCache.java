@@ -0,0 +1,1123 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import jp.ddo.trismegistos.androidutil.file.FileUtil;
+import android.util.Log;
+
+/**
+ * 画像をURLごとのファイルではなく、少数の大きなセグメントファイルに追記して保存するファイルキャッシュ。<br>
+ * 各エントリのセグメント、位置、長さ、{@link CacheMetadata}はメモリ上のインデックスで管理し、ジャーナルファイルに追記していく。<br>
+ * 読み込みはセグメントファイルを{@link MappedByteBuffer}でマップし、エントリの範囲を切り出して返すため、ファイルを開閉せずコピーも行わない。<br>
+ * 上限を超えた場合は最も長く参照されていないエントリから削除し、有効なデータの割合が低くなったセグメントは、
+ * 有効なエントリを新しいセグメントにコピーしてから削除する(コンパクション)。いずれもバックグラウンドで行う。<br>
+ * ジャーナルには各エントリのCRC32も記録し、起動後最初の読み込み時に照合して、書き込み途中で終了した場合などの破損を検出する。<br>
+ * ジャーナルの読み込みは起動を遅らせないようバックグラウンドで開始し、読み込み完了前に呼ばれた操作は完了を待つ。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class PackCache {
+
+    /** タグ。 */
+    private static final String TAG = PackCache.class.getSimpleName();
+
+    /** ジャーナルファイル名。 */
+    static final String JOURNAL_FILE = "pack.journal";
+
+    /** ジャーナル再作成時の一時ファイル名。 */
+    static final String JOURNAL_FILE_TMP = "pack.journal.tmp";
+
+    /** セグメントファイル名の接頭辞。 */
+    private static final String SEGMENT_PREFIX = "pack.";
+
+    /** セグメントファイル名の拡張子。 */
+    private static final String SEGMENT_SUFFIX = ".dat";
+
+    /** ジャーナルのマジックナンバー。 */
+    private static final String MAGIC = "jp.ddo.trismegistos.androidutil.PackCache";
+
+    /** ジャーナルのバージョン。 */
+    private static final String VERSION = "2";
+
+    /** ジャーナル操作:登録。 */
+    private static final String PUT = "PUT";
+
+    /** ジャーナル操作:削除。 */
+    private static final String REMOVE = "REMOVE";
+
+    /** ジャーナル操作:参照。 */
+    private static final String READ = "READ";
+
+    /** ジャーナル操作:メタデータ更新。 */
+    private static final String META = "META";
+
+    /** セグメントファイルのデフォルトの最大サイズ 8MB */
+    public static final long DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+
+    /** コンパクションするセグメントの、有効なデータの割合の閾値(%)。 */
+    private static final int COMPACT_LIVE_PERCENT = 50;
+
+    /** ジャーナルを再作成する冗長行数の閾値。 */
+    private static final int REDUNDANT_OP_COMPACT_THRESHOLD = 2000;
+
+    /** キャッシュディレクトリ。 */
+    private final File directory;
+
+    /** 最大キャッシュサイズ(Byte)。 */
+    private final long maxSize;
+
+    /** セグメントファイルの最大サイズ(Byte)。 */
+    private final long segmentSize;
+
+    /** キャッシュのインデックス。アクセス順に並ぶ。 */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(0,
+            0.75f, true);
+
+    /** セグメント。キーはセグメント番号。 */
+    private final TreeMap<Integer, Segment> segments = new TreeMap<Integer, Segment>();
+
+    /** 追記中のセグメント。 */
+    private Segment activeSegment;
+
+    /** 次に作成するセグメントの番号。 */
+    private int nextSegmentId;
+
+    /** 有効なエントリの合計サイズ(Byte)。 */
+    private long size = 0;
+
+    /** ジャーナルの書き込み先。 */
+    private Writer journalWriter;
+
+    /** ジャーナル中の冗長な行数。 */
+    private int redundantOpCount;
+
+    /** ジャーナルを読み込んだ場合はtrue。 */
+    private boolean opened;
+
+    /** 削除処理用のExecutor。 */
+    private final ExecutorService cleanupExecutor = new ThreadPoolExecutor(0, 1, 60L,
+            TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable r) {
+                    final Thread thread = new Thread(r, TAG);
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    /** 削除、コンパクション処理。 */
+    private final Runnable cleanupRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PackCache.this) {
+                ensureOpen();
+                if (journalWriter == null) {
+                    return;
+                }
+                trimToSize();
+                compact();
+                if (isJournalRebuildRequired()) {
+                    rebuildJournal();
+                }
+            }
+        }
+    };
+
+    /** ジャーナルの読み込み処理。 */
+    private final Runnable openRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (PackCache.this) {
+                ensureOpen();
+            }
+        }
+    };
+
+    /**
+     * コンストラクタ。<br>
+     * デフォルトのセグメントサイズで作成する。
+     * 
+     * @param directory キャッシュディレクトリ
+     * @param maxSize 最大キャッシュサイズ(Byte)
+     */
+    public PackCache(final File directory, final long maxSize) {
+        this(directory, maxSize, DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * コンストラクタ。<br>
+     * ジャーナルが存在する場合はジャーナルからインデックスを復元する。<br>
+     * 存在しない、または読み込めない場合は、既存のセグメントファイルを削除する。<br>
+     * 読み込みはバックグラウンドで行うため、コンストラクタはすぐに戻る。
+     * 
+     * @param directory キャッシュディレクトリ
+     * @param maxSize 最大キャッシュサイズ(Byte)
+     * @param segmentSize セグメントファイルの最大サイズ(Byte)
+     */
+    public PackCache(final File directory, final long maxSize, final long segmentSize) {
+        if (maxSize <= 0) {
+            throw new IllegalArgumentException("maxSize <= 0");
+        }
+        if (segmentSize <= 0 || segmentSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("segmentSize is out of range.");
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+        this.segmentSize = segmentSize;
+        cleanupExecutor.execute(openRunnable);
+    }
+
+    /**
+     * ジャーナルを読み込んでいない場合は読み込む。<br>
+     * ロックを取得した状態で呼び出すこと。
+     */
+    private void ensureOpen() {
+        if (opened == false) {
+            opened = true;
+            open();
+        }
+    }
+
+    /**
+     * セグメントファイルを開き、ジャーナルからインデックスを復元する。
+     */
+    private void open() {
+        if (FileUtil.mkdir(directory) == false) {
+            Log.w(TAG, "CREATE directory is Failed. path is " + directory.getAbsolutePath());
+        }
+        final File journal = new File(directory, JOURNAL_FILE);
+        if (journal.exists()) {
+            try {
+                openSegments();
+                final boolean complete = readJournal(journal);
+                dropInvalidEntries();
+                if (complete == false) {
+                    // 途中で切れたジャーナルには追記できないため、読み込めた内容で作り直す
+                    rebuildJournal();
+                    return;
+                }
+                journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                        journal, true), "UTF-8"));
+                return;
+            } catch (final IOException e) {
+                Log.w(TAG, "READ journal is Failed. " + e.getMessage());
+            }
+            entries.clear();
+            size = 0;
+        }
+        deleteSegments();
+        rebuildJournal();
+    }
+
+    /**
+     * 既存のセグメントファイルを開く。<br>
+     * ディレクトリを走査するのは起動時のこの1回のみ。
+     * 
+     * @throws IOException 開けなかった場合
+     */
+    private void openSegments() throws IOException {
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) == false
+                    || name.endsWith(SEGMENT_SUFFIX) == false) {
+                continue;
+            }
+            final int id;
+            try {
+                id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length()
+                        - SEGMENT_SUFFIX.length()));
+            } catch (final NumberFormatException e) {
+                continue;
+            }
+            segments.put(id, new Segment(id, file));
+            nextSegmentId = Math.max(nextSegmentId, id + 1);
+        }
+    }
+
+    /**
+     * ジャーナルを読み込む。<br>
+     * 書き込み途中で終了した場合などに不正な行があった場合は、その手前までの内容を復元する。
+     * 改行で終わっていない最後の行も書き込み途中とみなして読み込まない。
+     * 
+     * @param journal ジャーナルファイル
+     * @return 全ての行を読み込めた場合はtrue、不正な行があった場合はfalse
+     * @throws IOException 読み込みに失敗した場合、またはヘッダが不正な場合
+     */
+    private boolean readJournal(final File journal) throws IOException {
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(journal), "UTF-8"));
+        try {
+            final String magic = reader.readLine();
+            final String version = reader.readLine();
+            if (MAGIC.equals(magic) == false || VERSION.equals(version) == false) {
+                throw new IOException("unexpected journal header: " + magic + ", " + version);
+            }
+            final boolean torn = endsWithNewline(journal) == false;
+            boolean complete = true;
+            int lineCount = 0;
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && torn) {
+                    Log.w(TAG, "TRUNCATE journal. torn line is " + line);
+                    complete = false;
+                    break;
+                }
+                try {
+                    readJournalLine(line);
+                } catch (final IOException e) {
+                    Log.w(TAG, "TRUNCATE journal. " + e.getMessage());
+                    complete = false;
+                    break;
+                }
+                lineCount++;
+                line = next;
+            }
+            redundantOpCount = lineCount - entries.size();
+            return complete;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * ファイルが改行で終わっているかどうかを判定する。
+     * 
+     * @param file ファイル
+     * @return 改行で終わっている場合、または空の場合はtrue
+     * @throws IOException 読み込みに失敗した場合
+     */
+    private static boolean endsWithNewline(final File file) throws IOException {
+        final RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            final long length = raf.length();
+            if (length == 0) {
+                return true;
+            }
+            raf.seek(length - 1);
+            return raf.read() == '\n';
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * ジャーナルの1行を読み込み、インデックスに反映する。
+     * 
+     * @param line ジャーナルの1行
+     * @throws IOException 行の形式が不正な場合
+     */
+    private void readJournalLine(final String line) throws IOException {
+        final String[] parts = line.split(" ", 11);
+        if (parts.length < 2) {
+            throw new IOException("unexpected journal line: " + line);
+        }
+        final String key = parts[1];
+        if (REMOVE.equals(parts[0])) {
+            removeEntry(entries.remove(key));
+        } else if (READ.equals(parts[0])) {
+            entries.get(key);
+        } else if (PUT.equals(parts[0]) && parts.length == 11) {
+            final Entry entry;
+            try {
+                entry = new Entry(key, parts[10], segments.get(Integer.valueOf(parts[2])),
+                        Long.parseLong(parts[3]), Integer.parseInt(parts[4]),
+                        Long.parseLong(parts[5]), readMetadata(parts, 6));
+            } catch (final NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            removeEntry(entries.put(key, entry));
+            addEntry(entry);
+        } else if (META.equals(parts[0]) && parts.length >= 6) {
+            final CacheMetadata metadata;
+            try {
+                metadata = readMetadata(parts, 2);
+            } catch (final NumberFormatException e) {
+                throw new IOException("unexpected journal line: " + line);
+            }
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.metadata = metadata;
+            }
+        } else {
+            throw new IOException("unexpected journal line: " + line);
+        }
+    }
+
+    /**
+     * ジャーナルの項目からメタデータを復元する。
+     * 
+     * @param parts ジャーナルの1行を分割したもの
+     * @param start 有効期限の位置
+     * @return メタデータ
+     * @throws IOException 形式が不正な場合
+     */
+    private static CacheMetadata readMetadata(final String[] parts, final int start)
+            throws IOException {
+        return new CacheMetadata(decode(parts[start + 2]), decode(parts[start + 3]),
+                Long.parseLong(parts[start]), Long.parseLong(parts[start + 1]));
+    }
+
+    /**
+     * セグメントファイルが無い、または範囲外を指すエントリを破棄する。<br>
+     * 書き込み途中で終了した場合などに残ったエントリの破棄用。また、有効なエントリの無いセグメントファイルを削除する。
+     */
+    private void dropInvalidEntries() {
+        final Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry entry = it.next();
+            if (entry.segment == null || entry.offset + entry.length > entry.segment.length) {
+                Log.w(TAG, "DROP broken entry. key is " + entry.key);
+                it.remove();
+                removeEntry(entry);
+                redundantOpCount++;
+            }
+        }
+        final Iterator<Segment> segmentIt = segments.values().iterator();
+        while (segmentIt.hasNext()) {
+            final Segment segment = segmentIt.next();
+            if (segment.liveBytes == 0) {
+                segmentIt.remove();
+                segment.delete();
+            }
+        }
+    }
+
+    /**
+     * 全てのセグメントファイルを削除する。
+     */
+    private void deleteSegments() {
+        for (final Segment segment : segments.values()) {
+            segment.delete();
+        }
+        segments.clear();
+        activeSegment = null;
+        final File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (final File file : files) {
+            final String name = file.getName();
+            if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)
+                    && file.delete() == false) {
+                Log.w(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * 現在のインデックスからジャーナルを作り直す。
+     */
+    private void rebuildJournal() {
+        if (journalWriter != null) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+        final File journal = new File(directory, JOURNAL_FILE);
+        final File journalTmp = new File(directory, JOURNAL_FILE_TMP);
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journalTmp), "UTF-8"));
+            try {
+                writer.write(MAGIC);
+                writer.write('\n');
+                writer.write(VERSION);
+                writer.write('\n');
+                for (final Entry entry : entries.values()) {
+                    writer.write(toPutLine(entry));
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+            if (journalTmp.renameTo(journal) == false) {
+                throw new IOException("RENAME journal is Failed.");
+            }
+            journalWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+                    journal, true), "UTF-8"));
+            redundantOpCount = 0;
+        } catch (final IOException e) {
+            Log.e(TAG, "REBUILD journal is Failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * ジャーナルに1行追記する。
+     * 
+     * @param line 追記する行
+     * @param flush 即座に書き出す場合はtrue
+     */
+    private void writeJournal(final String line, final boolean flush) {
+        if (journalWriter == null) {
+            return;
+        }
+        try {
+            journalWriter.write(line);
+            journalWriter.write('\n');
+            if (flush) {
+                journalWriter.flush();
+            }
+        } catch (final IOException e) {
+            Log.e(TAG, "WRITE journal is Failed. " + e.getMessage());
+        }
+    }
+
+    /**
+     * 登録のジャーナル行を作成する。
+     * 
+     * @param entry エントリ
+     * @return ジャーナル行
+     */
+    private static String toPutLine(final Entry entry) {
+        return PUT + ' ' + entry.key + ' ' + entry.segment.id + ' ' + entry.offset + ' '
+                + entry.length + ' ' + entry.checksum + ' ' + toMetadataFields(entry.metadata)
+                + ' ' + entry.url;
+    }
+
+    /**
+     * メタデータをジャーナルの項目に変換する。<br>
+     * 有効期限、Content-Length、ETag、Last-Modifiedの順に空白区切りで並べる。
+     * 
+     * @param metadata メタデータ
+     * @return ジャーナルの項目
+     */
+    private static String toMetadataFields(final CacheMetadata metadata) {
+        return metadata.getExpires() + " " + metadata.getContentLength() + ' '
+                + encode(metadata.getEtag()) + ' ' + encode(metadata.getLastModified());
+    }
+
+    /**
+     * 空白を含む値をジャーナルに書き込めるようエンコードする。
+     * 
+     * @param value 値。nullの場合は空文字
+     * @return エンコードした値
+     */
+    private static String encode(final String value) {
+        if (value == null) {
+            return "";
+        }
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    /**
+     * {@link #encode(String)}でエンコードした値を戻す。
+     * 
+     * @param value エンコードした値
+     * @return 値。空文字の場合はnull
+     * @throws IOException 形式が不正な場合
+     */
+    private static String decode(final String value) throws IOException {
+        if (value.length() == 0) {
+            return null;
+        }
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (final IllegalArgumentException e) {
+            throw new IOException("unexpected journal value: " + value);
+        }
+    }
+
+    /**
+     * キャッシュされている画像データを取得する。<br>
+     * セグメントファイルをマップした領域の一部を返すため、データのコピーは行わない。<br>
+     * キャッシュに存在しない場合、またはキーが別のURLと衝突している場合はnullを返す。<br>
+     * 起動後最初の読み込みではCRC32を照合し、一致しない場合は破損したエントリとして削除してnullを返す。
+     * 
+     * @param key キャッシュキー
+     * @param url 画像のURL
+     * @return 読み込み専用の画像データ
+     */
+    public synchronized ByteBuffer get(final String key, final String url) {
+        ensureOpen();
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.url.equals(url) == false) {
+            Log.w(TAG, "KEY collision detected. key is " + key + ", url is " + url
+                    + ", cached url is " + entry.url);
+            return null;
+        }
+        final ByteBuffer buffer;
+        try {
+            buffer = entry.segment.slice(entry.offset, entry.length);
+        } catch (final IOException e) {
+            Log.w(TAG, "MAP segment is Failed. " + e.getMessage());
+            remove(key);
+            return null;
+        }
+        if (entry.verified == false) {
+            if (checksum(buffer.duplicate()) != entry.checksum) {
+                Log.w(TAG, "CHECKSUM mismatch detected. key is " + key);
+                remove(key);
+                return null;
+            }
+            entry.verified = true;
+        }
+        redundantOpCount++;
+        writeJournal(READ + ' ' + key, false);
+        if (isJournalRebuildRequired()) {
+            cleanupExecutor.execute(cleanupRunnable);
+        }
+        return buffer;
+    }
+
+    /**
+     * 画像データを追記し、キャッシュに登録する。<br>
+     * データを書き込んでからジャーナルに記録するため、読み込み側が書き込み途中のデータを参照することはない。<br>
+     * 最大キャッシュサイズを超えた場合は、バックグラウンドで古いエントリを削除する。
+     * 
+     * @param key キャッシュキー
+     * @param url 画像のURL
+     * @param data 画像データ
+     * @param length データ長
+     * @param metadata メタデータ。nullの場合は有効期限なしとする
+     */
+    public synchronized void put(final String key, final String url, final byte[] data,
+            final int length, final CacheMetadata metadata) {
+        ensureOpen();
+        if (length <= 0 || length > segmentSize) {
+            return;
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, length);
+        final Entry entry;
+        try {
+            final Segment segment = getActiveSegment(length);
+            final long offset = segment.append(ByteBuffer.wrap(data, 0, length));
+            entry = new Entry(key, url, segment, offset, length, crc.getValue(),
+                    metadata != null ? metadata : new CacheMetadata(null, null, Long.MAX_VALUE,
+                            length));
+            // 書き込んだデータは照合済みとする
+            entry.verified = true;
+        } catch (final IOException e) {
+            Log.w(TAG, "WRITE segment is Failed. " + e.getMessage());
+            remove(key);
+            return;
+        }
+        final Entry old = entries.put(key, entry);
+        if (old != null) {
+            removeEntry(old);
+            redundantOpCount++;
+        }
+        addEntry(entry);
+        writeJournal(toPutLine(entry), true);
+        if (size > maxSize || isJournalRebuildRequired()) {
+            cleanupExecutor.execute(cleanupRunnable);
+        }
+    }
+
+    /**
+     * ByteBufferの残りのデータのCRC32を求める。<br>
+     * CRC32はByteBufferを直接扱えないため、小さな配列に分けてコピーする。
+     * 
+     * @param buffer データ。位置は変更される
+     * @return CRC32
+     */
+    private static long checksum(final ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        final byte[] buf = new byte[8192];
+        while (buffer.hasRemaining()) {
+            final int len = Math.min(buf.length, buffer.remaining());
+            buffer.get(buf, 0, len);
+            crc.update(buf, 0, len);
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * 最近参照された順に、画像のURLを取得する。<br>
+     * アクセス順は変更しない。
+     * 
+     * @param count 取得する最大数
+     * @return 画像のURL。最も最近参照されたものが先頭
+     */
+    public synchronized List<String> recentUrls(final int count) {
+        ensureOpen();
+        final List<String> urls = new ArrayList<String>(entries.size());
+        for (final Entry entry : entries.values()) {
+            urls.add(entry.url);
+        }
+        Collections.reverse(urls);
+        return new ArrayList<String>(urls.subList(0, Math.min(count, urls.size())));
+    }
+
+    /**
+     * 追記先のセグメントを取得する。<br>
+     * 追記中のセグメントに収まらない場合は、新しいセグメントを作成する。
+     * 
+     * @param length 追記するデータ長
+     * @return 追記先のセグメント
+     * @throws IOException セグメントファイルを作成できなかった場合
+     */
+    private Segment getActiveSegment(final int length) throws IOException {
+        if (activeSegment != null && activeSegment.length > 0
+                && activeSegment.length + length > segmentSize) {
+            activeSegment = null;
+            // 追記を終えたセグメントはコンパクションの対象になる
+            cleanupExecutor.execute(cleanupRunnable);
+        }
+        if (activeSegment == null) {
+            final int id = nextSegmentId++;
+            final Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX + id
+                    + SEGMENT_SUFFIX));
+            segments.put(id, segment);
+            activeSegment = segment;
+        }
+        return activeSegment;
+    }
+
+    /**
+     * メタデータを取得する。
+     * 
+     * @param key キャッシュキー
+     * @return メタデータ。キャッシュに存在しない場合はnull
+     */
+    public synchronized CacheMetadata readMetadata(final String key) {
+        ensureOpen();
+        final Entry entry = entries.get(key);
+        return entry != null ? entry.metadata : null;
+    }
+
+    /**
+     * メタデータを更新する。
+     * 
+     * @param key キャッシュキー
+     * @param metadata メタデータ
+     */
+    public synchronized void writeMetadata(final String key, final CacheMetadata metadata) {
+        ensureOpen();
+        final Entry entry = entries.get(key);
+        if (entry == null) {
+            return;
+        }
+        entry.metadata = metadata;
+        redundantOpCount++;
+        writeJournal(META + ' ' + key + ' ' + toMetadataFields(metadata), true);
+    }
+
+    /**
+     * エントリを削除する。<br>
+     * データはコンパクションで回収する。
+     * 
+     * @param key キャッシュキー
+     * @return 削除した場合はtrue、キャッシュに存在しなかった場合はfalse
+     */
+    public synchronized boolean remove(final String key) {
+        ensureOpen();
+        final Entry entry = entries.remove(key);
+        if (entry == null) {
+            return false;
+        }
+        removeEntry(entry);
+        redundantOpCount++;
+        writeJournal(REMOVE + ' ' + key, true);
+        return true;
+    }
+
+    /**
+     * 全てのエントリとセグメントファイルを削除する。
+     */
+    public synchronized void clear() {
+        ensureOpen();
+        entries.clear();
+        size = 0;
+        deleteSegments();
+        rebuildJournal();
+    }
+
+    /**
+     * インデックスに追加したエントリのサイズを加算する。
+     * 
+     * @param entry エントリ
+     */
+    private void addEntry(final Entry entry) {
+        size += entry.length;
+        if (entry.segment != null) {
+            entry.segment.liveBytes += entry.length;
+        }
+    }
+
+    /**
+     * インデックスから取り除いたエントリのサイズを減算する。
+     * 
+     * @param entry エントリ。nullの場合は何もしない
+     */
+    private void removeEntry(final Entry entry) {
+        if (entry == null) {
+            return;
+        }
+        size -= entry.length;
+        if (entry.segment != null) {
+            entry.segment.liveBytes -= entry.length;
+        }
+    }
+
+    /**
+     * 最大キャッシュサイズ以下になるまで、最も長く参照されていないエントリから削除する。
+     */
+    private void trimToSize() {
+        final Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            final Entry entry = it.next().getValue();
+            it.remove();
+            removeEntry(entry);
+            redundantOpCount++;
+            writeJournal(REMOVE + ' ' + entry.key, false);
+        }
+        if (journalWriter != null) {
+            try {
+                journalWriter.flush();
+            } catch (final IOException e) {
+                Log.e(TAG, "WRITE journal is Failed. " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * 追記を終えたセグメントのうち、有効なデータの割合が閾値を下回るものをコンパクションする。<br>
+     * 有効なエントリを追記中のセグメントにコピーし、ジャーナルに記録してから元のセグメントファイルを削除する。<br>
+     * 既に返したByteBufferはマップが残るため、セグメントファイルの削除後も読み込める。
+     */
+    private void compact() {
+        final List<Segment> targets = new ArrayList<Segment>();
+        for (final Segment segment : segments.values()) {
+            if (segment != activeSegment
+                    && segment.liveBytes * 100 < segment.length * COMPACT_LIVE_PERCENT) {
+                targets.add(segment);
+            }
+        }
+        for (final Segment segment : targets) {
+            // アクセス順を変えないよう、値のみを走査して位置を書き換える
+            for (final Entry entry : entries.values()) {
+                if (entry.segment != segment) {
+                    continue;
+                }
+                try {
+                    final ByteBuffer data = segment.slice(entry.offset, entry.length);
+                    final Segment dest = getActiveSegment(entry.length);
+                    final long offset = dest.append(data);
+                    segment.liveBytes -= entry.length;
+                    dest.liveBytes += entry.length;
+                    entry.segment = dest;
+                    entry.offset = offset;
+                    redundantOpCount++;
+                    writeJournal(toPutLine(entry), false);
+                } catch (final IOException e) {
+                    Log.w(TAG, "COMPACT segment is Failed. " + e.getMessage());
+                    return;
+                }
+            }
+            if (journalWriter != null) {
+                try {
+                    journalWriter.flush();
+                } catch (final IOException e) {
+                    Log.e(TAG, "WRITE journal is Failed. " + e.getMessage());
+                    return;
+                }
+            }
+            segments.remove(segment.id);
+            segment.delete();
+        }
+    }
+
+    /**
+     * ジャーナルの再作成が必要かどうかを判定する。
+     * 
+     * @return 冗長な行が閾値を超え、かつ有効な行数以上ある場合にtrue
+     */
+    private boolean isJournalRebuildRequired() {
+        return redundantOpCount >= REDUNDANT_OP_COMPACT_THRESHOLD
+                && redundantOpCount >= entries.size();
+    }
+
+    /**
+     * キャッシュに存在するかどうかを返す。
+     * 
+     * @param key キャッシュキー
+     * @return 存在する場合はtrue
+     */
+    public synchronized boolean contains(final String key) {
+        ensureOpen();
+        return entries.containsKey(key);
+    }
+
+    /**
+     * 有効なエントリの合計サイズを取得する。
+     * 
+     * @return キャッシュサイズ(Byte)
+     */
+    public synchronized long size() {
+        ensureOpen();
+        return size;
+    }
+
+    /**
+     * セグメントファイルの合計サイズを取得する。<br>
+     * コンパクション前の削除済みエントリを含む。
+     * 
+     * @return セグメントファイルの合計サイズ(Byte)
+     */
+    public synchronized long fileSize() {
+        ensureOpen();
+        long total = 0;
+        for (final Segment segment : segments.values()) {
+            total += segment.length;
+        }
+        return total;
+    }
+
+    /**
+     * 最大キャッシュサイズを取得する。
+     * 
+     * @return 最大キャッシュサイズ(Byte)
+     */
+    public long maxSize() {
+        return maxSize;
+    }
+
+    /**
+     * キャッシュされているエントリ数を取得する。
+     * 
+     * @return エントリ数
+     */
+    public synchronized int count() {
+        ensureOpen();
+        return entries.size();
+    }
+
+    /**
+     * ジャーナル、セグメントファイルを閉じる。<br>
+     * 以降の登録・削除はジャーナルに記録されない。
+     */
+    public synchronized void close() {
+        opened = true;
+        if (journalWriter != null) {
+            closeQuietly(journalWriter);
+            journalWriter = null;
+        }
+        for (final Segment segment : segments.values()) {
+            segment.close();
+        }
+        cleanupExecutor.shutdown();
+    }
+
+    /**
+     * 例外を無視してクローズする。
+     * 
+     * @param writer Writer
+     */
+    private static void closeQuietly(final Writer writer) {
+        try {
+            writer.close();
+        } catch (final Exception e) {
+        }
+    }
+
+    /**
+     * セグメントファイル。<br>
+     * PackCacheのロックを取得した状態で操作すること。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private static class Segment {
+
+        /** セグメント番号。 */
+        private final int id;
+
+        /** セグメントファイル。 */
+        private final File file;
+
+        /** ファイルのチャネル。最初の読み書きで開く。 */
+        private FileChannel channel;
+
+        /** マップした領域。追記により不足した場合はマップし直す。 */
+        private MappedByteBuffer mapped;
+
+        /** ファイルの長さ(Byte)。 */
+        private long length;
+
+        /** 有効なエントリの合計サイズ(Byte)。 */
+        private long liveBytes;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param id セグメント番号
+         * @param file セグメントファイル
+         */
+        Segment(final int id, final File file) {
+            this.id = id;
+            this.file = file;
+            this.length = file.length();
+        }
+
+        /**
+         * ファイルのチャネルを取得する。
+         * 
+         * @return チャネル
+         * @throws IOException 開けなかった場合
+         */
+        private FileChannel getChannel() throws IOException {
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+            }
+            return channel;
+        }
+
+        /**
+         * データを末尾に追記する。
+         * 
+         * @param data データ
+         * @return 追記した位置
+         * @throws IOException 書き込みに失敗した場合
+         */
+        long append(final ByteBuffer data) throws IOException {
+            final FileChannel ch = getChannel();
+            final long offset = length;
+            long position = offset;
+            while (data.hasRemaining()) {
+                position += ch.write(data, position);
+            }
+            length = position;
+            return offset;
+        }
+
+        /**
+         * 指定した範囲をマップした読み込み専用のByteBufferを取得する。
+         * 
+         * @param offset 位置
+         * @param size 長さ
+         * @return 読み込み専用のByteBuffer
+         * @throws IOException マップに失敗した場合
+         */
+        ByteBuffer slice(final long offset, final int size) throws IOException {
+            if (mapped == null || mapped.capacity() < offset + size) {
+                mapped = getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+            }
+            final ByteBuffer buffer = mapped.duplicate();
+            buffer.position((int) offset);
+            buffer.limit((int) offset + size);
+            return buffer.slice();
+        }
+
+        /**
+         * チャネルを閉じる。
+         */
+        void close() {
+            mapped = null;
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (final IOException e) {
+                }
+                channel = null;
+            }
+        }
+
+        /**
+         * チャネルを閉じ、セグメントファイルを削除する。
+         */
+        void delete() {
+            close();
+            if (file.exists() && file.delete() == false) {
+                Log.w(TAG, "DELETE file is Failed. path is " + file.getAbsolutePath());
+            }
+        }
+    }
+
+    /**
+     * キャッシュのインデックスのエントリ。<br>
+     * コンパクションで移動した場合は、アクセス順を変えないよう位置のみを書き換える。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private static class Entry {
+
+        /** キャッシュキー。 */
+        private final String key;
+
+        /** 画像のURL。 */
+        private final String url;
+
+        /** 格納先のセグメント。セグメントファイルが無い場合はnull。 */
+        private Segment segment;
+
+        /** セグメント内の位置。 */
+        private long offset;
+
+        /** データ長(Byte)。 */
+        private final int length;
+
+        /** データのCRC32。 */
+        private final long checksum;
+
+        /** 起動後にCRC32を照合した場合はtrue。 */
+        private boolean verified;
+
+        /** メタデータ。 */
+        private CacheMetadata metadata;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param key キャッシュキー
+         * @param url 画像のURL
+         * @param segment 格納先のセグメント
+         * @param offset セグメント内の位置
+         * @param length データ長(Byte)
+         * @param checksum データのCRC32
+         * @param metadata メタデータ
+         */
+        Entry(final String key, final String url, final Segment segment, final long offset,
+                final int length, final long checksum, final CacheMetadata metadata) {
+            this.key = key;
+            this.url = url;
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.checksum = checksum;
+            this.metadata = metadata;
+        }
+    }
+}
@@ -0,0 +1,329 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Map;
+
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * ローカルディレクトリに保存する画像の、途中まで受信したデータを管理するクラス。<br>
+ * 受信中のデータは「ファイル名.part」に書き込み、ETag、Last-Modifiedを「ファイル名.part.meta」に保存する。
+ * 通信が途切れた場合は.partファイルを残し、次回はRange、If-Rangeを付けたリクエストで続きから受信する。<br>
+ * 206 Partial Contentの場合は.partファイルに追記し、200 OKの場合は画像が更新されているため先頭から受信し直す。<br>
+ * 受信後はContent-Length、Content-Rangeの全体のサイズ、Content-MD5がある場合はそのハッシュ値で検証してから保存先にリネームする。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+class PartialDownload {
+
+    /** タグ。 */
+    private static final String TAG = PartialDownload.class.getSimpleName();
+
+    /** 受信途中のファイルの拡張子。 */
+    private static final String PART_FILE_SUFFIX = ".part";
+
+    /** 受信途中のファイルのメタデータの拡張子。 */
+    private static final String META_FILE_SUFFIX = ".meta";
+
+    /** 416 Requested Range Not Satisfiable。 */
+    private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+
+    /** 受信途中のファイル。 */
+    private final File partFile;
+
+    /** 受信途中のファイルのメタデータ。 */
+    private final File metaFile;
+
+    /** 受信途中のファイルの取得時のETag、Last-Modified。無い場合はnull。 */
+    private CacheMetadata validators;
+
+    /** 続きを要求したバイト位置。要求していない場合は0。 */
+    private long requested;
+
+    /** 受信済みのバイト数。 */
+    private long offset;
+
+    /** 画像全体のバイト数。不明な場合は-1。 */
+    private long totalLength = -1;
+
+    /** 失敗時に受信途中のファイルを残す場合はtrue。 */
+    private boolean keep;
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param dir 保存先のディレクトリ
+     * @param fileName 保存先のファイル名
+     */
+    PartialDownload(final File dir, final String fileName) {
+        this.partFile = new File(dir, fileName + PART_FILE_SUFFIX);
+        this.metaFile = new File(dir, fileName + PART_FILE_SUFFIX + META_FILE_SUFFIX);
+    }
+
+    /**
+     * リクエストヘッダを設定する。<br>
+     * 受信途中のファイルがあり、取得時のETag、Last-Modifiedがある場合は続きを要求する。<br>
+     * 受信したバイト位置がずれないよう、gzipは要求しない。
+     * 
+     * @param headers リクエストヘッダ
+     */
+    void applyTo(final Map<String, String> headers) {
+        headers.put("Accept-Encoding", "identity");
+        final long length = partFile.length();
+        if (length <= 0) {
+            return;
+        }
+        validators = readValidators();
+        final String ifRange = getIfRange(validators);
+        if (ifRange == null) {
+            // 同じ画像かどうかを確認できないため、先頭から受信し直す
+            delete();
+            return;
+        }
+        headers.put("Range", "bytes=" + length + "-");
+        headers.put("If-Range", ifRange);
+        requested = length;
+        keep = true;
+    }
+
+    /**
+     * レスポンスに合わせて受信途中のファイルを開く。<br>
+     * 206の場合は追記、それ以外の場合は先頭から書き込む。
+     * 
+     * @param response レスポンス
+     * @return 受信途中のファイルへの出力ストリーム
+     * @throws IOException レスポンスが要求と一致しない場合、ファイルを開けなかった場合
+     */
+    OutputStream open(final HttpFetcher.Response response) throws IOException {
+        if (response.getResponseCode() == HttpURLConnection.HTTP_PARTIAL) {
+            final long[] range = parseContentRange(response.getHeaderField("Content-Range"));
+            if (requested == 0 || range == null || range[0] != requested) {
+                keep = false;
+                throw new IOException("unexpected Content-Range: "
+                        + response.getHeaderField("Content-Range"));
+            }
+            offset = requested;
+            totalLength = range[1];
+            return new FileOutputStream(partFile, true);
+        }
+        offset = 0;
+        totalLength = response.getContentLength();
+        validators = new CacheMetadata(response.getHeaderField("ETag"),
+                response.getHeaderField("Last-Modified"), 0, totalLength);
+        keep = getIfRange(validators) != null;
+        if (keep) {
+            validators.write(metaFile);
+        } else if (metaFile.exists()) {
+            metaFile.delete();
+        }
+        return new FileOutputStream(partFile);
+    }
+
+    /**
+     * 受信済みのデータを読み込む。
+     * 
+     * @param data 読み込み先。受信済みのバイト数以上の大きさであること
+     * @throws IOException 読み込みに失敗した場合
+     */
+    void readPart(final byte[] data) throws IOException {
+        final InputStream in = new FileInputStream(partFile);
+        try {
+            int read = 0;
+            while (read < offset) {
+                final int len = in.read(data, read, (int) offset - read);
+                if (len == -1) {
+                    throw new IOException("part file is truncated.");
+                }
+                read += len;
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * 受信済みのバイト数を取得する。
+     * 
+     * @return 受信済みのバイト数。先頭から受信する場合は0
+     */
+    long getOffset() {
+        return offset;
+    }
+
+    /**
+     * 画像全体のバイト数を取得する。
+     * 
+     * @return 画像全体のバイト数。不明な場合は-1
+     */
+    long getTotalLength() {
+        return totalLength;
+    }
+
+    /**
+     * 受信したデータを検証する。<br>
+     * 全体のサイズより短い場合は続きを受信できるよう受信途中のファイルを残し、
+     * 長い場合やContent-MD5と一致しない場合は破棄する。
+     * 
+     * @param response レスポンス
+     * @param data 受信済みのデータを含む全体のデータ
+     * @param length 全体のバイト数
+     * @throws IOException 検証に失敗した場合
+     */
+    void verify(final HttpFetcher.Response response, final byte[] data, final int length)
+            throws IOException {
+        if (totalLength >= 0 && length != totalLength) {
+            if (length > totalLength) {
+                keep = false;
+            }
+            throw new IOException("length mismatch. expected " + totalLength + " but was "
+                    + length);
+        }
+        final String contentMd5 = response.getHeaderField("Content-MD5");
+        if (contentMd5 == null) {
+            return;
+        }
+        // Content-MD5は送信された本文のハッシュ値のため、206の場合は受信した範囲のみで計算する
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (final NoSuchAlgorithmException e) {
+            Log.w(TAG, "MD5 is not supported.");
+            return;
+        }
+        digest.update(data, (int) offset, length - (int) offset);
+        final byte[] expected;
+        try {
+            expected = Base64.decode(contentMd5.trim(), Base64.DEFAULT);
+        } catch (final IllegalArgumentException e) {
+            Log.w(TAG, "unexpected Content-MD5: " + contentMd5);
+            return;
+        }
+        if (Arrays.equals(expected, digest.digest()) == false) {
+            keep = false;
+            throw new IOException("Content-MD5 mismatch.");
+        }
+    }
+
+    /**
+     * 受信を完了し、受信途中のファイルを保存先にリネームする。
+     * 
+     * @param file 保存先
+     * @return リネームに成功した場合はtrue
+     */
+    boolean commit(final File file) {
+        if (metaFile.exists()) {
+            metaFile.delete();
+        }
+        return partFile.renameTo(file);
+    }
+
+    /**
+     * 受信の失敗を処理する。<br>
+     * 続きから受信できる場合は受信途中のファイルを残し、それ以外の場合は削除する。
+     * 
+     * @param e 失敗の原因。不明な場合はnull
+     */
+    void abort(final Exception e) {
+        if (e instanceof DefaultHttpFetcher.HttpStatusException
+                && ((DefaultHttpFetcher.HttpStatusException) e).getCode()
+                == HTTP_RANGE_NOT_SATISFIABLE) {
+            // 受信途中のファイルが画像より大きいなど、続きを要求できない状態
+            keep = false;
+        }
+        if (keep) {
+            Log.i(TAG, "KEEP part file. path is " + partFile.getAbsolutePath() + " length is "
+                    + partFile.length());
+            return;
+        }
+        delete();
+    }
+
+    /**
+     * 受信途中のファイルとメタデータを削除する。
+     */
+    private void delete() {
+        if (partFile.exists() && partFile.delete() == false) {
+            Log.w(TAG, "DELETE file is Failed. path is " + partFile.getAbsolutePath());
+        }
+        if (metaFile.exists()) {
+            metaFile.delete();
+        }
+    }
+
+    /**
+     * 受信途中のファイルのメタデータを読み込む。
+     * 
+     * @return メタデータ。無い、または読み込めない場合はnull
+     */
+    private CacheMetadata readValidators() {
+        if (metaFile.exists() == false) {
+            return null;
+        }
+        try {
+            return CacheMetadata.read(metaFile);
+        } catch (final IOException e) {
+            Log.w(TAG, "READ part metadata is Failed. " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * If-Rangeの値を取得する。<br>
+     * 弱いETagはIf-Rangeに使用できないため、その場合はLast-Modifiedを使用する。
+     * 
+     * @param metadata メタデータ
+     * @return If-Rangeの値。使用できる値が無い場合はnull
+     */
+    private static String getIfRange(final CacheMetadata metadata) {
+        if (metadata == null) {
+            return null;
+        }
+        final String etag = metadata.getEtag();
+        if (etag != null && etag.startsWith("W/") == false) {
+            return etag;
+        }
+        return metadata.getLastModified();
+    }
+
+    /**
+     * Content-Rangeを解析する。
+     * 
+     * @param contentRange Content-Range。「bytes 開始位置-終了位置/全体のサイズ」の形式
+     * @return 開始位置、全体のサイズ(不明な場合は-1)。解析できない場合はnull
+     */
+    static long[] parseContentRange(final String contentRange) {
+        if (contentRange == null) {
+            return null;
+        }
+        final String value = contentRange.trim();
+        if (value.startsWith("bytes ") == false) {
+            return null;
+        }
+        final int dash = value.indexOf('-');
+        final int slash = value.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            final long start = Long.parseLong(value.substring("bytes ".length(), dash).trim());
+            final String total = value.substring(slash + 1).trim();
+            return new long[] {
+                    start, "*".equals(total) ? -1 : Long.parseLong(total)
+            };
+        } catch (final NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,665 @@
+
+package jp.ddo.trismegistos.androidutil.view.helper;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+/**
+ * 大きな画像を{@link BitmapRegionDecoder}でタイルに分割して読み込むクラス。<br>
+ * タイルは表示倍率に合わせた縮小率でデコードし、容量上限付きのメモリキャッシュに保持する。<br>
+ * キャッシュに無いタイルは{@link ImagePipeline}のデコード用スレッドで読み込み、完了後に{@link Listener}へ通知する。
+ * 読み込み前に表示範囲から外れたタイルはデコードしない。<br>
+ * 使用するメモリはキャッシュサイズで決まり、元画像の解像度には依存しない。<br>
+ * キャッシュはタイルの位置をlongのキーのまま扱うため、キャッシュにあるタイルの取得ではオブジェクトを生成しない。
+ * キャッシュに無いタイルの読み込み要求では、読み込み処理と読み込み中のキーを生成する。<br>
+ * BitmapRegionDecoderはAPI 10以降で使用できる。
+ * 
+ * @author y_sugasawa
+ * @since 2013/03/06
+ */
+public class TileLoader {
+
+    /** タグ。 */
+    private static final String TAG = TileLoader.class.getSimpleName();
+
+    /** デフォルトのタイルの一辺の長さ(px)。 */
+    public static final int DEFAULT_TILE_SIZE = 256;
+
+    /** デフォルトのキャッシュサイズ ヒープの1/8 */
+    private static final float DEFAULT_CACHE_FRACTION = 0.125f;
+
+    /** 画像のデコーダ。 */
+    private final BitmapRegionDecoder decoder;
+
+    /** 元画像の幅(px)。 */
+    private final int width;
+
+    /** 元画像の高さ(px)。 */
+    private final int height;
+
+    /** タイルの一辺の長さ(px)。デコード後の大きさ。 */
+    private final int tileSize;
+
+    /** タイルのキャッシュ。 */
+    private final TileCache cache;
+
+    /** 読み込み中のタイル。読み込みを要求する場合のみ参照する。 */
+    private final Set<Long> pending = new HashSet<Long>();
+
+    /** 表示中のタイルの縮小率。 */
+    private int visibleSampleSize;
+
+    /** 表示中のタイルの範囲。列、行の番号。 */
+    private final Rect visibleTiles = new Rect();
+
+    /** 読み込み完了の通知先。 */
+    private volatile Listener listener;
+
+    /** 破棄した場合はtrue。 */
+    private volatile boolean recycled;
+
+    /**
+     * コンストラクタ。<br>
+     * デフォルトのタイルサイズ、キャッシュサイズで作成する。
+     * 
+     * @param decoder 画像のデコーダ
+     */
+    public TileLoader(final BitmapRegionDecoder decoder) {
+        this(decoder, DEFAULT_TILE_SIZE, ImageCache.getMemoryCacheSize(DEFAULT_CACHE_FRACTION));
+    }
+
+    /**
+     * コンストラクタ。
+     * 
+     * @param decoder 画像のデコーダ
+     * @param tileSize タイルの一辺の長さ(px)
+     * @param cacheSize タイルのキャッシュサイズ(Byte)
+     */
+    public TileLoader(final BitmapRegionDecoder decoder, final int tileSize, final int cacheSize) {
+        if (decoder == null) {
+            throw new IllegalArgumentException("decoder is null.");
+        }
+        if (tileSize <= 0) {
+            throw new IllegalArgumentException("tileSize <= 0");
+        }
+        this.decoder = decoder;
+        // 破棄後に参照しても例外とならないよう、大きさは保持しておく
+        this.width = decoder.getWidth();
+        this.height = decoder.getHeight();
+        this.tileSize = tileSize;
+        this.cache = new TileCache(cacheSize);
+    }
+
+    /**
+     * 画像ファイルを開き、TileLoaderを作成する。
+     * 
+     * @param path 画像ファイルのパス
+     * @return TileLoader
+     * @throws IOException 画像ファイルを開けなかった場合
+     */
+    public static TileLoader open(final String path) throws IOException {
+        final BitmapRegionDecoder decoder = BitmapRegionDecoder.newInstance(path, false);
+        if (decoder == null) {
+            throw new IOException("unsupported image: " + path);
+        }
+        return new TileLoader(decoder);
+    }
+
+    /**
+     * 元画像の幅を取得する。
+     * 
+     * @return 幅(px)
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * 元画像の高さを取得する。
+     * 
+     * @return 高さ(px)
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * タイルの一辺の長さを取得する。
+     * 
+     * @return タイルの一辺の長さ(px)。デコード後の大きさ
+     */
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * 読み込み完了の通知先を設定する。
+     * 
+     * @param listener 通知先
+     */
+    public void setListener(final Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * 画像全体を要求サイズに合わせて縮小してデコードする。<br>
+     * タイルを読み込むまでの表示や、拡大していない状態の表示に使用する。呼び出したスレッドでデコードする。
+     * 
+     * @param reqWidth 要求する幅(px)
+     * @param reqHeight 要求する高さ(px)
+     * @return 画像のBitmap。デコードに失敗した場合はnull
+     */
+    public Bitmap decodePreview(final int reqWidth, final int reqHeight) {
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = BitmapDecoder.calculateInSampleSize(getWidth(), getHeight(),
+                reqWidth, reqHeight);
+        try {
+            return decoder.decodeRegion(new Rect(0, 0, getWidth(), getHeight()), options);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "DECODE preview is Failed. " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 表示倍率に合わせたタイルの縮小率を計算する。<br>
+     * デコード後の1pxが画面上で1px以上になる範囲で、最大の2のべき乗を返す。
+     * 
+     * @param scale 元画像に対する表示倍率
+     * @return 縮小率
+     */
+    public static int calculateSampleSize(final float scale) {
+        int sampleSize = 1;
+        while (scale * sampleSize * 2 <= 1) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    /**
+     * 表示中のタイルの範囲を設定する。<br>
+     * 範囲外のタイルは、読み込み待ちであってもデコードしない。
+     * 
+     * @param sampleSize 縮小率
+     * @param left 左端の列
+     * @param top 上端の行
+     * @param right 右端の列
+     * @param bottom 下端の行
+     */
+    public synchronized void setVisibleTiles(final int sampleSize, final int left,
+            final int top, final int right, final int bottom) {
+        visibleSampleSize = sampleSize;
+        visibleTiles.set(left, top, right, bottom);
+    }
+
+    /**
+     * タイルを取得する。<br>
+     * キャッシュに無い場合はバックグラウンドで読み込み、nullを返す。
+     * 
+     * @param sampleSize 縮小率
+     * @param column 列
+     * @param row 行
+     * @return タイルのBitmap。読み込み前の場合はnull
+     */
+    public Bitmap getTile(final int sampleSize, final int column, final int row) {
+        final long key = toKey(sampleSize, column, row);
+        final Bitmap bitmap = cache.get(key);
+        if (bitmap != null || recycled) {
+            return bitmap;
+        }
+        synchronized (this) {
+            if (pending.add(Long.valueOf(key)) == false) {
+                return null;
+            }
+        }
+        ImagePipeline.getInstance().getExecutor()
+                .executeDecode(new TileTask(key, sampleSize, column, row),
+                        ImageExecutor.PRIORITY_HIGH);
+        return null;
+    }
+
+    /**
+     * タイルが表示範囲内かどうかを判定する。
+     * 
+     * @param sampleSize 縮小率
+     * @param column 列
+     * @param row 行
+     * @return 表示範囲内の場合はtrue
+     */
+    private synchronized boolean isVisible(final int sampleSize, final int column, final int row) {
+        return sampleSize == visibleSampleSize && column >= visibleTiles.left
+                && column <= visibleTiles.right && row >= visibleTiles.top
+                && row <= visibleTiles.bottom;
+    }
+
+    /**
+     * タイルをデコードする。
+     * 
+     * @param sampleSize 縮小率
+     * @param column 列
+     * @param row 行
+     * @return タイルのBitmap。デコードに失敗した場合はnull
+     */
+    private Bitmap decodeTile(final int sampleSize, final int column, final int row) {
+        final int span = tileSize * sampleSize;
+        final int left = column * span;
+        final int top = row * span;
+        final Rect region = new Rect(left, top, Math.min(left + span, getWidth()), Math.min(top
+                + span, getHeight()));
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        try {
+            return decoder.decodeRegion(region, options);
+        } catch (final OutOfMemoryError e) {
+            Log.e(TAG, "DECODE tile is Failed. " + e.getMessage());
+            cache.evictAll();
+            return null;
+        } catch (final IllegalStateException e) {
+            // デコード中に破棄された場合
+            return null;
+        }
+    }
+
+    /**
+     * キャッシュしているタイルを全て破棄する。<br>
+     * 画面から外れた場合など、一時的にメモリを解放する際に使用する。
+     */
+    public void evictAll() {
+        cache.evictAll();
+    }
+
+    /**
+     * デコーダ、キャッシュを破棄する。以降はタイルを読み込まない。
+     */
+    public void recycle() {
+        recycled = true;
+        listener = null;
+        cache.evictAll();
+        decoder.recycle();
+    }
+
+    /**
+     * タイルのキャッシュキーを作成する。
+     * 
+     * @param sampleSize 縮小率
+     * @param column 列
+     * @param row 行
+     * @return キャッシュキー
+     */
+    private static long toKey(final int sampleSize, final int column, final int row) {
+        return ((long) Integer.numberOfTrailingZeros(sampleSize) << 56) | ((long) column << 28)
+                | row;
+    }
+
+    /**
+     * タイルの読み込み完了の通知を受けるインタフェース。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    public interface Listener {
+
+        /**
+         * タイルを読み込んだ際に、デコード用スレッドで呼ばれる。
+         */
+        void onTileLoaded();
+    }
+
+    /**
+     * タイルの読み込み処理。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    private class TileTask implements ImageExecutor.Discardable {
+
+        /** キャッシュキー。 */
+        private final long key;
+
+        /** 縮小率。 */
+        private final int sampleSize;
+
+        /** 列。 */
+        private final int column;
+
+        /** 行。 */
+        private final int row;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param key キャッシュキー
+         * @param sampleSize 縮小率
+         * @param column 列
+         * @param row 行
+         */
+        TileTask(final long key, final int sampleSize, final int column, final int row) {
+            this.key = key;
+            this.sampleSize = sampleSize;
+            this.column = column;
+            this.row = row;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void run() {
+            try {
+                if (recycled || isVisible(sampleSize, column, row) == false) {
+                    return;
+                }
+                final Bitmap bitmap = decodeTile(sampleSize, column, row);
+                if (bitmap == null || recycled) {
+                    return;
+                }
+                cache.put(key, bitmap);
+            } finally {
+                onDiscarded();
+            }
+            final Listener l = listener;
+            if (l != null) {
+                l.onTileLoaded();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void onDiscarded() {
+            synchronized (TileLoader.this) {
+                pending.remove(Long.valueOf(key));
+            }
+        }
+    }
+
+    /**
+     * タイルのメモリキャッシュ。Bitmapのバイト数で容量を管理し、最も長く参照されていないタイルから追い出す。<br>
+     * 描画のたびに参照するため、キーをlongのまま線形探索のハッシュ表で管理し、参照順は配列の添字の連結リストで保持する。
+     * 配列は容量が足りない場合のみ拡張し、取得、追加、追い出しではオブジェクトを生成しない。<br>
+     * アロケーションの無いことをJVMのテストで確認できるよう、パッケージ内に公開する。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/06
+     */
+    static class TileCache {
+
+        /** エントリの初期容量。 */
+        private static final int INITIAL_CAPACITY = 16;
+
+        /** 空きを表す添字。 */
+        private static final int NONE = -1;
+
+        /** 最大キャッシュサイズ(Byte)。 */
+        private final int maxSize;
+
+        /** 現在のキャッシュサイズ(Byte)。 */
+        private int size;
+
+        /** ハッシュ表。値はエントリの添字。エントリの容量の2倍の大きさとする。 */
+        private int[] table;
+
+        /** エントリのキー。 */
+        private long[] keys;
+
+        /** エントリのBitmap。 */
+        private Bitmap[] values;
+
+        /** エントリのサイズ(Byte)。 */
+        private int[] sizes;
+
+        /** 1つ古いエントリの添字。 */
+        private int[] older;
+
+        /** 1つ新しいエントリの添字。空きエントリでは次の空きエントリの添字。 */
+        private int[] newer;
+
+        /** 最も古いエントリの添字。 */
+        private int oldest = NONE;
+
+        /** 最も新しいエントリの添字。 */
+        private int newest = NONE;
+
+        /** 空きエントリの先頭の添字。 */
+        private int free = NONE;
+
+        /** 一度でも使用したエントリの数。 */
+        private int used;
+
+        /**
+         * コンストラクタ。
+         * 
+         * @param maxSize 最大キャッシュサイズ(Byte)
+         */
+        TileCache(final int maxSize) {
+            this.maxSize = maxSize;
+            allocate(INITIAL_CAPACITY);
+        }
+
+        /**
+         * タイルを取得し、最も新しく参照したタイルにする。
+         * 
+         * @param key キー
+         * @return タイル。無い場合はnull
+         */
+        synchronized Bitmap get(final long key) {
+            final int entry = find(key);
+            if (entry == NONE) {
+                return null;
+            }
+            unlink(entry);
+            linkNewest(entry);
+            return values[entry];
+        }
+
+        /**
+         * タイルを追加する。<br>
+         * 最大キャッシュサイズを超えた場合は、最も長く参照されていないタイルから追い出す。
+         * 
+         * @param key キー
+         * @param bitmap タイル
+         */
+        synchronized void put(final long key, final Bitmap bitmap) {
+            int entry = find(key);
+            if (entry != NONE) {
+                size -= sizes[entry];
+                unlink(entry);
+            } else {
+                entry = newEntry();
+                keys[entry] = key;
+                insert(entry);
+            }
+            values[entry] = bitmap;
+            sizes[entry] = bitmap.getRowBytes() * bitmap.getHeight();
+            size += sizes[entry];
+            linkNewest(entry);
+            trimToSize(maxSize);
+        }
+
+        /**
+         * 全てのタイルを追い出す。
+         */
+        synchronized void evictAll() {
+            trimToSize(-1);
+        }
+
+        /**
+         * 指定したサイズ以下になるまで、最も長く参照されていないタイルから追い出す。
+         * 
+         * @param targetSize 目標サイズ(Byte)
+         */
+        private void trimToSize(final int targetSize) {
+            while (size > targetSize && oldest != NONE) {
+                remove(oldest);
+            }
+        }
+
+        /**
+         * キーのエントリを探す。
+         * 
+         * @param key キー
+         * @return エントリの添字。無い場合は{@link #NONE}
+         */
+        private int find(final long key) {
+            final int mask = table.length - 1;
+            for (int i = hash(key) & mask;; i = (i + 1) & mask) {
+                final int entry = table[i];
+                if (entry == NONE || keys[entry] == key) {
+                    return entry;
+                }
+            }
+        }
+
+        /**
+         * エントリをハッシュ表に追加する。
+         * 
+         * @param entry エントリの添字
+         */
+        private void insert(final int entry) {
+            final int mask = table.length - 1;
+            int i = hash(keys[entry]) & mask;
+            while (table[i] != NONE) {
+                i = (i + 1) & mask;
+            }
+            table[i] = entry;
+        }
+
+        /**
+         * エントリを削除し、空きエントリにする。<br>
+         * ハッシュ表は後続のエントリを詰めて、探索が途切れないようにする。
+         * 
+         * @param entry エントリの添字
+         */
+        private void remove(final int entry) {
+            unlink(entry);
+            final int mask = table.length - 1;
+            int i = hash(keys[entry]) & mask;
+            while (table[i] != entry) {
+                i = (i + 1) & mask;
+            }
+            for (int j = (i + 1) & mask; table[j] != NONE; j = (j + 1) & mask) {
+                final int home = hash(keys[table[j]]) & mask;
+                // 本来の位置がiからjの間に無いエントリは、iに詰めても探索できる
+                final boolean between = i <= j ? i < home && home <= j : i < home || home <= j;
+                if (between == false) {
+                    table[i] = table[j];
+                    i = j;
+                }
+            }
+            table[i] = NONE;
+            size -= sizes[entry];
+            values[entry] = null;
+            newer[entry] = free;
+            free = entry;
+        }
+
+        /**
+         * 空きエントリを取得する。容量が足りない場合は拡張する。
+         * 
+         * @return エントリの添字
+         */
+        private int newEntry() {
+            if (free != NONE) {
+                final int entry = free;
+                free = newer[entry];
+                return entry;
+            }
+            if (used == keys.length) {
+                grow();
+            }
+            return used++;
+        }
+
+        /**
+         * エントリの容量を2倍にし、ハッシュ表を作り直す。
+         */
+        private void grow() {
+            final int capacity = keys.length;
+            final long[] oldKeys = keys;
+            final Bitmap[] oldValues = values;
+            final int[] oldSizes = sizes;
+            final int[] oldOlder = older;
+            final int[] oldNewer = newer;
+            allocate(capacity * 2);
+            System.arraycopy(oldKeys, 0, keys, 0, capacity);
+            System.arraycopy(oldValues, 0, values, 0, capacity);
+            System.arraycopy(oldSizes, 0, sizes, 0, capacity);
+            System.arraycopy(oldOlder, 0, older, 0, capacity);
+            System.arraycopy(oldNewer, 0, newer, 0, capacity);
+            for (int entry = oldest; entry != NONE; entry = newer[entry]) {
+                insert(entry);
+            }
+        }
+
+        /**
+         * 指定した容量の配列を確保する。
+         * 
+         * @param capacity エントリの容量
+         */
+        private void allocate(final int capacity) {
+            keys = new long[capacity];
+            values = new Bitmap[capacity];
+            sizes = new int[capacity];
+            older = new int[capacity];
+            newer = new int[capacity];
+            table = new int[capacity * 2];
+            Arrays.fill(table, NONE);
+        }
+
+        /**
+         * エントリを参照順の連結リストから外す。
+         * 
+         * @param entry エントリの添字
+         */
+        private void unlink(final int entry) {
+            final int o = older[entry];
+            final int n = newer[entry];
+            if (o != NONE) {
+                newer[o] = n;
+            } else {
+                oldest = n;
+            }
+            if (n != NONE) {
+                older[n] = o;
+            } else {
+                newest = o;
+            }
+        }
+
+        /**
+         * エントリを参照順の連結リストの最も新しい位置に追加する。
+         * 
+         * @param entry エントリの添字
+         */
+        private void linkNewest(final int entry) {
+            older[entry] = newest;
+            newer[entry] = NONE;
+            if (newest != NONE) {
+                newer[newest] = entry;
+            } else {
+                oldest = entry;
+            }
+            newest = entry;
+        }
+
+        /**
+         * キーのハッシュ値を求める。
+         * 
+         * @param key キー
+         * @return ハッシュ値
+         */
+        private static int hash(final long key) {
+            final int h = (int) (key ^ (key >>> 32));
+            return h ^ (h >>> 16) ^ (h >>> 7);
+        }
+    }
+}
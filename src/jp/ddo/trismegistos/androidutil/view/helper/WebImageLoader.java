@@ -2,28 +2,27 @@
 package jp.ddo.trismegistos.androidutil.view.helper;
 
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
 
-import jp.ddo.trismegistos.androidutil.file.FileUtil;
-import jp.ddo.trismegistos.androidutil.loader.AbstractAsyncTaskLoader;
+import jp.ddo.trismegistos.androidutil.view.helper.ImagePipeline.ImageRequest;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.util.Log;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v4.content.Loader;
 
 /**
- * Web上の画像をロードするLoaderクラス。
+ * Web上の画像をロードするLoaderクラス。<br>
+ * 読み込みはAsyncTaskのスレッドプールではなく、{@link ImagePipeline}の専用スレッドで行う。<br>
+ * Loaderが停止またはリセットされた場合は、待ち行列にある読み込みをキャンセルする。<br>
+ * プレビュー用のURLを設定した場合は、縮小版の画像を先に配信し、元の画像の取得後に改めて配信する。
  * 
  * @author y_sugasawa
  * @since 2013/02/05
  */
-public class WebImageLoader extends AbstractAsyncTaskLoader<Bitmap> {
+public class WebImageLoader extends Loader<Bitmap> implements ImagePipeline.ProgressCallback {
 
-    /** タグ。 */
-    private static final String TAG = WebImageLoader.class.getSimpleName();
+    /** UIスレッドのHandler。 */
+    private static final Handler HANDLER = new Handler(Looper.getMainLooper());
 
     /** キャッシュ管理オブジェクト。 */
     private ImageCache imageCache;
@@ -34,6 +33,33 @@ public class WebImageLoader extends AbstractAsyncTaskLoader<Bitmap> {
     /** ローカルファイルディレクトリ。 */
     private File localDir;
 
+    /** 優先度。 */
+    private int priority = ImageExecutor.PRIORITY_NORMAL;
+
+    /** 要求する幅(px)。 */
+    private int width;
+
+    /** 要求する高さ(px)。 */
+    private int height;
+
+    /** プレビュー用の画像URL。 */
+    private String previewUrl;
+
+    /** 進捗の通知先。 */
+    private OnProgressListener onProgressListener;
+
+    /** 実行中の要求。 */
+    private ImageRequest request;
+
+    /** 実行中のプレビューの要求。 */
+    private ImageRequest previewRequest;
+
+    /** 読み込み結果。 */
+    private Bitmap result;
+
+    /** 元の画像の読み込みが完了した場合はtrue。プレビューのみ配信した場合はfalse。 */
+    private boolean finished;
+
     /**
      * コンストラクタ。<br>
      * imageCacheがnullの場合はキャッシュを行わない。
@@ -62,98 +88,239 @@ public class WebImageLoader extends AbstractAsyncTaskLoader<Bitmap> {
         this.localDir = localDir;
     }
 
+    /**
+     * 優先度を設定する。<br>
+     * デフォルトは{@link ImageExecutor#PRIORITY_NORMAL}。
+     * 
+     * @param priority 優先度
+     */
+    public void setPriority(final int priority) {
+        this.priority = priority;
+    }
+
+    /**
+     * 要求サイズを設定する。<br>
+     * 指定した場合は、要求サイズを下回らない範囲で縮小してデコードする。0の場合は元のサイズでデコードする。
+     * 
+     * @param width 要求する幅(px)
+     * @param height 要求する高さ(px)
+     */
+    public void setTargetSize(final int width, final int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * プレビュー用の画像URLを設定する。<br>
+     * サムネイルなど、元の画像より小さい画像のURLを指定する。元の画像より先に取得できた場合のみ配信する。
+     * 
+     * @param previewUrl プレビュー用の画像URL。nullの場合はプレビューを配信しない
+     */
+    public void setPreviewUrl(final String previewUrl) {
+        this.previewUrl = previewUrl;
+    }
+
+    /**
+     * 進捗の通知先を設定する。
+     * 
+     * @param listener 進捗の通知先
+     */
+    public void setOnProgressListener(final OnProgressListener listener) {
+        this.onProgressListener = listener;
+    }
+
+    /**
+     * 画像URLを取得する。
+     * 
+     * @return 画像URL
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    /**
+     * 元の画像の読み込みが完了したかどうかを返す。
+     * 
+     * @return 完了した場合はtrue、読み込み中またはプレビューのみ配信した場合はfalse
+     */
+    public boolean isFinished() {
+        return finished;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
-    protected Bitmap load() {
-
-        HttpURLConnection con = null;
-        InputStream in = null;
-        FileOutputStream fos = null;
-
-        try {
-            URL imageUrl = new URL(url);
-            con = (HttpURLConnection) imageUrl.openConnection();
-            con.setUseCaches(true);
-            con.setRequestMethod("GET");
-            con.setReadTimeout(500000);
-            con.setConnectTimeout(50000);
-            con.connect();
-            in = con.getInputStream();
-
-            Bitmap bitmap = null;
-            if (localDir != null) {
-                final byte[] buf = new byte[1024];
-                int len = 0;
-                FileUtil.mkdir(localDir);
-                final File localFile = new File(localDir.getAbsolutePath()
-                        + FileUtil.FILE_SEPARATOR + getFileName(url));
-                fos = new FileOutputStream(localFile);
-                while ((len = in.read(buf)) > -1) {
-                    fos.write(buf, 0, len);
-                }
-                fos.flush();
-                bitmap = BitmapFactory.decodeFile(localFile.getPath());
-            } else if (imageCache != null) {
-                if (imageCache.isFileCache()) {
-                    final byte[] buf = new byte[1024];
-                    int len = 0;
-                    final File localFile = new File(imageCache.getCacheDir(),
-                            ImageCache.getFileName(url));
-                    fos = new FileOutputStream(localFile);
-                    while ((len = in.read(buf)) > -1) {
-                        fos.write(buf, 0, len);
+    public void deliverResult(final Bitmap data) {
+        if (isReset()) {
+            return;
+        }
+        if (isStarted()) {
+            super.deliverResult(data);
+        }
+    }
+
+    /**
+     * 読み込み結果を保持し、配信する。<br>
+     * 結果は使用中の状態で受け取り、置き換えた結果、破棄されたLoaderの結果は使用を終了する。
+     * 
+     * @param data 読み込み結果
+     */
+    private void setResult(final Bitmap data) {
+        if (isReset()) {
+            release(data);
+            return;
+        }
+        release(result);
+        result = data;
+        deliverResult(data);
+    }
+
+    /**
+     * Bitmapのプールを設定している場合は、Bitmapの使用を終了する。
+     * 
+     * @param bitmap Bitmap
+     */
+    private void release(final Bitmap bitmap) {
+        final BitmapPool pool = imageCache != null ? imageCache.getBitmapPool() : null;
+        if (pool != null) {
+            pool.release(bitmap);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStartLoading() {
+        if (result != null) {
+            deliverResult(result);
+        }
+        if (takeContentChanged() || result == null || finished == false) {
+            forceLoad();
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * 同じ画像を読み込み中のLoaderがある場合は、その結果を共有する。
+     */
+    @Override
+    protected void onForceLoad() {
+        super.onForceLoad();
+        cancelRequest();
+        finished = false;
+        final ImagePipeline pipeline = ImagePipeline.getInstance();
+        request = pipeline.submit(url, imageCache, localDir, width, height, priority, this);
+        if (previewUrl != null && result == null) {
+            previewRequest = pipeline.submit(previewUrl, imageCache, null, width, height,
+                    Math.max(priority, ImageExecutor.PRIORITY_HIGH), this);
+        }
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * ワーカースレッドから呼ばれるため、UIスレッドに切り替えて結果を配信する。
+     */
+    @Override
+    public void onComplete(final ImageRequest completed, final Bitmap bitmap) {
+        HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                if (completed == previewRequest) {
+                    previewRequest = null;
+                    if (request != null && bitmap != null) {
+                        setResult(bitmap);
+                    } else {
+                        release(bitmap);
                     }
-                    fos.flush();
-                    bitmap = BitmapFactory.decodeFile(localFile.getPath());
-                }
-                if (bitmap == null) {
-                    bitmap = BitmapFactory.decodeStream(in);
+                    return;
                 }
-                imageCache.saveBitmap(url, bitmap);
-            } else {
-                bitmap = BitmapFactory.decodeStream(in);
-            }
-            return bitmap;
-        } catch (final Exception e) {
-            Log.e(TAG, "" + e.getMessage());
-        } finally {
-            if (con != null) {
-                try {
-                    con.disconnect();
-                } catch (final Exception e) {
+                if (completed != request) {
+                    release(bitmap);
+                    return;
                 }
-            }
-            if (in != null) {
-                try {
-                    in.close();
-                } catch (final Exception e) {
+                request = null;
+                finished = true;
+                if (previewRequest != null) {
+                    previewRequest.cancel();
+                    previewRequest = null;
                 }
+                setResult(bitmap);
             }
-            if (fos != null) {
-                try {
-                    fos.close();
-                } catch (final Exception e) {
+        });
+    }
+
+    /**
+     * {@inheritDoc}<br>
+     * ワーカースレッドから呼ばれるため、UIスレッドに切り替えて進捗を通知する。
+     */
+    @Override
+    public void onProgress(final ImageRequest progressed, final int bytesRead,
+            final int contentLength) {
+        if (onProgressListener == null) {
+            return;
+        }
+        HANDLER.post(new Runnable() {
+            @Override
+            public void run() {
+                final OnProgressListener listener = onProgressListener;
+                if (progressed == request && listener != null) {
+                    listener.onProgress(WebImageLoader.this, bytesRead, contentLength);
                 }
             }
-        }
+        });
+    }
 
-        return null;
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void onStopLoading() {
+        super.onStopLoading();
+        cancelRequest();
     }
 
     /**
-     * URLから画像ファイル名を取得する。<br>
-     * 拡張子を含まない場合は"jpg"を付けて返却する。
-     * 
-     * @param url 画像URL
-     * @return 画像ファイル名
+     * {@inheritDoc}
      */
-    private String getFileName(final String url) {
-        final StringBuilder sb = new StringBuilder(url.substring(url.lastIndexOf("/") + 1));
-        if (sb.indexOf(".") == -1) {
-            sb.append(".jpg");
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        release(result);
+        result = null;
+    }
+
+    /**
+     * 実行中の要求をキャンセルする。
+     */
+    private void cancelRequest() {
+        if (request != null) {
+            request.cancel();
+            request = null;
+        }
+        if (previewRequest != null) {
+            previewRequest.cancel();
+            previewRequest = null;
         }
-        return sb.toString();
+    }
+
+    /**
+     * ダウンロードの進捗を受け取るインタフェース。
+     * 
+     * @author y_sugasawa
+     * @since 2013/03/04
+     */
+    public interface OnProgressListener {
+
+        /**
+         * ダウンロード中に一定量を受信するたびに、UIスレッドから呼ばれる。
+         * 
+         * @param loader Loader
+         * @param bytesRead 受信したバイト数
+         * @param contentLength 全体のバイト数。不明な場合は-1
+         */
+        void onProgress(WebImageLoader loader, int bytesRead, int contentLength);
     }
 }